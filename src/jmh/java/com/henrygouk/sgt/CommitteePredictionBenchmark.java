@@ -0,0 +1,96 @@
+package com.henrygouk.sgt;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the ways of making predictions with a trained committee. Run with ./gradlew -Pui=weka -Pjmh jmh.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommitteePredictionBenchmark {
+
+    @Param({"32", "100"})
+    public int numTrees;
+
+    @Param({"16", "64"})
+    public int numFeatures;
+
+    protected StreamingGradientTreeCommittee mCommittee;
+
+    protected QuickScorer mQuickScorer;
+
+    protected CompiledModel mCompiledModel;
+
+    protected int[][] mFeatures;
+
+    protected int mNext;
+
+    @Setup
+    public void setup() {
+        FeatureInfo[] featureInfo = new FeatureInfo[numFeatures];
+
+        for(int i = 0; i < featureInfo.length; i++) {
+            featureInfo[i] = new FeatureInfo();
+            featureInfo[i].type = FeatureType.ordinal;
+            featureInfo[i].categories = 64;
+        }
+
+        StreamingGradientTreeOptions options = new StreamingGradientTreeOptions();
+        options.gracePeriod = 100;
+        options.delta = 1E-3;
+        // Measure tree traversal on the calling thread
+        options.committeeWorkerThreshold = Integer.MAX_VALUE;
+        mCommittee = new StreamingGradientTreeCommittee(featureInfo, options, numTrees);
+        Objective objective = new SoftmaxCrossEntropy();
+        Random rng = new Random(1);
+        mFeatures = new int[4096][];
+
+        for(int i = 0; i < mFeatures.length; i++) {
+            mFeatures[i] = new int[numFeatures];
+
+            for(int j = 0; j < numFeatures; j++) {
+                mFeatures[i][j] = rng.nextInt(64);
+            }
+        }
+
+        for(int i = 0; i < 50000; i++) {
+            int[] features = mFeatures[i % mFeatures.length];
+            // SoftmaxCrossEntropy has one more class than there are trees
+            double[] target = new double[numTrees + 1];
+            target[(features[0] + features[1] / 8) % (numTrees + 1)] = 1.0;
+            mCommittee.predictAndUpdate(features, p -> objective.computeDerivatives(target, p));
+        }
+
+        mQuickScorer = new QuickScorer(mCommittee);
+        mCompiledModel = TreeCompiler.compile(mCommittee);
+    }
+
+    protected int[] nextInstance() {
+        mNext = (mNext + 1) & (mFeatures.length - 1);
+
+        return mFeatures[mNext];
+    }
+
+    @Benchmark
+    public void committee(Blackhole blackhole) {
+        blackhole.consume(mCommittee.predict(nextInstance()));
+    }
+
+    @Benchmark
+    public void quickScorer(Blackhole blackhole) {
+        blackhole.consume(mQuickScorer.predict(nextInstance()));
+    }
+
+    @Benchmark
+    public void compiled(Blackhole blackhole) {
+        blackhole.consume(mCompiledModel.predict(nextInstance()));
+    }
+}
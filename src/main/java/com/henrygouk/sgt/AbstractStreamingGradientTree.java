@@ -0,0 +1,124 @@
+package com.henrygouk.sgt;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+
+/**
+ * The parts of a streaming gradient tree that do not depend on what its leaves predict: the structure and its
+ * published snapshots, the significance test for splits, and the scheduling of split checks.
+ */
+public abstract class AbstractStreamingGradientTree implements Serializable {
+
+    private static final long serialVersionUID = -2218791127064510637L;
+
+    protected FeatureInfo[] mFeatureInfo;
+
+    protected StreamingGradientTreeOptions mOptions;
+
+    protected FlatTree mStructure;
+
+    protected int mNumNodeUpdates;
+
+    protected int mNumSplits;
+
+    protected Statistics.FCriticalValueCache mCriticalValues;
+
+    // An immutable copy of mStructure that is replaced whenever the tree changes, if publishSnapshots is enabled.
+    // It is not serialized, and is rebuilt when the tree is deserialized.
+    protected transient volatile FlatTree mSnapshot;
+
+    protected AbstractStreamingGradientTree(FeatureInfo[] featureInfo, StreamingGradientTreeOptions options) {
+        mFeatureInfo = featureInfo.clone();
+        mOptions = options;
+    }
+
+    public int getNumNodes() {
+        return mStructure.getNumNodes();
+    }
+
+    public int getNumNodeUpdates() {
+        return mNumNodeUpdates;
+    }
+
+    public int getNumSplits() {
+        return mNumSplits;
+    }
+
+    public FlatTree getStructure() {
+        return mStructure;
+    }
+
+    /**
+     * Returns the most recently published snapshot, or the live structure if snapshots are not being published.
+     * Snapshots can be read from any thread, even while the tree is being updated.
+     */
+    public FlatTree getPublishedStructure() {
+        FlatTree snapshot = mSnapshot;
+
+        return snapshot != null ? snapshot : mStructure;
+    }
+
+    // Must only be called by the thread that updates the tree
+    protected void publishSnapshot(boolean structureChanged) {
+        if(!mOptions.publishSnapshots) {
+            return;
+        }
+
+        FlatTree previous = mSnapshot;
+        mSnapshot = structureChanged || previous == null ? mStructure.snapshot() : mStructure.snapshotValues(previous);
+    }
+
+    // Only the thread updating the tree may publish a snapshot, so it is rebuilt here rather than by the first reader
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        publishSnapshot(true);
+    }
+
+    protected double computeFStatistic(double lossMean, double lossVariance, int instances) {
+        // H0: the expected loss is zero
+        // HA: the expected loss is not zero
+        return instances * Math.pow(lossMean, 2.0) / lossVariance;
+    }
+
+    /**
+     * Tests whether the p-value of a split is below delta. Rather than evaluating the F distribution, the
+     * F statistic is compared to a cached critical value for the current degrees of freedom.
+     */
+    protected boolean isSignificant(double lossMean, double lossVariance, int instances) {
+        return computeFStatistic(lossMean, lossVariance, instances) >= getCriticalValue(instances);
+    }
+
+    protected double getCriticalValue(int instances) {
+        if(mCriticalValues == null || mCriticalValues.getP() != mOptions.delta) {
+            mCriticalValues = new Statistics.FCriticalValueCache(mOptions.delta, 1);
+        }
+
+        return mCriticalValues.get(instances - 1);
+    }
+
+    /**
+     * Decides when to check a leaf again after a check that did not split it, and returns the leaf's instance count
+     * at that point. Checks are normally made every grace period, but with adaptive grace periods the next check is
+     * postponed to the point where the F statistic of the best split would become significant, assuming it grows
+     * linearly with the number of instances.
+     */
+    protected int getNextCheck(int instances, double lossMean, double lossVariance) {
+        long next = instances + 1;
+
+        if(mOptions.adaptiveGracePeriod) {
+            double needed = Double.POSITIVE_INFINITY;
+
+            // A split that would not reduce the loss is never applied, however significant it is
+            if(lossMean < 0.0) {
+                needed = instances * getCriticalValue(instances) / computeFStatistic(lossMean, lossVariance, instances);
+            }
+
+            next = Math.max(next, (long)Math.ceil(Math.min(needed, (double)instances + mOptions.maxCheckInterval)));
+        }
+
+        long gracePeriod = mOptions.gracePeriod;
+
+        return (int)Math.min((next + gracePeriod - 1) / gracePeriod * gracePeriod, Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,129 @@
+package com.henrygouk.sgt;
+
+import java.util.Random;
+
+/**
+ * A read-only model whose trees have been compiled into bytecode by TreeCompiler.
+ */
+public class CompiledModel implements MultiOutputLearner {
+
+    protected FlatTree[] mTrees;
+
+    protected TreeCompiler.Scorer[] mScorers;
+
+    // Trees that were too large to compile, which are evaluated using their FlatTree
+    protected int[] mInterpretedTrees;
+
+    protected int[] mOutputOffsets;
+
+    protected int mNumOutputs;
+
+    public CompiledModel(FlatTree[] trees, TreeCompiler.Scorer[] scorers, int[] interpretedTrees, int[] outputOffsets, int numOutputs) {
+        mTrees = trees;
+        mScorers = scorers;
+        mInterpretedTrees = interpretedTrees;
+        mOutputOffsets = outputOffsets;
+        mNumOutputs = numOutputs;
+    }
+
+    /**
+     * Only the trees themselves are counted. The generated classes are held outside of the heap.
+     */
+    public MemoryUsage getMemoryUsage() {
+        MemoryUsage result = new MemoryUsage();
+
+        for(FlatTree tree : mTrees) {
+            result.structureBytes += tree.getMemoryBytes();
+        }
+
+        result.otherBytes = MemoryUsage.objectBytes(4 * MemoryUsage.REFERENCE + 4) + MemoryUsage.arrayBytes(mTrees.length, MemoryUsage.REFERENCE)
+            + MemoryUsage.arrayBytes(mScorers.length, MemoryUsage.REFERENCE) + mScorers.length * MemoryUsage.objectBytes(0)
+            + MemoryUsage.arrayBytes(mInterpretedTrees.length, 4) + MemoryUsage.arrayBytes(mOutputOffsets.length, 4);
+
+        return result;
+    }
+
+    public int getNumCompiledTrees() {
+        return mTrees.length - mInterpretedTrees.length;
+    }
+
+    public int getNumNodes() {
+        int result = 0;
+
+        for(FlatTree tree : mTrees) {
+            result += tree.getNumNodes();
+        }
+
+        return result;
+    }
+
+    public int getNumNodeUpdates() {
+        return 0;
+    }
+
+    public int getNumSplits() {
+        int result = 0;
+
+        for(FlatTree tree : mTrees) {
+            for(int n = 0; n < tree.getNumNodes(); n++) {
+                if(!tree.isLeaf(n)) {
+                    result++;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    public int getMaxDepth() {
+        int result = 0;
+
+        for(FlatTree tree : mTrees) {
+            result = Math.max(result, tree.getDepth());
+        }
+
+        return result;
+    }
+
+    public int getNumTrees() {
+        return mTrees.length;
+    }
+
+    public void randomlyInitialize(Random rng, double predBound) {
+        throw new UnsupportedOperationException("Compiled models cannot be trained");
+    }
+
+    public void update(int[] features, GradHess[] gradHess) {
+        throw new UnsupportedOperationException("Compiled models cannot be trained");
+    }
+
+    public double[] predictAndUpdate(int[] features, GradientCallback callback) {
+        throw new UnsupportedOperationException("Compiled models cannot be trained");
+    }
+
+    public double[] predict(int[] features) {
+        double[] result = new double[mNumOutputs];
+        predict(features, result);
+
+        return result;
+    }
+
+    /**
+     * Writes the prediction into out, which must have room for every output.
+     */
+    public void predict(int[] features, double[] out) {
+        for(TreeCompiler.Scorer scorer : mScorers) {
+            scorer.score(features, out);
+        }
+
+        for(int t : mInterpretedTrees) {
+            mTrees[t].getValues(mTrees[t].getLeafIndex(features), out, mOutputOffsets[t]);
+        }
+    }
+
+    public void predictBatch(int[][] features, double[][] out) {
+        for(int r = 0; r < features.length; r++) {
+            predict(features[r], out[r]);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.henrygouk.sgt;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Maps raw feature values to the bins described by an array of FeatureInfo.
+ *
+ * Nominal features are passed through unchanged. Each ordinal feature is either binned with a sorted array of cut
+ * points, where bin j holds the values v with cutPoints[j - 1] < v <= cutPoints[j], or split into
+ * FeatureInfo.categories equal-width bins over a range that can be widened as values are observed. Ordinal features
+ * use the equal-width scheme until they are given cut points. Missing values, represented by NaN, map to bin -1.
+ */
+public class Discretizer implements Serializable {
+
+    private static final long serialVersionUID = -6402187733920146215L;
+
+    protected FeatureInfo[] mFeatureInfo;
+
+    // Null for features that are binned with equal-width bins
+    protected double[][] mCutPoints;
+
+    protected double[] mMin;
+
+    protected double[] mMax;
+
+    public Discretizer(FeatureInfo[] featureInfo) {
+        mFeatureInfo = featureInfo;
+        mCutPoints = new double[featureInfo.length][];
+        mMin = new double[featureInfo.length];
+        mMax = new double[featureInfo.length];
+    }
+
+    public FeatureInfo[] getFeatureInfo() {
+        return mFeatureInfo;
+    }
+
+    public int getNumFeatures() {
+        return mFeatureInfo.length;
+    }
+
+    /**
+     * Bins the given feature with a copy of cutPoints, which must be sorted in ascending order. A null array puts
+     * every value in bin 0.
+     */
+    public void setCutPoints(int feature, double[] cutPoints) {
+        mCutPoints[feature] = cutPoints == null ? new double[0] : Arrays.copyOf(cutPoints, cutPoints.length);
+    }
+
+    public double[] getCutPoints(int feature) {
+        return mCutPoints[feature];
+    }
+
+    public void setRange(int feature, double min, double max) {
+        mMin[feature] = min;
+        mMax[feature] = max;
+    }
+
+    public double getMin(int feature) {
+        return mMin[feature];
+    }
+
+    public double getMax(int feature) {
+        return mMax[feature];
+    }
+
+    /**
+     * Widens the equal-width range of a feature so that it includes value. Missing values are ignored.
+     */
+    public void observe(int feature, double value) {
+        if(!Double.isNaN(value)) {
+            mMin[feature] = Math.min(mMin[feature], value);
+            mMax[feature] = Math.max(mMax[feature], value);
+        }
+    }
+
+    public int getBin(int feature, double value) {
+        if(Double.isNaN(value)) {
+            return -1;
+        }
+        else if(mFeatureInfo[feature].type == FeatureType.nominal) {
+            return (int)value;
+        }
+
+        double[] cutPoints = mCutPoints[feature];
+
+        if(cutPoints != null) {
+            // The first cut point that is not below value
+            int low = 0;
+            int high = cutPoints.length;
+
+            while(low < high) {
+                int mid = (low + high) >>> 1;
+
+                if(value <= cutPoints[mid]) {
+                    high = mid;
+                }
+                else {
+                    low = mid + 1;
+                }
+            }
+
+            return low;
+        }
+
+        int bins = mFeatureInfo[feature].categories;
+        int bin = (int)((double)bins * ((value - mMin[feature]) / (mMax[feature] - mMin[feature])));
+
+        if(bin < 0) {
+            bin = 0;
+        }
+        else if(bin >= bins) {
+            bin = bins - 1;
+        }
+
+        return bin;
+    }
+
+    /**
+     * Bins values[0..getNumFeatures()) into out.
+     */
+    public void getFeatures(double[] values, int[] out) {
+        for(int i = 0; i < mFeatureInfo.length; i++) {
+            out[i] = getBin(i, values[i]);
+        }
+    }
+
+    public int[] getFeatures(double[] values) {
+        int[] result = new int[mFeatureInfo.length];
+        getFeatures(values, result);
+
+        return result;
+    }
+
+    /**
+     * Marks every feature as having an implicit default bin, namely the bin that holds the value zero. This should
+     * be called once the binning scheme is final.
+     */
+    public void setImplicitDefaults() {
+        for(int i = 0; i < mFeatureInfo.length; i++) {
+            mFeatureInfo[i].implicitDefault = true;
+            mFeatureInfo[i].defaultBin = getBin(i, 0.0);
+        }
+    }
+
+    public long getMemoryBytes() {
+        long result = MemoryUsage.objectBytes(4 * MemoryUsage.REFERENCE)
+            + MemoryUsage.arrayBytes(mFeatureInfo.length, MemoryUsage.REFERENCE)
+            + mFeatureInfo.length * MemoryUsage.objectBytes(2 * 4 + 1 + MemoryUsage.REFERENCE)
+            + MemoryUsage.arrayBytes(mCutPoints.length, MemoryUsage.REFERENCE) + 2 * MemoryUsage.arrayBytes(mMin.length, 8);
+
+        for(double[] cutPoints : mCutPoints) {
+            if(cutPoints != null) {
+                result += MemoryUsage.arrayBytes(cutPoints.length, 8);
+            }
+        }
+
+        return result;
+    }
+}
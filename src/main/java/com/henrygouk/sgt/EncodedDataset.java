@@ -0,0 +1,164 @@
+package com.henrygouk.sgt;
+
+import java.io.Serializable;
+
+/**
+ * A discretised dataset stored row-major in the narrowest integer type that can hold every bin, along with a fixed
+ * number of targets per row. Bins are stored shifted up by one so that missing values can be stored as zero.
+ *
+ * Learners that make several passes over the same data can encode it once and decode rows into a reused buffer,
+ * rather than discretising every instance again on every epoch.
+ */
+public class EncodedDataset implements Serializable {
+
+    private static final long serialVersionUID = -4217369104823146329L;
+
+    // The largest array length that every common JVM will allocate
+    protected static final long MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    protected FeatureInfo[] mFeatureInfo;
+
+    protected int mNumRows;
+
+    protected int mNumTargets;
+
+    // Exactly one of these is used, depending on the largest number of categories
+    protected byte[] mBytes;
+
+    protected short[] mShorts;
+
+    protected int[] mInts;
+
+    protected double[] mTargets;
+
+    public EncodedDataset(FeatureInfo[] featureInfo, int numRows, int numTargets) {
+        long cells = (long)numRows * featureInfo.length;
+        long targetCells = (long)numRows * numTargets;
+
+        if(cells > MAX_ARRAY_LENGTH || targetCells > MAX_ARRAY_LENGTH) {
+            throw new IllegalArgumentException("Cannot encode " + numRows + " rows of " + featureInfo.length
+                + " features and " + numTargets + " targets: at most " + MAX_ARRAY_LENGTH + " values of each fit in an array");
+        }
+
+        mFeatureInfo = featureInfo;
+        mNumRows = numRows;
+        mNumTargets = numTargets;
+        mTargets = new double[(int)targetCells];
+
+        int maxCategories = 0;
+
+        for(FeatureInfo info : featureInfo) {
+            maxCategories = Math.max(maxCategories, info.categories);
+        }
+
+        if(maxCategories < 1 << 8) {
+            mBytes = new byte[(int)cells];
+        }
+        else if(maxCategories < 1 << 16) {
+            mShorts = new short[(int)cells];
+        }
+        else {
+            mInts = new int[(int)cells];
+        }
+    }
+
+    public FeatureInfo[] getFeatureInfo() {
+        return mFeatureInfo;
+    }
+
+    public int getNumRows() {
+        return mNumRows;
+    }
+
+    public int getNumFeatures() {
+        return mFeatureInfo.length;
+    }
+
+    public int getNumTargets() {
+        return mNumTargets;
+    }
+
+    public long getMemoryBytes() {
+        long result = MemoryUsage.objectBytes(2 * 4 + 5 * MemoryUsage.REFERENCE) + MemoryUsage.arrayBytes(mTargets.length, 8);
+
+        if(mBytes != null) {
+            result += MemoryUsage.arrayBytes(mBytes.length, 1);
+        }
+        else if(mShorts != null) {
+            result += MemoryUsage.arrayBytes(mShorts.length, 2);
+        }
+        else {
+            result += MemoryUsage.arrayBytes(mInts.length, 4);
+        }
+
+        return result;
+    }
+
+    /**
+     * Stores a row, where features holds one bin per feature (-1 for missing) and targets holds getNumTargets() values.
+     */
+    public void set(int row, int[] features, double... targets) {
+        int offset = row * mFeatureInfo.length;
+
+        for(int i = 0; i < mFeatureInfo.length; i++) {
+            int value = features[i] + 1;
+
+            if(mBytes != null) {
+                mBytes[offset + i] = (byte)value;
+            }
+            else if(mShorts != null) {
+                mShorts[offset + i] = (short)value;
+            }
+            else {
+                mInts[offset + i] = value;
+            }
+        }
+
+        System.arraycopy(targets, 0, mTargets, row * mNumTargets, mNumTargets);
+    }
+
+    /**
+     * Decodes the bins of a row into out, which must have room for getNumFeatures() values.
+     */
+    public void getFeatures(int row, int[] out) {
+        int offset = row * mFeatureInfo.length;
+
+        if(mBytes != null) {
+            for(int i = 0; i < mFeatureInfo.length; i++) {
+                out[i] = (mBytes[offset + i] & 0xFF) - 1;
+            }
+        }
+        else if(mShorts != null) {
+            for(int i = 0; i < mFeatureInfo.length; i++) {
+                out[i] = (mShorts[offset + i] & 0xFFFF) - 1;
+            }
+        }
+        else {
+            for(int i = 0; i < mFeatureInfo.length; i++) {
+                out[i] = mInts[offset + i] - 1;
+            }
+        }
+    }
+
+    public int[] getFeatures(int row) {
+        int[] result = new int[mFeatureInfo.length];
+        getFeatures(row, result);
+
+        return result;
+    }
+
+    public double getTarget(int row, int target) {
+        return mTargets[row * mNumTargets + target];
+    }
+
+    public double getTarget(int row) {
+        return getTarget(row, 0);
+    }
+
+    /**
+     * Copies the targets of a row into out, which must have room for getNumTargets() values.
+     */
+    public void getTargets(int row, double[] out) {
+        System.arraycopy(mTargets, row * mNumTargets, out, 0, mNumTargets);
+    }
+}
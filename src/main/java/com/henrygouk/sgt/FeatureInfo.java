@@ -6,4 +6,9 @@ public class FeatureInfo implements Serializable {
     private static final long serialVersionUID = 1L;
     public FeatureType type;
     public int categories;
-}
\ No newline at end of file
+
+    // If set, the feature takes defaultBin whenever it is absent from a SparseFeatures instance, and the statistics
+    // for that bin are derived from the leaf totals rather than accumulated
+    public boolean implicitDefault;
+    public int defaultBin;
+}
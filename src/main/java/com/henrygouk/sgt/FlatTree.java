@@ -0,0 +1,325 @@
+package com.henrygouk.sgt;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Structure-of-arrays storage for the routing structure and leaf values of a tree.
+ *
+ * Node 0 is the root. Internal nodes store the feature they split on, the split index (-1 for nominal
+ * splits), and the offset of their first child. The children of a node are stored contiguously, so
+ * routing an instance never has to dereference anything other than these primitive arrays.
+ *
+ * Each node holds one value per output, stored contiguously, so trees with vector-valued leaves share the same
+ * layout. The single-argument accessors refer to the first output.
+ */
+public class FlatTree implements Serializable {
+
+    private static final long serialVersionUID = 3410458102781733045L;
+
+    // The number of rows that batch prediction methods route through a tree at a time
+    public static final int BLOCK_SIZE = 256;
+
+    protected FeatureInfo[] mFeatureInfo;
+
+    protected int mSize;
+
+    protected int mNumOutputs;
+
+    protected int[] mFeatures;
+
+    protected int[] mIndices;
+
+    protected int[] mChildren;
+
+    protected double[] mValues;
+
+    public FlatTree(FeatureInfo[] featureInfo, double rootValue) {
+        this(featureInfo, new double[] {rootValue});
+    }
+
+    public FlatTree(FeatureInfo[] featureInfo, double[] rootValues) {
+        mFeatureInfo = featureInfo;
+        mNumOutputs = rootValues.length;
+        mFeatures = new int[16];
+        mIndices = new int[16];
+        mChildren = new int[16];
+        mValues = new double[16 * mNumOutputs];
+        addNode(rootValues, 0);
+    }
+
+    public int getNumNodes() {
+        return mSize;
+    }
+
+    public int getNumOutputs() {
+        return mNumOutputs;
+    }
+
+    public FeatureInfo[] getFeatureInfo() {
+        return mFeatureInfo;
+    }
+
+    /**
+     * Estimates the heap memory used by this tree, including any spare capacity in its arrays.
+     */
+    public long getMemoryBytes() {
+        return MemoryUsage.objectBytes(2 * 4 + 5 * MemoryUsage.REFERENCE) + MemoryUsage.arrayBytes(mFeatures.length, 4)
+            + MemoryUsage.arrayBytes(mIndices.length, 4) + MemoryUsage.arrayBytes(mChildren.length, 4)
+            + MemoryUsage.arrayBytes(mValues.length, 8);
+    }
+
+    public boolean isLeaf(int node) {
+        return mFeatures[node] == -1;
+    }
+
+    public int getFeature(int node) {
+        return mFeatures[node];
+    }
+
+    public int getIndex(int node) {
+        return mIndices[node];
+    }
+
+    public int getChild(int node, int child) {
+        return mChildren[node] + child;
+    }
+
+    public int getNumChildren(int node) {
+        if(mFeatures[node] == -1) {
+            return 0;
+        }
+        else if(mIndices[node] == -1) {
+            return mFeatureInfo[mFeatures[node]].categories;
+        }
+        else {
+            return 2;
+        }
+    }
+
+    public double getValue(int node) {
+        return mValues[node * mNumOutputs];
+    }
+
+    public void setValue(int node, double value) {
+        mValues[node * mNumOutputs] = value;
+    }
+
+    public double getValue(int node, int output) {
+        return mValues[node * mNumOutputs + output];
+    }
+
+    public void setValue(int node, int output, double value) {
+        mValues[node * mNumOutputs + output] = value;
+    }
+
+    /**
+     * Copies every output value of a node into out[offset..offset+getNumOutputs()).
+     */
+    public void getValues(int node, double[] out, int offset) {
+        System.arraycopy(mValues, node * mNumOutputs, out, offset, mNumOutputs);
+    }
+
+    /**
+     * Turns a leaf into an internal node and appends its children.
+     *
+     * @param node the leaf to split
+     * @param feature the feature to split on
+     * @param index the threshold for ordinal features, or -1 for nominal features
+     * @param childValues the initial values of each child, with the outputs of each child stored contiguously
+     * @return the id of the first child
+     */
+    public int split(int node, int feature, int index, double[] childValues) {
+        int first = mSize;
+
+        for(int i = 0; i < childValues.length; i += mNumOutputs) {
+            addNode(childValues, i);
+        }
+
+        mChildren[node] = first;
+        mIndices[node] = index;
+        mFeatures[node] = feature;
+
+        return first;
+    }
+
+    public int getLeafIndex(int[] features) {
+        int node = 0;
+
+        while(mFeatures[node] != -1) {
+            int value = features[mFeatures[node]];
+
+            if(value == -1) {
+                node = mChildren[node];
+            }
+            else if(mIndices[node] == -1) {
+                node = mChildren[node] + value;
+            }
+            else if(value <= mIndices[node]) {
+                node = mChildren[node];
+            }
+            else {
+                node = mChildren[node] + 1;
+            }
+        }
+
+        return node;
+    }
+
+    public int getLeafIndex(SparseFeatures features) {
+        int node = 0;
+
+        while(mFeatures[node] != -1) {
+            int value = features.get(mFeatures[node]);
+
+            if(value == -1) {
+                node = mChildren[node];
+            }
+            else if(mIndices[node] == -1) {
+                node = mChildren[node] + value;
+            }
+            else if(value <= mIndices[node]) {
+                node = mChildren[node];
+            }
+            else {
+                node = mChildren[node] + 1;
+            }
+        }
+
+        return node;
+    }
+
+    public double predict(int[] features) {
+        return getValue(getLeafIndex(features));
+    }
+
+    public double predict(SparseFeatures features) {
+        return getValue(getLeafIndex(features));
+    }
+
+    /**
+     * Routes features[start..end) through the tree in lockstep, with every row descending one level per pass, and
+     * writes the leaf each row ends up in to leaves[0..end-start).
+     */
+    public void getLeafIndices(int[][] features, int start, int end, int[] leaves) {
+        int rows = end - start;
+        boolean moved = true;
+
+        Arrays.fill(leaves, 0, rows, 0);
+
+        while(moved) {
+            moved = false;
+
+            for(int r = 0; r < rows; r++) {
+                int node = leaves[r];
+
+                if(mFeatures[node] == -1) {
+                    continue;
+                }
+
+                int value = features[start + r][mFeatures[node]];
+
+                if(value == -1) {
+                    leaves[r] = mChildren[node];
+                }
+                else if(mIndices[node] == -1) {
+                    leaves[r] = mChildren[node] + value;
+                }
+                else if(value <= mIndices[node]) {
+                    leaves[r] = mChildren[node];
+                }
+                else {
+                    leaves[r] = mChildren[node] + 1;
+                }
+
+                moved = true;
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of this tree that is not affected by later changes to this tree. Provided the copy is never
+     * modified itself, it can be read by other threads once it has been safely published, for example through a
+     * volatile field.
+     */
+    public FlatTree snapshot() {
+        FlatTree result = new FlatTree();
+        result.mFeatureInfo = mFeatureInfo;
+        result.mSize = mSize;
+        result.mNumOutputs = mNumOutputs;
+        result.mFeatures = Arrays.copyOf(mFeatures, mSize);
+        result.mIndices = Arrays.copyOf(mIndices, mSize);
+        result.mChildren = Arrays.copyOf(mChildren, mSize);
+        result.mValues = Arrays.copyOf(mValues, mSize * mNumOutputs);
+
+        return result;
+    }
+
+    /**
+     * Like snapshot, but shares the routing arrays of an earlier snapshot. This is only valid if the structure of
+     * this tree has not changed since previous was taken, i.e., only values have been set.
+     */
+    public FlatTree snapshotValues(FlatTree previous) {
+        FlatTree result = new FlatTree();
+        result.mFeatureInfo = mFeatureInfo;
+        result.mSize = mSize;
+        result.mNumOutputs = mNumOutputs;
+        result.mFeatures = previous.mFeatures;
+        result.mIndices = previous.mIndices;
+        result.mChildren = previous.mChildren;
+        result.mValues = Arrays.copyOf(mValues, mSize * mNumOutputs);
+
+        return result;
+    }
+
+    /**
+     * Like snapshot, but without the leaf values, for callers that store them elsewhere. The values of the copy
+     * must not be accessed.
+     */
+    public FlatTree snapshotStructure() {
+        FlatTree result = snapshot();
+        result.mValues = new double[0];
+
+        return result;
+    }
+
+    /**
+     * Computes the depth of the deepest leaf, where the root has a depth of one.
+     */
+    public int getDepth() {
+        // Children are always stored after their parents, so depths can be computed in a single pass
+        int[] depths = new int[mSize];
+        int result = 0;
+        depths[0] = 1;
+
+        for(int n = 0; n < mSize; n++) {
+            result = Math.max(result, depths[n]);
+
+            for(int c = 0; c < getNumChildren(n); c++) {
+                depths[mChildren[n] + c] = depths[n] + 1;
+            }
+        }
+
+        return result;
+    }
+
+    protected FlatTree() {
+    }
+
+    protected int addNode(double[] values, int offset) {
+        if(mSize == mFeatures.length) {
+            int capacity = mSize * 2;
+            mFeatures = Arrays.copyOf(mFeatures, capacity);
+            mIndices = Arrays.copyOf(mIndices, capacity);
+            mChildren = Arrays.copyOf(mChildren, capacity);
+            mValues = Arrays.copyOf(mValues, capacity * mNumOutputs);
+        }
+
+        mFeatures[mSize] = -1;
+        mIndices[mSize] = -1;
+        mChildren[mSize] = -1;
+        System.arraycopy(values, offset, mValues, mSize * mNumOutputs, mNumOutputs);
+
+        return mSize++;
+    }
+}
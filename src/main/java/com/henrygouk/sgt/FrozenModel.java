@@ -0,0 +1,276 @@
+package com.henrygouk.sgt;
+
+import java.io.Serializable;
+import java.util.Random;
+
+import com.henrygouk.sgt.neural.FullyConnected;
+import com.henrygouk.sgt.neural.Identity;
+import com.henrygouk.sgt.neural.Layer;
+import com.henrygouk.sgt.neural.RectifiedLinearUnit;
+
+/**
+ * A prediction-only copy of a trained model. Only the routing arrays of the trees, the leaf values, and the
+ * layer weights are kept, so it is much smaller than the model it was exported from, and it is not affected by
+ * further training of that model.
+ *
+ * Leaf values and layer weights can optionally be stored as floats, in which case predictions are computed in
+ * double precision from the rounded values and will differ slightly from those of the original model.
+ */
+public class FrozenModel implements Serializable, MultiOutputLearner {
+
+    private static final long serialVersionUID = -4180541829347519113L;
+
+    protected FlatTree[] mTrees;
+
+    // Only used when values are stored as floats, in which case the values of mTrees are not kept
+    protected float[][] mFloatValues;
+
+    protected int mNumTreeOutputs;
+
+    protected int[] mLayerTypes;
+
+    protected int[] mLayerInputs;
+
+    // The biases of each fully connected layer are stored after its weights
+    protected double[][] mLayerParameters;
+
+    protected float[][] mFloatLayerParameters;
+
+    public FrozenModel(FlatTree[] trees, Layer[] layers, boolean float32) {
+        mTrees = new FlatTree[trees.length];
+
+        if(float32) {
+            mFloatValues = new float[trees.length][];
+        }
+
+        for(int t = 0; t < trees.length; t++) {
+            mNumTreeOutputs += trees[t].getNumOutputs();
+
+            if(float32) {
+                mTrees[t] = trees[t].snapshotStructure();
+                int outputs = trees[t].getNumOutputs();
+                mFloatValues[t] = new float[trees[t].getNumNodes() * outputs];
+
+                for(int n = 0; n < trees[t].getNumNodes(); n++) {
+                    for(int k = 0; k < outputs; k++) {
+                        mFloatValues[t][n * outputs + k] = (float)trees[t].getValue(n, k);
+                    }
+                }
+            }
+            else {
+                mTrees[t] = trees[t].snapshot();
+            }
+        }
+
+        mLayerTypes = new int[layers.length];
+        mLayerInputs = new int[layers.length];
+
+        if(float32) {
+            mFloatLayerParameters = new float[layers.length][];
+        }
+        else {
+            mLayerParameters = new double[layers.length][];
+        }
+
+        for(int l = 0; l < layers.length; l++) {
+            if(layers[l] instanceof Identity) {
+                mLayerTypes[l] = ModelFormat.LAYER_IDENTITY;
+            }
+            else if(layers[l] instanceof RectifiedLinearUnit) {
+                mLayerTypes[l] = ModelFormat.LAYER_RECTIFIED_LINEAR_UNIT;
+            }
+            else if(layers[l] instanceof FullyConnected) {
+                FullyConnected fc = (FullyConnected)layers[l];
+                double[] weights = fc.getWeights();
+                double[] biases = fc.getBiases();
+                mLayerTypes[l] = ModelFormat.LAYER_FULLY_CONNECTED;
+                mLayerInputs[l] = fc.getNumInputs();
+
+                if(float32) {
+                    float[] parameters = new float[weights.length + biases.length];
+
+                    for(int i = 0; i < weights.length; i++) {
+                        parameters[i] = (float)weights[i];
+                    }
+
+                    for(int o = 0; o < biases.length; o++) {
+                        parameters[weights.length + o] = (float)biases[o];
+                    }
+
+                    mFloatLayerParameters[l] = parameters;
+                }
+                else {
+                    double[] parameters = new double[weights.length + biases.length];
+                    System.arraycopy(weights, 0, parameters, 0, weights.length);
+                    System.arraycopy(biases, 0, parameters, weights.length, biases.length);
+                    mLayerParameters[l] = parameters;
+                }
+            }
+            else {
+                throw new IllegalArgumentException("Unsupported layer type: " + layers[l].getClass().getName());
+            }
+        }
+    }
+
+    public MemoryUsage getMemoryUsage() {
+        MemoryUsage result = new MemoryUsage();
+
+        for(FlatTree tree : mTrees) {
+            result.structureBytes += tree.getMemoryBytes();
+        }
+
+        if(mFloatValues != null) {
+            for(float[] values : mFloatValues) {
+                result.structureBytes += MemoryUsage.arrayBytes(values.length, 4);
+            }
+        }
+
+        for(int l = 0; l < mLayerTypes.length; l++) {
+            if(mLayerParameters != null && mLayerParameters[l] != null) {
+                result.layerParameterBytes += MemoryUsage.arrayBytes(mLayerParameters[l].length, 8);
+            }
+            else if(mFloatLayerParameters != null && mFloatLayerParameters[l] != null) {
+                result.layerParameterBytes += MemoryUsage.arrayBytes(mFloatLayerParameters[l].length, 4);
+            }
+        }
+
+        result.otherBytes = MemoryUsage.objectBytes(6 * MemoryUsage.REFERENCE + 4) + 2 * MemoryUsage.arrayBytes(mTrees.length, MemoryUsage.REFERENCE)
+            + 2 * MemoryUsage.arrayBytes(mLayerTypes.length, 4) + 2 * MemoryUsage.arrayBytes(mLayerTypes.length, MemoryUsage.REFERENCE);
+
+        return result;
+    }
+
+    public boolean isFloat32() {
+        return mFloatValues != null;
+    }
+
+    public int getNumNodes() {
+        int result = 0;
+
+        for(FlatTree tree : mTrees) {
+            result += tree.getNumNodes();
+        }
+
+        return result;
+    }
+
+    public int getNumNodeUpdates() {
+        return 0;
+    }
+
+    public int getNumSplits() {
+        int result = 0;
+
+        for(FlatTree tree : mTrees) {
+            for(int n = 0; n < tree.getNumNodes(); n++) {
+                if(!tree.isLeaf(n)) {
+                    result++;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    public int getMaxDepth() {
+        int result = 0;
+
+        for(FlatTree tree : mTrees) {
+            result = Math.max(result, tree.getDepth());
+        }
+
+        return result;
+    }
+
+    public int getNumTrees() {
+        return mTrees.length;
+    }
+
+    public void randomlyInitialize(Random rng, double predBound) {
+        throw new UnsupportedOperationException("Frozen models cannot be trained");
+    }
+
+    public void update(int[] features, GradHess[] gradHess) {
+        throw new UnsupportedOperationException("Frozen models cannot be trained");
+    }
+
+    public double[] predictAndUpdate(int[] features, GradientCallback callback) {
+        throw new UnsupportedOperationException("Frozen models cannot be trained");
+    }
+
+    public double[] predict(int[] features) {
+        double[] activation = new double[mNumTreeOutputs];
+        int output = 0;
+
+        for(int t = 0; t < mTrees.length; t++) {
+            FlatTree tree = mTrees[t];
+            int leaf = tree.getLeafIndex(features);
+            int outputs = tree.getNumOutputs();
+
+            if(mFloatValues != null) {
+                for(int k = 0; k < outputs; k++) {
+                    activation[output + k] = mFloatValues[t][leaf * outputs + k];
+                }
+            }
+            else {
+                tree.getValues(leaf, activation, output);
+            }
+
+            output += outputs;
+        }
+
+        for(int l = 0; l < mLayerTypes.length; l++) {
+            activation = predictLayer(l, activation);
+        }
+
+        return activation;
+    }
+
+    public void predictBatch(int[][] features, double[][] out) {
+        for(int r = 0; r < features.length; r++) {
+            double[] prediction = predict(features[r]);
+            System.arraycopy(prediction, 0, out[r], 0, prediction.length);
+        }
+    }
+
+    protected double[] predictLayer(int layer, double[] features) {
+        if(mLayerTypes[layer] == ModelFormat.LAYER_IDENTITY) {
+            return features.clone();
+        }
+        else if(mLayerTypes[layer] == ModelFormat.LAYER_RECTIFIED_LINEAR_UNIT) {
+            double[] result = new double[features.length];
+
+            for(int i = 0; i < result.length; i++) {
+                result[i] = features[i] > 0.0 ? features[i] : 0.0;
+            }
+
+            return result;
+        }
+
+        int inputs = mLayerInputs[layer];
+        int numParameters = mFloatLayerParameters != null ? mFloatLayerParameters[layer].length : mLayerParameters[layer].length;
+        double[] result = new double[numParameters / (inputs + 1)];
+        int biasOffset = inputs * result.length;
+
+        for(int o = 0; o < result.length; o++) {
+            if(mFloatLayerParameters != null) {
+                float[] parameters = mFloatLayerParameters[layer];
+                result[o] = parameters[biasOffset + o];
+
+                for(int i = 0; i < features.length; i++) {
+                    result[o] += parameters[o * inputs + i] * features[i];
+                }
+            }
+            else {
+                double[] parameters = mLayerParameters[layer];
+                result[o] = parameters[biasOffset + o];
+
+                for(int i = 0; i < features.length; i++) {
+                    result[o] += parameters[o * inputs + i] * features[i];
+                }
+            }
+        }
+
+        return result;
+    }
+}
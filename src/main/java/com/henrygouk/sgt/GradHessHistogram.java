@@ -0,0 +1,386 @@
+package com.henrygouk.sgt;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A packed array of GradHessStats-equivalent slots.
+ *
+ * Each slot occupies STRIDE consecutive doubles holding the observation count, the gradient and hessian
+ * sums, the scaled gradient and hessian variances, and the scaled covariance. The update and merge rules
+ * are the same as those in GradHessStats, so the two representations produce identical statistics.
+ *
+ * A histogram can also start out sparse, in which case only the slots that have been written to are stored, in
+ * an open addressing hash table. Once the table would take up about as much memory as the dense array it is
+ * converted to the dense layout, and it stays dense from then on. Slots that are not stored read as empty.
+ */
+public class GradHessHistogram implements Serializable {
+
+    private static final long serialVersionUID = 4150693325412875930L;
+
+    public static final int STRIDE = 6;
+
+    protected static final int COUNT = 0;
+
+    protected static final int GRADIENT_SUM = 1;
+
+    protected static final int HESSIAN_SUM = 2;
+
+    protected static final int GRADIENT_SCALED_VARIANCE = 3;
+
+    protected static final int HESSIAN_SCALED_VARIANCE = 4;
+
+    protected static final int SCALED_COVARIANCE = 5;
+
+    protected static final int INITIAL_CAPACITY = 16;
+
+    // Either the dense array of slots, or the entries of the hash table in the same format
+    protected double[] mData;
+
+    // The slot stored in each entry of the hash table, or -1 for empty entries. Null if the histogram is dense.
+    protected int[] mKeys;
+
+    // Only used by sparse histograms
+    protected int mNumSlots;
+
+    protected int mNumEntries;
+
+    public GradHessHistogram(int slots) {
+        this(slots, false);
+    }
+
+    public GradHessHistogram(int slots, boolean sparse) {
+        mNumSlots = slots;
+
+        if(startsSparse(slots, sparse)) {
+            mKeys = new int[INITIAL_CAPACITY];
+            mData = new double[INITIAL_CAPACITY * STRIDE];
+            Arrays.fill(mKeys, -1);
+        }
+        else {
+            mData = new double[slots * STRIDE];
+        }
+    }
+
+    // Small histograms are always dense, as the hash table would not save any memory
+    protected static boolean startsSparse(int slots, boolean sparse) {
+        return sparse && INITIAL_CAPACITY * 2 < slots;
+    }
+
+    public int getNumSlots() {
+        return mKeys == null ? mData.length / STRIDE : mNumSlots;
+    }
+
+    public boolean isSparse() {
+        return mKeys != null;
+    }
+
+    public long getMemoryBytes() {
+        long result = getDenseMemoryBytes(mData.length / STRIDE);
+
+        return mKeys == null ? result : result + MemoryUsage.arrayBytes(mKeys.length, 4);
+    }
+
+    // The memory used by a dense histogram with the given number of slots
+    public static long getDenseMemoryBytes(int slots) {
+        return MemoryUsage.objectBytes(2 * MemoryUsage.REFERENCE + 2 * 4) + MemoryUsage.arrayBytes(slots * STRIDE, 8);
+    }
+
+    /**
+     * Writes the slots that are stored by a sparse histogram into slots, which must have room for every slot, and
+     * returns how many there are. Dense histograms write every slot.
+     */
+    public int getStoredSlots(int[] slots) {
+        if(mKeys == null) {
+            int n = getNumSlots();
+
+            for(int slot = 0; slot < n; slot++) {
+                slots[slot] = slot;
+            }
+
+            return n;
+        }
+
+        int n = 0;
+
+        for(int key : mKeys) {
+            if(key != -1) {
+                slots[n++] = key;
+            }
+        }
+
+        return n;
+    }
+
+    // Sparse histograms stay at their current capacity, so clearing and refilling a histogram does not allocate
+    public void clear() {
+        Arrays.fill(mData, 0.0);
+
+        if(mKeys != null) {
+            Arrays.fill(mKeys, -1);
+            mNumEntries = 0;
+        }
+    }
+
+    public void clear(int slot) {
+        int i = find(slot);
+
+        if(i != -1) {
+            Arrays.fill(mData, i, i + STRIDE, 0.0);
+        }
+    }
+
+    /**
+     * Returns the index in mData of a slot, or -1 if the slot is not stored.
+     */
+    protected int find(int slot) {
+        if(mKeys == null) {
+            return slot * STRIDE;
+        }
+
+        int mask = mKeys.length - 1;
+
+        for(int e = hash(slot) & mask; ; e = (e + 1) & mask) {
+            if(mKeys[e] == slot) {
+                return e * STRIDE;
+            }
+            else if(mKeys[e] == -1) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Returns the index in mData of a slot, adding an empty entry for it if it is not stored.
+     */
+    protected int findOrInsert(int slot) {
+        if(mKeys == null) {
+            return slot * STRIDE;
+        }
+
+        int mask = mKeys.length - 1;
+        int e = hash(slot) & mask;
+
+        while(mKeys[e] != -1) {
+            if(mKeys[e] == slot) {
+                return e * STRIDE;
+            }
+
+            e = (e + 1) & mask;
+        }
+
+        // Keep the load factor at or below one half
+        if((mNumEntries + 1) * 2 > mKeys.length) {
+            grow();
+
+            return findOrInsert(slot);
+        }
+
+        mKeys[e] = slot;
+        mNumEntries++;
+
+        return e * STRIDE;
+    }
+
+    protected void grow() {
+        int[] keys = mKeys;
+        double[] data = mData;
+        int capacity = keys.length * 2;
+
+        // Beyond this point the table would use more memory than the dense layout
+        if((long)capacity * (STRIDE * 8 + 4) >= (long)mNumSlots * STRIDE * 8) {
+            mKeys = null;
+            mData = new double[mNumSlots * STRIDE];
+
+            for(int e = 0; e < keys.length; e++) {
+                if(keys[e] != -1) {
+                    System.arraycopy(data, e * STRIDE, mData, keys[e] * STRIDE, STRIDE);
+                }
+            }
+
+            return;
+        }
+
+        mKeys = new int[capacity];
+        mData = new double[capacity * STRIDE];
+        mNumEntries = 0;
+        Arrays.fill(mKeys, -1);
+
+        for(int e = 0; e < keys.length; e++) {
+            if(keys[e] != -1) {
+                System.arraycopy(data, e * STRIDE, mData, findOrInsert(keys[e]), STRIDE);
+            }
+        }
+    }
+
+    protected static int hash(int slot) {
+        int h = slot * 0x9E3779B9;
+
+        return h ^ (h >>> 16);
+    }
+
+    public void addObservation(int slot, GradHess gradHess) {
+        int i = findOrInsert(slot);
+        double n = mData[i + COUNT];
+        double oldMeanGradient = n == 0 ? 0.0 : mData[i + GRADIENT_SUM] / n;
+        double oldMeanHessian = n == 0 ? 0.0 : mData[i + HESSIAN_SUM] / n;
+
+        mData[i + GRADIENT_SUM] += gradHess.gradient;
+        mData[i + HESSIAN_SUM] += gradHess.hessian;
+        n = ++mData[i + COUNT];
+
+        double newMeanGradient = mData[i + GRADIENT_SUM] / n;
+        double newMeanHessian = mData[i + HESSIAN_SUM] / n;
+
+        mData[i + GRADIENT_SCALED_VARIANCE] += (gradHess.gradient - oldMeanGradient) * (gradHess.gradient - newMeanGradient);
+        mData[i + HESSIAN_SCALED_VARIANCE] += (gradHess.hessian - oldMeanHessian) * (gradHess.hessian - newMeanHessian);
+        mData[i + SCALED_COVARIANCE] += (gradHess.gradient - oldMeanGradient) * (gradHess.hessian - newMeanHessian);
+    }
+
+    /**
+     * Merges the statistics in a slot of another histogram into a slot of this histogram.
+     */
+    public void add(int slot, GradHessHistogram other, int otherSlot) {
+        int j = other.find(otherSlot);
+        double[] src = other.mData;
+
+        if(j == -1 || src[j + COUNT] == 0) {
+            return;
+        }
+
+        int i = findOrInsert(slot);
+        // Inserting into this histogram may have replaced its arrays
+        src = other.mData;
+        j = other.find(otherSlot);
+
+        if(mData[i + COUNT] == 0) {
+            System.arraycopy(src, j, mData, i, STRIDE);
+            return;
+        }
+
+        double n1 = mData[i + COUNT];
+        double n2 = src[j + COUNT];
+        double meanDiffGradient = src[j + GRADIENT_SUM] / n2 - mData[i + GRADIENT_SUM] / n1;
+        double meanDiffHessian = src[j + HESSIAN_SUM] / n2 - mData[i + HESSIAN_SUM] / n1;
+
+        // See GradHessStats.add for where these come from
+        mData[i + GRADIENT_SCALED_VARIANCE] += src[j + GRADIENT_SCALED_VARIANCE] + Math.pow(meanDiffGradient, 2.0) * (n1 * n2) / (n1 + n2);
+        mData[i + HESSIAN_SCALED_VARIANCE] += src[j + HESSIAN_SCALED_VARIANCE] + Math.pow(meanDiffHessian, 2.0) * (n1 * n2) / (n1 + n2);
+        mData[i + SCALED_COVARIANCE] += src[j + SCALED_COVARIANCE] + meanDiffGradient * meanDiffHessian * (n1 * n2) / (n1 + n2);
+
+        mData[i + GRADIENT_SUM] += src[j + GRADIENT_SUM];
+        mData[i + HESSIAN_SUM] += src[j + HESSIAN_SUM];
+        mData[i + COUNT] += n2;
+    }
+
+    /**
+     * Removes the statistics in a slot of another histogram from a slot of this histogram, where the other slot
+     * holds a subset of the observations in this one. This inverts add, up to rounding error.
+     */
+    public void subtract(int slot, GradHessHistogram other, int otherSlot) {
+        int i = find(slot);
+        int j = other.find(otherSlot);
+        double[] src = other.mData;
+
+        if(i == -1 || j == -1 || src[j + COUNT] == 0) {
+            return;
+        }
+
+        double n = mData[i + COUNT];
+        double n2 = src[j + COUNT];
+        double n1 = n - n2;
+
+        if(n1 <= 0) {
+            clear(slot);
+            return;
+        }
+
+        double gradientSum = mData[i + GRADIENT_SUM] - src[j + GRADIENT_SUM];
+        double hessianSum = mData[i + HESSIAN_SUM] - src[j + HESSIAN_SUM];
+        double meanDiffGradient = src[j + GRADIENT_SUM] / n2 - gradientSum / n1;
+        double meanDiffHessian = src[j + HESSIAN_SUM] / n2 - hessianSum / n1;
+
+        mData[i + GRADIENT_SCALED_VARIANCE] = Math.max(0.0, mData[i + GRADIENT_SCALED_VARIANCE] - src[j + GRADIENT_SCALED_VARIANCE] - Math.pow(meanDiffGradient, 2.0) * (n1 * n2) / n);
+        mData[i + HESSIAN_SCALED_VARIANCE] = Math.max(0.0, mData[i + HESSIAN_SCALED_VARIANCE] - src[j + HESSIAN_SCALED_VARIANCE] - Math.pow(meanDiffHessian, 2.0) * (n1 * n2) / n);
+        mData[i + SCALED_COVARIANCE] -= src[j + SCALED_COVARIANCE] + meanDiffGradient * meanDiffHessian * (n1 * n2) / n;
+
+        mData[i + GRADIENT_SUM] = gradientSum;
+        mData[i + HESSIAN_SUM] = hessianSum;
+        mData[i + COUNT] = n1;
+    }
+
+    /**
+     * Merges every slot of another histogram with the same number of slots into this histogram.
+     */
+    public void add(GradHessHistogram other) {
+        if(other.mKeys != null) {
+            for(int key : other.mKeys) {
+                if(key != -1) {
+                    add(key, other, key);
+                }
+            }
+
+            return;
+        }
+
+        for(int slot = 0; slot < getNumSlots(); slot++) {
+            add(slot, other, slot);
+        }
+    }
+
+    public void set(int slot, GradHessHistogram other, int otherSlot) {
+        if(other.find(otherSlot) == -1) {
+            clear(slot);
+            return;
+        }
+
+        int i = findOrInsert(slot);
+        System.arraycopy(other.mData, other.find(otherSlot), mData, i, STRIDE);
+    }
+
+    protected double get(int slot, int field) {
+        int i = find(slot);
+
+        return i == -1 ? 0.0 : mData[i + field];
+    }
+
+    public int getObservationCount(int slot) {
+        return (int)get(slot, COUNT);
+    }
+
+    public double getMeanGradient(int slot) {
+        double n = get(slot, COUNT);
+
+        return n == 0 ? 0.0 : get(slot, GRADIENT_SUM) / n;
+    }
+
+    public double getMeanHessian(int slot) {
+        double n = get(slot, COUNT);
+
+        return n == 0 ? 0.0 : get(slot, HESSIAN_SUM) / n;
+    }
+
+    public double getDeltaLossMean(int slot, double deltaPrediction) {
+        return deltaPrediction * getMeanGradient(slot) + 0.5 * getMeanHessian(slot) * Math.pow(deltaPrediction, 2.0);
+    }
+
+    // Ignores the correlation between deltaPrediction and the statistics, see GradHessStats.getDeltaLossVariance
+    public double getDeltaLossVariance(int slot, double deltaPrediction) {
+        int i = find(slot);
+        double n = i == -1 ? 0.0 : mData[i + COUNT];
+        double gradientVariance = Double.POSITIVE_INFINITY;
+        double hessianVariance = Double.POSITIVE_INFINITY;
+        double covariance = Double.POSITIVE_INFINITY;
+
+        if(n >= 2) {
+            gradientVariance = mData[i + GRADIENT_SCALED_VARIANCE] / (n - 1);
+            hessianVariance = mData[i + HESSIAN_SCALED_VARIANCE] / (n - 1);
+            covariance = mData[i + SCALED_COVARIANCE] / (n - 1);
+        }
+
+        double gradTermVariance = Math.pow(deltaPrediction, 2.0) * gradientVariance;
+        double hessTermVariance = 0.25 * hessianVariance * Math.pow(deltaPrediction, 4.0);
+
+        return Math.max(0.0, gradTermVariance + hessTermVariance + Math.pow(deltaPrediction, 3.0) * covariance);
+    }
+}
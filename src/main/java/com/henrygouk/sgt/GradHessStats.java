@@ -34,17 +34,17 @@ public class GradHessStats implements Serializable {
             return;
         }
 
-        GradHess meanDiff = stats.getMean();
-        meanDiff.sub(getMean());
+        double meanDiffGradient = stats.mSum.gradient / stats.mObservations - mSum.gradient / mObservations;
+        double meanDiffHessian = stats.mSum.hessian / stats.mObservations - mSum.hessian / mObservations;
         int n1 = mObservations;
         int n2 = stats.mObservations;
 
         // Do scaled variance bit (see Wikipedia page on "Algorithms for calculating variance", section about parallel calculation)
-        mScaledVariance.gradient += stats.mScaledVariance.gradient + Math.pow(meanDiff.gradient, 2.0) * (n1 * n2) / (n1 + n2);
-        mScaledVariance.hessian += stats.mScaledVariance.hessian + Math.pow(meanDiff.hessian, 2.0) * (n1 * n2) / (n1 + n2);
+        mScaledVariance.gradient += stats.mScaledVariance.gradient + Math.pow(meanDiffGradient, 2.0) * ((double)n1 * n2) / (n1 + n2);
+        mScaledVariance.hessian += stats.mScaledVariance.hessian + Math.pow(meanDiffHessian, 2.0) * ((double)n1 * n2) / (n1 + n2);
 
         // Do scaled covariance bit (see "Numerically Stable, Single-Pass, Parallel Statistics Algorithms" (Bennett et al, 2009))
-        mScaledCovariance += stats.mScaledCovariance + meanDiff.gradient * meanDiff.hessian * (n1 * n2) / (n1 + n2);
+        mScaledCovariance += stats.mScaledCovariance + meanDiffGradient * meanDiffHessian * ((double)n1 * n2) / (n1 + n2);
 
         // Do the other bits
         mSum.add(stats.mSum);
@@ -52,15 +52,18 @@ public class GradHessStats implements Serializable {
     }
 
     public void addObservation(GradHess gradHess) {
-        GradHess oldMean = getMean();
+        // The means are computed inline to avoid allocating GradHess objects on this hot path
+        double oldMeanGradient = getMeanGradient();
+        double oldMeanHessian = getMeanHessian();
         mSum.add(gradHess);
         mObservations++;
-        GradHess newMean = getMean();
+        double newMeanGradient = getMeanGradient();
+        double newMeanHessian = getMeanHessian();
 
-        mScaledVariance.gradient += (gradHess.gradient - oldMean.gradient) * (gradHess.gradient - newMean.gradient);
-        mScaledVariance.hessian += (gradHess.hessian - oldMean.hessian) * (gradHess.hessian - newMean.hessian);
+        mScaledVariance.gradient += (gradHess.gradient - oldMeanGradient) * (gradHess.gradient - newMeanGradient);
+        mScaledVariance.hessian += (gradHess.hessian - oldMeanHessian) * (gradHess.hessian - newMeanHessian);
 
-        mScaledCovariance += (gradHess.gradient - oldMean.gradient) * (gradHess.hessian - newMean.hessian);
+        mScaledCovariance += (gradHess.gradient - oldMeanGradient) * (gradHess.hessian - newMeanHessian);
     }
 
     public GradHess getMean() {
@@ -72,6 +75,14 @@ public class GradHessStats implements Serializable {
         }
     }
 
+    public double getMeanGradient() {
+        return mObservations == 0 ? 0.0 : mSum.gradient / mObservations;
+    }
+
+    public double getMeanHessian() {
+        return mObservations == 0 ? 0.0 : mSum.hessian / mObservations;
+    }
+
     public GradHess getVariance() {
         if(mObservations < 2) {
             return new GradHess(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
@@ -98,9 +109,7 @@ public class GradHessStats implements Serializable {
     }
 
     public double getDeltaLossMean(double deltaPrediction) {
-        GradHess mean = getMean();
-
-        return deltaPrediction * mean.gradient + 0.5 * mean.hessian * Math.pow(deltaPrediction, 2.0);
+        return deltaPrediction * getMeanGradient() + 0.5 * getMeanHessian() * Math.pow(deltaPrediction, 2.0);
     }
 
     /*
@@ -108,11 +117,17 @@ public class GradHessStats implements Serializable {
         deltaPredicions is derived from the gradient and hessian sample, this assumption is definitely violated.
     */
     public double getDeltaLossVariance(double deltaPrediction) {
-        GradHess variance = getVariance();
+        double gradientVariance = Double.POSITIVE_INFINITY;
+        double hessianVariance = Double.POSITIVE_INFINITY;
         double covariance = getCovariance();
 
-        double gradTermVariance = Math.pow(deltaPrediction, 2.0) * variance.gradient;
-        double hessTermVariance = 0.25 * variance.hessian * Math.pow(deltaPrediction, 4.0);
+        if(mObservations >= 2) {
+            gradientVariance = mScaledVariance.gradient / (mObservations - 1);
+            hessianVariance = mScaledVariance.hessian / (mObservations - 1);
+        }
+
+        double gradTermVariance = Math.pow(deltaPrediction, 2.0) * gradientVariance;
+        double hessTermVariance = 0.25 * hessianVariance * Math.pow(deltaPrediction, 4.0);
 
         return Math.max(0.0, gradTermVariance + hessTermVariance + Math.pow(deltaPrediction, 3.0) * covariance);
     }
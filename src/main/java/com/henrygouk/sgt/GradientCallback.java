@@ -0,0 +1,10 @@
+package com.henrygouk.sgt;
+
+/**
+ * Turns the predictions made by a learner for an instance into the gradient information used to update it.
+ */
+public interface GradientCallback {
+
+    // Returning null skips the update for this instance
+    public GradHess[] computeGradients(double[] predictions);
+}
@@ -0,0 +1,299 @@
+package com.henrygouk.sgt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * A read-only model that makes predictions directly from a buffer in the format written by ModelFormat, which is
+ * usually a memory-mapped file. Only the offsets of each section are read when the model is loaded; nodes and
+ * weights are read from the buffer as they are needed.
+ *
+ * The buffer is only ever accessed with absolute reads, so predictions can be made from several threads at once.
+ */
+public class MappedModel implements MultiOutputLearner {
+
+    protected ByteBuffer mBuffer;
+
+    protected FeatureInfo[] mFeatureInfo;
+
+    protected int[] mTreeNodes;
+
+    protected int[] mTreeOutputs;
+
+    // Byte offsets of the feature, index, child, and value arrays of each tree
+    protected int[] mFeatureOffsets;
+
+    protected int[] mIndexOffsets;
+
+    protected int[] mChildOffsets;
+
+    protected int[] mValueOffsets;
+
+    protected int mNumTreeOutputs;
+
+    protected int[] mLayerTypes;
+
+    protected int[] mLayerInputs;
+
+    protected int[] mLayerOutputs;
+
+    // Byte offsets of the weights of each fully connected layer. The biases follow the weights.
+    protected int[] mWeightOffsets;
+
+    public MappedModel(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        int pos = 0;
+
+        if(buffer.getInt(pos) != ModelFormat.MAGIC) {
+            throw new IOException("Not a model file");
+        }
+
+        int version = buffer.getInt(pos + 4);
+
+        if(version < 1 || version > ModelFormat.VERSION) {
+            throw new IOException("Unsupported model format version " + version);
+        }
+
+        mFeatureInfo = new FeatureInfo[buffer.getInt(pos + 8)];
+        pos += 12;
+
+        for(int i = 0; i < mFeatureInfo.length; i++) {
+            mFeatureInfo[i] = new FeatureInfo();
+            mFeatureInfo[i].type = buffer.getInt(pos) == 0 ? FeatureType.nominal : FeatureType.ordinal;
+            mFeatureInfo[i].categories = buffer.getInt(pos + 4);
+            pos += 8;
+
+            // Version 1 did not store the default bins, which are only used by sparse instances
+            if(version >= 2) {
+                mFeatureInfo[i].implicitDefault = buffer.getInt(pos) != 0;
+                mFeatureInfo[i].defaultBin = buffer.getInt(pos + 4);
+                pos += 8;
+            }
+        }
+
+        int numTrees = buffer.getInt(pos);
+        pos += 4;
+        mTreeNodes = new int[numTrees];
+        mTreeOutputs = new int[numTrees];
+        mFeatureOffsets = new int[numTrees];
+        mIndexOffsets = new int[numTrees];
+        mChildOffsets = new int[numTrees];
+        mValueOffsets = new int[numTrees];
+
+        for(int t = 0; t < numTrees; t++) {
+            int nodes = buffer.getInt(pos);
+            mTreeNodes[t] = nodes;
+            mTreeOutputs[t] = buffer.getInt(pos + 4);
+            mNumTreeOutputs += mTreeOutputs[t];
+            mFeatureOffsets[t] = pos + 8;
+            mIndexOffsets[t] = mFeatureOffsets[t] + 4 * nodes;
+            mChildOffsets[t] = mIndexOffsets[t] + 4 * nodes;
+            mValueOffsets[t] = mChildOffsets[t] + 4 * nodes;
+            pos = mValueOffsets[t] + 8 * nodes * mTreeOutputs[t];
+        }
+
+        int numLayers = buffer.getInt(pos);
+        pos += 4;
+        mLayerTypes = new int[numLayers];
+        mLayerInputs = new int[numLayers];
+        mLayerOutputs = new int[numLayers];
+        mWeightOffsets = new int[numLayers];
+
+        for(int l = 0; l < numLayers; l++) {
+            mLayerTypes[l] = buffer.getInt(pos);
+            pos += 4;
+
+            if(mLayerTypes[l] == ModelFormat.LAYER_FULLY_CONNECTED) {
+                mLayerInputs[l] = buffer.getInt(pos);
+                mLayerOutputs[l] = buffer.getInt(pos + 4);
+                mWeightOffsets[l] = pos + 8;
+                pos = mWeightOffsets[l] + 8 * (mLayerInputs[l] + 1) * mLayerOutputs[l];
+            }
+        }
+    }
+
+    /**
+     * Only the offsets read when the model was loaded are counted, since the mapped file is not held on the heap.
+     */
+    public MemoryUsage getMemoryUsage() {
+        MemoryUsage result = new MemoryUsage();
+        result.structureBytes = 6 * MemoryUsage.arrayBytes(mTreeNodes.length, 4);
+        result.otherBytes = MemoryUsage.objectBytes(13 * MemoryUsage.REFERENCE + 4) + 4 * MemoryUsage.arrayBytes(mLayerTypes.length, 4)
+            + MemoryUsage.arrayBytes(mFeatureInfo.length, MemoryUsage.REFERENCE) + mFeatureInfo.length * MemoryUsage.objectBytes(2 * 4 + 1 + MemoryUsage.REFERENCE);
+
+        return result;
+    }
+
+    public FeatureInfo[] getFeatureInfo() {
+        return mFeatureInfo;
+    }
+
+    public int getNumNodes() {
+        int result = 0;
+
+        for(int t = 0; t < mTreeNodes.length; t++) {
+            result += mTreeNodes[t];
+        }
+
+        return result;
+    }
+
+    public int getNumNodeUpdates() {
+        return 0;
+    }
+
+    public int getNumSplits() {
+        int result = 0;
+
+        for(int t = 0; t < mTreeNodes.length; t++) {
+            for(int n = 0; n < mTreeNodes[t]; n++) {
+                if(mBuffer.getInt(mFeatureOffsets[t] + 4 * n) != -1) {
+                    result++;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    public int getMaxDepth() {
+        int result = 0;
+
+        for(int t = 0; t < mTreeNodes.length; t++) {
+            // Children are always stored after their parents, so depths can be computed in a single pass
+            int[] depths = new int[mTreeNodes[t]];
+            depths[0] = 1;
+
+            for(int n = 0; n < mTreeNodes[t]; n++) {
+                result = Math.max(result, depths[n]);
+                int feature = mBuffer.getInt(mFeatureOffsets[t] + 4 * n);
+
+                if(feature == -1) {
+                    continue;
+                }
+
+                int first = mBuffer.getInt(mChildOffsets[t] + 4 * n);
+                int children = mBuffer.getInt(mIndexOffsets[t] + 4 * n) == -1 ? mFeatureInfo[feature].categories : 2;
+
+                for(int c = 0; c < children; c++) {
+                    depths[first + c] = depths[n] + 1;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    public int getNumTrees() {
+        return mTreeNodes.length;
+    }
+
+    public void randomlyInitialize(Random rng, double predBound) {
+        throw new UnsupportedOperationException("Mapped models are read-only");
+    }
+
+    public void update(int[] features, GradHess[] gradHess) {
+        throw new UnsupportedOperationException("Mapped models are read-only");
+    }
+
+    public double[] predictAndUpdate(int[] features, GradientCallback callback) {
+        throw new UnsupportedOperationException("Mapped models are read-only");
+    }
+
+    public double[] predict(int[] features) {
+        double[] activation = new double[mNumTreeOutputs];
+        int output = 0;
+
+        for(int t = 0; t < mTreeNodes.length; t++) {
+            int leaf = getLeafIndex(t, features);
+            int offset = mValueOffsets[t] + 8 * leaf * mTreeOutputs[t];
+
+            for(int k = 0; k < mTreeOutputs[t]; k++) {
+                activation[output++] = mBuffer.getDouble(offset + 8 * k);
+            }
+        }
+
+        for(int l = 0; l < mLayerTypes.length; l++) {
+            activation = predictLayer(l, activation);
+        }
+
+        return activation;
+    }
+
+    public void predictBatch(int[][] features, double[][] out) {
+        for(int r = 0; r < features.length; r++) {
+            double[] prediction = predict(features[r]);
+            System.arraycopy(prediction, 0, out[r], 0, prediction.length);
+        }
+    }
+
+    protected int getLeafIndex(int tree, int[] features) {
+        int featureOffset = mFeatureOffsets[tree];
+        int indexOffset = mIndexOffsets[tree];
+        int childOffset = mChildOffsets[tree];
+        int node = 0;
+        int feature;
+
+        while((feature = mBuffer.getInt(featureOffset + 4 * node)) != -1) {
+            int value = features[feature];
+            int child = mBuffer.getInt(childOffset + 4 * node);
+
+            if(value == -1) {
+                node = child;
+            }
+            else {
+                int index = mBuffer.getInt(indexOffset + 4 * node);
+
+                if(index == -1) {
+                    node = child + value;
+                }
+                else if(value <= index) {
+                    node = child;
+                }
+                else {
+                    node = child + 1;
+                }
+            }
+        }
+
+        return node;
+    }
+
+    protected double[] predictLayer(int layer, double[] features) {
+        switch(mLayerTypes[layer]) {
+            case ModelFormat.LAYER_IDENTITY:
+                return features.clone();
+
+            case ModelFormat.LAYER_RECTIFIED_LINEAR_UNIT: {
+                double[] result = new double[features.length];
+
+                for(int i = 0; i < result.length; i++) {
+                    result[i] = features[i] > 0.0 ? features[i] : 0.0;
+                }
+
+                return result;
+            }
+
+            case ModelFormat.LAYER_FULLY_CONNECTED: {
+                int inputs = mLayerInputs[layer];
+                int weightOffset = mWeightOffsets[layer];
+                int biasOffset = weightOffset + 8 * inputs * mLayerOutputs[layer];
+                double[] result = new double[mLayerOutputs[layer]];
+
+                for(int o = 0; o < result.length; o++) {
+                    result[o] = mBuffer.getDouble(biasOffset + 8 * o);
+
+                    for(int i = 0; i < features.length; i++) {
+                        result[o] += mBuffer.getDouble(weightOffset + 8 * (o * inputs + i)) * features[i];
+                    }
+                }
+
+                return result;
+            }
+
+            default:
+                throw new IllegalStateException("Unknown layer type " + mLayerTypes[layer]);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.henrygouk.sgt;
+
+/**
+ * An analytical estimate of the heap memory used by a model, broken down by what the memory is used for. Sizes are
+ * computed from array lengths and field counts rather than measured, assuming a 64-bit JVM with compressed object
+ * pointers, so they are close to but not exactly what a heap dump would show.
+ */
+public class MemoryUsage {
+
+    public static final int OBJECT_HEADER = 12;
+
+    public static final int ARRAY_HEADER = 16;
+
+    public static final int REFERENCE = 4;
+
+    // Routing arrays, leaf values, and the node objects of trees
+    public long structureBytes;
+
+    // Split statistics held by leaves that are still being trained
+    public long leafStatisticsBytes;
+
+    // Weights, biases, and optimiser state of neural layers
+    public long layerParameterBytes;
+
+    // Scratch space and bookkeeping that does not grow with the model
+    public long otherBytes;
+
+    public long getTotalBytes() {
+        return structureBytes + leafStatisticsBytes + layerParameterBytes + otherBytes;
+    }
+
+    public MemoryUsage add(MemoryUsage other) {
+        structureBytes += other.structureBytes;
+        leafStatisticsBytes += other.leafStatisticsBytes;
+        layerParameterBytes += other.layerParameterBytes;
+        otherBytes += other.otherBytes;
+
+        return this;
+    }
+
+    public static long arrayBytes(int length, int elementBytes) {
+        return align(ARRAY_HEADER + (long)length * elementBytes);
+    }
+
+    /**
+     * The size of an object whose fields take up fieldBytes, not counting anything the fields refer to.
+     */
+    public static long objectBytes(int fieldBytes) {
+        return align(OBJECT_HEADER + fieldBytes);
+    }
+
+    protected static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    @Override
+    public String toString() {
+        return "structure: " + structureBytes + ", leaf statistics: " + leafStatisticsBytes + ", layer parameters: "
+            + layerParameterBytes + ", other: " + otherBytes + ", total: " + getTotalBytes();
+    }
+}
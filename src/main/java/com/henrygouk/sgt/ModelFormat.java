@@ -0,0 +1,174 @@
+package com.henrygouk.sgt;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.henrygouk.sgt.neural.FullyConnected;
+import com.henrygouk.sgt.neural.Identity;
+import com.henrygouk.sgt.neural.Layer;
+import com.henrygouk.sgt.neural.RectifiedLinearUnit;
+
+/**
+ * A compact binary format for the parts of a model that are needed to make predictions. Split statistics are
+ * not stored. The format is designed to be read in place by MappedModel.
+ *
+ * All values are big-endian. The layout is:
+ *
+ * <pre>
+ * int     magic number
+ * int     format version
+ * int     number of features
+ *         per feature: int type (0 nominal, 1 ordinal), int categories, int implicit default (0 or 1),
+ *                      int default bin
+ * int     number of trees
+ *         per tree: int nodes, int outputs,
+ *                   int[nodes] features, int[nodes] indices, int[nodes] first children,
+ *                   double[nodes * outputs] values
+ * int     number of layers
+ *         per layer: int type (0 identity, 1 rectified linear unit, 2 fully connected),
+ *                    fully connected layers are followed by int inputs, int outputs,
+ *                    double[outputs * inputs] weights, double[outputs] biases
+ * </pre>
+ *
+ * The outputs of the trees are concatenated and passed through the layers in order. Version 1 files, which do not
+ * store the implicit default or default bin of each feature, can still be read.
+ */
+public class ModelFormat {
+
+    public static final int MAGIC = 0x5347544d;
+
+    public static final int VERSION = 2;
+
+    public static final int LAYER_IDENTITY = 0;
+
+    public static final int LAYER_RECTIFIED_LINEAR_UNIT = 1;
+
+    public static final int LAYER_FULLY_CONNECTED = 2;
+
+    public static void save(StreamingGradientTree tree, Path path) throws IOException {
+        save(new FlatTree[] {tree.getStructure()}, new Layer[0], path);
+    }
+
+    /**
+     * Saves a committee, network, or multi-output tree.
+     */
+    public static void save(MultiOutputLearner learner, Path path) throws IOException {
+        if(learner instanceof StreamingGradientTreeCommittee) {
+            save(getStructures(((StreamingGradientTreeCommittee)learner).getTrees()), new Layer[0], path);
+        }
+        else if(learner instanceof StreamingGradientTreeNetwork) {
+            StreamingGradientTreeNetwork network = (StreamingGradientTreeNetwork)learner;
+            save(getStructures(network.getTrees()), network.getLayers(), path);
+        }
+        else if(learner instanceof MultiOutputStreamingGradientTree) {
+            save(new FlatTree[] {((MultiOutputStreamingGradientTree)learner).getStructure()}, new Layer[0], path);
+        }
+        else {
+            throw new IllegalArgumentException("Unsupported model type: " + learner.getClass().getName());
+        }
+    }
+
+    public static void save(FlatTree[] trees, Layer[] layers, Path path) throws IOException {
+        try(OutputStream out = Files.newOutputStream(path)) {
+            write(trees, layers, out);
+        }
+    }
+
+    public static void write(FlatTree[] trees, Layer[] layers, OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        FeatureInfo[] featureInfo = trees[0].getFeatureInfo();
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(featureInfo.length);
+
+        for(FeatureInfo info : featureInfo) {
+            out.writeInt(info.type == FeatureType.nominal ? 0 : 1);
+            out.writeInt(info.categories);
+            out.writeInt(info.implicitDefault ? 1 : 0);
+            out.writeInt(info.defaultBin);
+        }
+
+        out.writeInt(trees.length);
+
+        for(FlatTree tree : trees) {
+            int nodes = tree.getNumNodes();
+            out.writeInt(nodes);
+            out.writeInt(tree.getNumOutputs());
+
+            for(int n = 0; n < nodes; n++) {
+                out.writeInt(tree.getFeature(n));
+            }
+
+            for(int n = 0; n < nodes; n++) {
+                out.writeInt(tree.getIndex(n));
+            }
+
+            for(int n = 0; n < nodes; n++) {
+                out.writeInt(tree.isLeaf(n) ? -1 : tree.getChild(n, 0));
+            }
+
+            for(int n = 0; n < nodes; n++) {
+                for(int k = 0; k < tree.getNumOutputs(); k++) {
+                    out.writeDouble(tree.getValue(n, k));
+                }
+            }
+        }
+
+        out.writeInt(layers.length);
+
+        for(Layer layer : layers) {
+            if(layer instanceof Identity) {
+                out.writeInt(LAYER_IDENTITY);
+            }
+            else if(layer instanceof RectifiedLinearUnit) {
+                out.writeInt(LAYER_RECTIFIED_LINEAR_UNIT);
+            }
+            else if(layer instanceof FullyConnected) {
+                FullyConnected fc = (FullyConnected)layer;
+                out.writeInt(LAYER_FULLY_CONNECTED);
+                out.writeInt(fc.getNumInputs());
+                out.writeInt(fc.getNumOutputs());
+
+                for(double w : fc.getWeights()) {
+                    out.writeDouble(w);
+                }
+
+                for(double b : fc.getBiases()) {
+                    out.writeDouble(b);
+                }
+            }
+            else {
+                throw new IllegalArgumentException("Unsupported layer type: " + layer.getClass().getName());
+            }
+        }
+
+        out.flush();
+    }
+
+    /**
+     * Memory-maps a saved model. Nothing is copied onto the heap, so this takes the same time regardless of the
+     * size of the model. Files must be smaller than 2GB.
+     */
+    public static MappedModel map(Path path) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new MappedModel(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    protected static FlatTree[] getStructures(StreamingGradientTree[] trees) {
+        FlatTree[] result = new FlatTree[trees.length];
+
+        for(int i = 0; i < trees.length; i++) {
+            result[i] = trees[i].getPublishedStructure();
+        }
+
+        return result;
+    }
+}
@@ -19,4 +19,30 @@ public interface MultiOutputLearner {
     public void update(int[] features, GradHess[] gradHess);
 
     public double[] predict(int[] features);
+
+    // Makes a prediction and then updates with the gradients returned by the callback, routing the instance only once
+    public double[] predictAndUpdate(int[] features, GradientCallback callback);
+
+    // Learners without a sparse path of their own expand sparse instances into dense ones
+    public default void update(SparseFeatures features, GradHess[] gradHess) {
+        update(features.toDense(), gradHess);
+    }
+
+    public default double[] predict(SparseFeatures features) {
+        return predict(features.toDense());
+    }
+
+    public default double[] predictAndUpdate(SparseFeatures features, GradientCallback callback) {
+        return predictAndUpdate(features.toDense(), callback);
+    }
+
+    // Writes the predictions for features[i] into out[i], which must already be allocated
+    public void predictBatch(int[][] features, double[][] out);
+
+    // An estimate of the heap memory used by the model, broken down by what it is used for
+    public MemoryUsage getMemoryUsage();
+
+    public default long getMemoryBytes() {
+        return getMemoryUsage().getTotalBytes();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,532 @@
+package com.henrygouk.sgt;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * A streaming gradient tree whose leaves predict a vector of outputs, rather than a committee with one tree per
+ * output. Every output shares the same routing, and splits are chosen using the loss reduction summed over all of
+ * the outputs.
+ *
+ * Although every output sees the same instances, the instance counts are not shared. Each bin keeps one
+ * GradHessHistogram slot per output, and each slot has its own count. The copies always agree, at the cost of one
+ * extra double per bin and output. This is deliberate: GradHessHistogram updates the statistics of a slot using that
+ * slot's own count, so a shared count would need a separate histogram type.
+ *
+ * The variance of the summed loss reduction is approximated by the sum of the per-output variances, which
+ * ignores the covariance between outputs.
+ *
+ * The maxMemoryBytes, cacheSplitCandidates and parallelSplitSearch options are not supported, and the constructor
+ * rejects options that enable them.
+ */
+public class MultiOutputStreamingGradientTree extends AbstractStreamingGradientTree implements MultiOutputLearner {
+
+    private static final long serialVersionUID = 2405862262379372412L;
+
+    protected int mNumOutputs;
+
+    // Indexed by node id. Internal nodes are set to null once they have been split.
+    protected Node[] mLeaves;
+
+    protected int mMaxDepth;
+
+    // The histogram slot holding bin 0 of each feature. Slot 0 holds the statistics for the whole leaf. Each slot
+    // is made up of mNumOutputs consecutive slots in the underlying GradHessHistogram.
+    protected int[] mBinOffsets;
+
+    protected int mNumSlots;
+
+    protected int mMaxCategories;
+
+    // Scratch space that is reused by every split search so that training does not allocate in steady state
+    protected Split mUpdateSplit;
+
+    protected Split mBestSplit;
+
+    protected Split mCandidateSplit;
+
+    protected GradHessHistogram mForwardCumulativeSum;
+
+    protected GradHessHistogram mBackwardCumulativeSum;
+
+    // The left and right delta predictions of the ordinal split point currently being evaluated
+    protected double[] mSplitPointDeltas;
+
+    public MultiOutputStreamingGradientTree(FeatureInfo[] featureInfo, StreamingGradientTreeOptions options, int numOutputs) {
+        super(featureInfo, options);
+
+        if(options.maxMemoryBytes > 0) {
+            throw new IllegalArgumentException("Memory budgets are not supported by trees with vector leaves");
+        }
+        else if(options.cacheSplitCandidates) {
+            throw new IllegalArgumentException("Split candidate caching is not supported by trees with vector leaves");
+        }
+        else if(options.parallelSplitSearch) {
+            throw new IllegalArgumentException("Parallel split search is not supported by trees with vector leaves");
+        }
+
+        mNumOutputs = numOutputs;
+        mBinOffsets = new int[mFeatureInfo.length];
+        mNumSlots = 1;
+        mMaxCategories = 2;
+
+        for(int i = 0; i < mFeatureInfo.length; i++) {
+            mBinOffsets[i] = mNumSlots;
+            mNumSlots += mFeatureInfo[i].categories;
+            mMaxCategories = Math.max(mMaxCategories, mFeatureInfo[i].categories);
+        }
+
+        mUpdateSplit = new Split(1);
+        mBestSplit = new Split(mMaxCategories);
+        mCandidateSplit = new Split(mMaxCategories);
+        mForwardCumulativeSum = new GradHessHistogram((mMaxCategories - 1) * mNumOutputs);
+        mBackwardCumulativeSum = new GradHessHistogram((mMaxCategories - 1) * mNumOutputs);
+        mSplitPointDeltas = new double[2 * mNumOutputs];
+
+        double[] rootValues = new double[mNumOutputs];
+        Arrays.fill(rootValues, options.initialPrediction);
+        mStructure = new FlatTree(mFeatureInfo, rootValues);
+        mLeaves = new Node[16];
+
+        new Node(0, 1, new boolean[mFeatureInfo.length]);
+        publishSnapshot(true);
+    }
+
+    public int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    public int getNumTrees() {
+        return 1;
+    }
+
+    public int getNumOutputs() {
+        return mNumOutputs;
+    }
+
+    public MemoryUsage getMemoryUsage() {
+        MemoryUsage result = new MemoryUsage();
+        FlatTree snapshot = mSnapshot;
+        result.structureBytes = mStructure.getMemoryBytes() + MemoryUsage.arrayBytes(mLeaves.length, MemoryUsage.REFERENCE);
+
+        if(snapshot != null) {
+            result.structureBytes += snapshot.getMemoryBytes();
+        }
+
+        for(Node leaf : mLeaves) {
+            if(leaf == null) {
+                continue;
+            }
+
+            result.structureBytes += leaf.getMemoryBytes();
+
+            if(leaf.mStats != null) {
+                result.leafStatisticsBytes += leaf.mStats.getMemoryBytes();
+            }
+        }
+
+        result.otherBytes = MemoryUsage.objectBytes(13 * MemoryUsage.REFERENCE + 6 * 4)
+            + MemoryUsage.arrayBytes(mFeatureInfo.length, MemoryUsage.REFERENCE)
+            + mFeatureInfo.length * MemoryUsage.objectBytes(4 + MemoryUsage.REFERENCE)
+            + MemoryUsage.arrayBytes(mBinOffsets.length, 4) + mUpdateSplit.getMemoryBytes() + mBestSplit.getMemoryBytes()
+            + mCandidateSplit.getMemoryBytes() + mForwardCumulativeSum.getMemoryBytes()
+            + mBackwardCumulativeSum.getMemoryBytes() + MemoryUsage.arrayBytes(mSplitPointDeltas.length, 8);
+
+        if(mCriticalValues != null) {
+            result.otherBytes += mCriticalValues.getMemoryBytes();
+        }
+
+        return result;
+    }
+
+    public void randomlyInitialize(Random rng, double predBound) {
+        int fid = rng.nextInt(mFeatureInfo.length);
+        int index = -1;
+        int numChildren = 2;
+        mNumSplits++;
+
+        if(mFeatureInfo[fid].type == FeatureType.nominal) {
+            numChildren = mFeatureInfo[fid].categories;
+        }
+        else if(mFeatureInfo[fid].type == FeatureType.ordinal) {
+            index = rng.nextInt(mFeatureInfo[fid].categories / 2) + mFeatureInfo[fid].categories / 4;
+        }
+
+        double[] childValues = new double[numChildren * mNumOutputs];
+
+        for(int i = 0; i < childValues.length; i++) {
+            childValues[i] = predBound * (2.0 * rng.nextDouble() - 1.0);
+        }
+
+        int first = mStructure.split(0, fid, index, childValues);
+        mLeaves[0] = null;
+
+        for(int i = 0; i < numChildren; i++) {
+            new Node(first + i, 2, new boolean[mFeatureInfo.length]);
+        }
+
+        publishSnapshot(true);
+    }
+
+    public void update(int[] features, GradHess[] gradHess) {
+        update(mStructure.getLeafIndex(features), features, gradHess);
+    }
+
+    protected void update(int leafIndex, int[] features, GradHess[] gradHess) {
+        Node leaf = mLeaves[leafIndex];
+        leaf.update(features, gradHess);
+
+        if(leaf.isCheckDue()) {
+            attemptSplit(leaf);
+        }
+    }
+
+    public double[] predict(int[] features) {
+        FlatTree structure = getPublishedStructure();
+        double[] result = new double[mNumOutputs];
+        structure.getValues(structure.getLeafIndex(features), result, 0);
+
+        return result;
+    }
+
+    public double[] predictAndUpdate(int[] features, GradientCallback callback) {
+        int leafIndex = mStructure.getLeafIndex(features);
+        double[] result = new double[mNumOutputs];
+        mStructure.getValues(leafIndex, result, 0);
+        GradHess[] gradHess = callback.computeGradients(result);
+
+        if(gradHess != null) {
+            update(leafIndex, features, gradHess);
+        }
+
+        return result;
+    }
+
+    public void predictBatch(int[][] features, double[][] out) {
+        FlatTree structure = getPublishedStructure();
+        int blocks = (features.length + FlatTree.BLOCK_SIZE - 1) / FlatTree.BLOCK_SIZE;
+
+        IntStream.range(0, blocks)
+                 .parallel()
+                 .forEach(b -> {
+                     int start = b * FlatTree.BLOCK_SIZE;
+                     int end = Math.min(start + FlatTree.BLOCK_SIZE, features.length);
+                     int[] leaves = new int[FlatTree.BLOCK_SIZE];
+                     structure.getLeafIndices(features, start, end, leaves);
+
+                     for(int r = start; r < end; r++) {
+                         structure.getValues(leaves[r - start], out[r], 0);
+                     }
+                 });
+    }
+
+    protected void attemptSplit(Node leaf) {
+        Split bestSplit = leaf.findBestSplit();
+
+        if(isSignificant(bestSplit.lossMean, bestSplit.lossVariance, leaf.mInstances) && bestSplit.lossMean < 0.0) {
+            leaf.applySplit(bestSplit);
+        }
+        else {
+            leaf.mNextCheck = getNextCheck(leaf.mInstances, bestSplit.lossMean, bestSplit.lossVariance);
+        }
+    }
+
+    protected class Split implements Serializable {
+        private static final long serialVersionUID = -3181005453328498129L;
+
+        //lossMean and lossVariance are statistics of the approximation to the *change* in loss, summed over outputs.
+
+        double lossMean = 0;
+        double lossVariance = 0;
+        // The delta prediction for output k of child c is stored at c * mNumOutputs + k
+        double[] deltaPredictions;
+        int feature = -1;
+        int index = -1;
+
+        Split(int maxCategories) {
+            deltaPredictions = new double[maxCategories * mNumOutputs];
+        }
+
+        long getMemoryBytes() {
+            return MemoryUsage.objectBytes(2 * 8 + 2 * 4 + 2 * MemoryUsage.REFERENCE) + MemoryUsage.arrayBytes(deltaPredictions.length, 8);
+        }
+    }
+
+    protected class Node implements Serializable {
+
+        private static final long serialVersionUID = 6302475530071393906L;
+
+        protected int mId;
+
+        protected int mInstances;
+
+        // The value of mInstances at which this leaf is next checked for a split
+        protected int mNextCheck;
+
+        // Output k of slot s is stored in slot s * mNumOutputs + k
+        protected GradHessHistogram mStats;
+
+        protected int mDepth;
+
+        protected boolean[] mHasSplit;
+
+        public Node(int id, int depth, boolean[] hasSplit) {
+            mId = id;
+            mDepth = depth;
+            mMaxDepth = Math.max(mMaxDepth, mDepth);
+            mHasSplit = hasSplit.clone();
+
+            if(mId >= mLeaves.length) {
+                mLeaves = Arrays.copyOf(mLeaves, Math.max(mLeaves.length * 2, mId + 1));
+            }
+
+            mLeaves[mId] = this;
+
+            reset();
+        }
+
+        public void reset() {
+            if(mStats == null) {
+                mStats = new GradHessHistogram(mNumSlots * mNumOutputs, mOptions.sparseHistograms);
+            }
+            else {
+                mStats.clear();
+            }
+
+            mInstances = 0;
+            mNextCheck = mOptions.gracePeriod;
+        }
+
+        void update(int[] features, GradHess[] gradHess) {
+            mInstances++;
+
+            for(int i = 0; i < features.length; i++) {
+                if(features[i] == -1) {
+                    continue;
+                }
+
+                int slot = (mBinOffsets[i] + features[i]) * mNumOutputs;
+
+                for(int k = 0; k < mNumOutputs; k++) {
+                    mStats.addObservation(slot + k, gradHess[k]);
+                }
+            }
+
+            for(int k = 0; k < mNumOutputs; k++) {
+                mStats.addObservation(k, gradHess[k]);
+            }
+        }
+
+        // Does not include the histogram
+        long getMemoryBytes() {
+            return MemoryUsage.objectBytes(4 * 4 + 3 * MemoryUsage.REFERENCE) + MemoryUsage.arrayBytes(mHasSplit.length, 1);
+        }
+
+        public int instancesUntilCheck() {
+            return mNextCheck - mInstances;
+        }
+
+        public boolean isCheckDue() {
+            return mInstances >= mNextCheck;
+        }
+
+        /**
+         * Finds the best split for this leaf. The returned object is reused by subsequent searches, so it
+         * should be applied or copied before this method is called again.
+         */
+        public Split findBestSplit() {
+            Split best = mUpdateSplit;
+
+            // We can try to update the prediction using the new gradient information
+            computeDeltaPredictions(mStats, 0, best.deltaPredictions, 0);
+            best.lossMean = computeDeltaLossMean(mStats, 0, best.deltaPredictions, 0);
+            best.lossVariance = computeDeltaLossVariance(mStats, 0, best.deltaPredictions, 0);
+            best.feature = -1;
+            best.index = -1;
+
+            Split featureBest = null;
+            Split candidate = mCandidateSplit;
+
+            for(int i = 0; i < mFeatureInfo.length; i++) {
+                if(!evaluateFeature(i, candidate)) {
+                    continue;
+                }
+
+                if(candidate.lossMean < (featureBest == null ? Double.POSITIVE_INFINITY : featureBest.lossMean)) {
+                    Split tmp = featureBest == null ? mBestSplit : featureBest;
+                    featureBest = candidate;
+                    candidate = tmp;
+                }
+            }
+
+            if(featureBest != null && featureBest.lossMean < best.lossMean) {
+                best = featureBest;
+            }
+
+            return best;
+        }
+
+        /**
+         * Computes the best split on a single feature, writing the result into candidate.
+         *
+         * @return false if the feature cannot be split on at this leaf
+         */
+        protected boolean evaluateFeature(int i, Split candidate) {
+            candidate.feature = i;
+            candidate.index = -1;
+            int offset = mBinOffsets[i];
+            int categories = mFeatureInfo[i].categories;
+
+            if(mFeatureInfo[i].type == FeatureType.nominal) {
+                if(mHasSplit[i]) {
+                    return false;
+                }
+
+                double lossMean = 0.0;
+                double lossVar = 0.0;
+                int observations = 0;
+
+                for(int j = 0; j < categories; j++) {
+                    computeDeltaPredictions(mStats, offset + j, candidate.deltaPredictions, j * mNumOutputs);
+                    double m = computeDeltaLossMean(mStats, offset + j, candidate.deltaPredictions, j * mNumOutputs);
+                    double s = computeDeltaLossVariance(mStats, offset + j, candidate.deltaPredictions, j * mNumOutputs);
+                    int n = mStats.getObservationCount((offset + j) * mNumOutputs);
+
+                    lossMean = GradHessStats.combineMean(lossMean, observations, m, n);
+                    lossVar = GradHessStats.combineVariance(lossMean, lossVar, observations, m, s, n);
+                    observations += n;
+                }
+
+                candidate.lossMean = lossMean + categories * mOptions.gamma / mInstances;
+                candidate.lossVariance = lossVar;
+            }
+            else if(mFeatureInfo[i].type == FeatureType.ordinal) {
+                GradHessHistogram forward = mForwardCumulativeSum;
+                GradHessHistogram backward = mBackwardCumulativeSum;
+
+                // Compute the split stats for each possible split point
+                for(int j = 0; j < categories - 1; j++) {
+                    for(int k = 0; k < mNumOutputs; k++) {
+                        int slot = j * mNumOutputs + k;
+                        forward.set(slot, mStats, (offset + j) * mNumOutputs + k);
+
+                        if(j > 0) {
+                            forward.add(slot, forward, slot - mNumOutputs);
+                        }
+                    }
+                }
+
+                for(int j = categories - 2; j >= 0; j--) {
+                    for(int k = 0; k < mNumOutputs; k++) {
+                        int slot = j * mNumOutputs + k;
+                        backward.set(slot, mStats, (offset + j + 1) * mNumOutputs + k);
+
+                        if(j + 1 < categories - 1) {
+                            backward.add(slot, backward, slot + mNumOutputs);
+                        }
+                    }
+                }
+
+                candidate.lossMean = Double.POSITIVE_INFINITY;
+                double[] deltas = mSplitPointDeltas;
+
+                for(int j = 0; j < categories - 1; j++) {
+                    computeDeltaPredictions(forward, j, deltas, 0);
+                    double lossMeanLeft = computeDeltaLossMean(forward, j, deltas, 0);
+                    double lossVarLeft = computeDeltaLossVariance(forward, j, deltas, 0);
+                    int numLeft = forward.getObservationCount(j * mNumOutputs);
+
+                    computeDeltaPredictions(backward, j, deltas, mNumOutputs);
+                    double lossMeanRight = computeDeltaLossMean(backward, j, deltas, mNumOutputs);
+                    double lossVarRight = computeDeltaLossVariance(backward, j, deltas, mNumOutputs);
+                    int numRight = backward.getObservationCount(j * mNumOutputs);
+
+                    double lossMean = GradHessStats.combineMean(lossMeanLeft, numLeft, lossMeanRight, numRight);
+                    double lossVar = GradHessStats.combineVariance(lossMeanLeft, lossVarLeft, numLeft, lossMeanRight, lossVarRight, numRight);
+
+                    if(lossMean < candidate.lossMean) {
+                        candidate.lossMean = lossMean + 2.0 * mOptions.gamma / mInstances;
+                        candidate.lossVariance = lossVar;
+                        candidate.index = j;
+                        System.arraycopy(deltas, 0, candidate.deltaPredictions, 0, 2 * mNumOutputs);
+                    }
+                }
+            }
+            else {
+                System.err.println("Unhandled attribute type");
+                return false;
+            }
+
+            return true;
+        }
+
+        public void applySplit(Split split) {
+
+            //Should we just update the prediction being made?
+            if(split.feature == -1) {
+                for(int k = 0; k < mNumOutputs; k++) {
+                    mStructure.setValue(mId, k, mStructure.getValue(mId, k) + split.deltaPredictions[k]);
+                }
+
+                mNumNodeUpdates++;
+                reset();
+                publishSnapshot(false);
+                return;
+            }
+
+            mNumSplits++;
+            mHasSplit[split.feature] = true;
+
+            int numChildren = mFeatureInfo[split.feature].type == FeatureType.nominal ? mFeatureInfo[split.feature].categories : 2;
+            double[] childValues = new double[numChildren * mNumOutputs];
+
+            for(int i = 0; i < numChildren; i++) {
+                for(int k = 0; k < mNumOutputs; k++) {
+                    childValues[i * mNumOutputs + k] = mStructure.getValue(mId, k) + split.deltaPredictions[i * mNumOutputs + k];
+                }
+            }
+
+            int index = mFeatureInfo[split.feature].type == FeatureType.ordinal ? split.index : -1;
+            int first = mStructure.split(mId, split.feature, index, childValues);
+
+            for(int i = 0; i < numChildren; i++) {
+                new Node(first + i, mDepth + 1, mHasSplit);
+            }
+
+            //This node is no longer a leaf, so the split stats can be freed along with the node itself
+            mLeaves[mId] = null;
+            mStats = null;
+
+            publishSnapshot(true);
+        }
+    }
+
+    protected void computeDeltaPredictions(GradHessHistogram stats, int slot, double[] deltas, int offset) {
+        for(int k = 0; k < mNumOutputs; k++) {
+            int s = slot * mNumOutputs + k;
+            deltas[offset + k] = -stats.getMeanGradient(s) / (stats.getMeanHessian(s) + Double.MIN_NORMAL + mOptions.lambda);
+        }
+    }
+
+    protected double computeDeltaLossMean(GradHessHistogram stats, int slot, double[] deltas, int offset) {
+        double result = 0.0;
+
+        for(int k = 0; k < mNumOutputs; k++) {
+            result += stats.getDeltaLossMean(slot * mNumOutputs + k, deltas[offset + k]);
+        }
+
+        return result;
+    }
+
+    protected double computeDeltaLossVariance(GradHessHistogram stats, int slot, double[] deltas, int offset) {
+        double result = 0.0;
+
+        for(int k = 0; k < mNumOutputs; k++) {
+            result += stats.getDeltaLossVariance(slot * mNumOutputs + k, deltas[offset + k]);
+        }
+
+        return result;
+    }
+}
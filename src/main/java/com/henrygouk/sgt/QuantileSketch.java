@@ -0,0 +1,260 @@
+package com.henrygouk.sgt;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A KLL-style sketch that estimates the quantiles of a stream of values in bounded memory.
+ *
+ * Items are kept in a stack of compactors, where an item in level h stands for 2^h values. When the sketch holds more
+ * items than its capacity, the lowest overfull level is sorted and every other item is promoted to the next level.
+ * The capacity of a level shrinks geometrically with its distance from the top, so the sketch holds roughly 3k items
+ * regardless of the length of the stream.
+ *
+ * While no more than maxDistinct different values have been seen, the sketch also keeps each of them exactly.
+ */
+public class QuantileSketch implements Serializable {
+
+    private static final long serialVersionUID = 5187706023949312851L;
+
+    protected static final double CAPACITY_DECAY = 2.0 / 3.0;
+
+    protected int mK;
+
+    protected int mMaxDistinct;
+
+    protected long mCount;
+
+    protected double[][] mLevels;
+
+    protected int[] mSizes;
+
+    protected int mNumLevels;
+
+    // Sorted, or null once more than mMaxDistinct values have been seen
+    protected double[] mDistinct;
+
+    protected int mNumDistinct;
+
+    protected Random mRandom;
+
+    public QuantileSketch(int k, int maxDistinct) {
+        mK = k;
+        mMaxDistinct = maxDistinct;
+        mLevels = new double[1][];
+        mSizes = new int[1];
+        mLevels[0] = new double[k];
+        mNumLevels = 1;
+        mDistinct = new double[Math.min(maxDistinct, 16)];
+        mRandom = new Random(mK);
+    }
+
+    /**
+     * The number of values that have been added, including their multiplicities.
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    public void update(double value) {
+        update(value, 1);
+    }
+
+    /**
+     * Adds count copies of value. Each bit of count places a single item in the matching level.
+     */
+    public void update(double value, long count) {
+        if(Double.isNaN(value) || count <= 0) {
+            return;
+        }
+
+        mCount += count;
+        updateDistinct(value);
+
+        for(int h = 0; count != 0; h++, count >>>= 1) {
+            if((count & 1) != 0) {
+                add(h, value);
+            }
+        }
+
+        compress();
+    }
+
+    /**
+     * Returns the different values that have been added in ascending order, or null if there were more than
+     * maxDistinct of them.
+     */
+    public double[] getDistinctValues() {
+        return mDistinct == null ? null : Arrays.copyOf(mDistinct, mNumDistinct);
+    }
+
+    /**
+     * Estimates the value below which a fraction q of the stream lies.
+     */
+    public double getQuantile(double q) {
+        return getQuantiles(new double[] {q})[0];
+    }
+
+    /**
+     * Estimates several quantiles at once. The fractions must be in ascending order.
+     */
+    public double[] getQuantiles(double[] fractions) {
+        int total = 0;
+
+        for(int h = 0; h < mNumLevels; h++) {
+            total += mSizes[h];
+        }
+
+        double[] values = new double[total];
+        long[] weights = new long[total];
+        Integer[] order = new Integer[total];
+        int n = 0;
+
+        for(int h = 0; h < mNumLevels; h++) {
+            for(int i = 0; i < mSizes[h]; i++) {
+                values[n] = mLevels[h][i];
+                weights[n] = 1L << h;
+                order[n] = n;
+                n++;
+            }
+        }
+
+        Arrays.sort(order, (a, b) -> Double.compare(values[a], values[b]));
+
+        double[] result = new double[fractions.length];
+        long cumulative = 0;
+        int j = 0;
+
+        for(int f = 0; f < fractions.length; f++) {
+            double rank = fractions[f] * mCount;
+
+            while(j < total - 1 && cumulative + weights[order[j]] < rank) {
+                cumulative += weights[order[j]];
+                j++;
+            }
+
+            result[f] = total == 0 ? Double.NaN : values[order[j]];
+        }
+
+        return result;
+    }
+
+    public long getMemoryBytes() {
+        long result = MemoryUsage.objectBytes(4 * 4 + 8 + 5 * MemoryUsage.REFERENCE)
+            + MemoryUsage.arrayBytes(mLevels.length, MemoryUsage.REFERENCE) + MemoryUsage.arrayBytes(mSizes.length, 4)
+            + MemoryUsage.objectBytes(8 + 8 + 1);
+
+        for(int h = 0; h < mNumLevels; h++) {
+            result += MemoryUsage.arrayBytes(mLevels[h].length, 8);
+        }
+
+        if(mDistinct != null) {
+            result += MemoryUsage.arrayBytes(mDistinct.length, 8);
+        }
+
+        return result;
+    }
+
+    protected void updateDistinct(double value) {
+        if(mDistinct == null) {
+            return;
+        }
+
+        int index = Arrays.binarySearch(mDistinct, 0, mNumDistinct, value);
+
+        if(index >= 0) {
+            return;
+        }
+        else if(mNumDistinct == mMaxDistinct) {
+            mDistinct = null;
+            return;
+        }
+
+        index = -index - 1;
+
+        if(mNumDistinct == mDistinct.length) {
+            mDistinct = Arrays.copyOf(mDistinct, Math.min(mMaxDistinct, mDistinct.length * 2));
+        }
+
+        System.arraycopy(mDistinct, index, mDistinct, index + 1, mNumDistinct - index);
+        mDistinct[index] = value;
+        mNumDistinct++;
+    }
+
+    protected int getCapacity(int level) {
+        return Math.max(2, (int)Math.ceil(mK * Math.pow(CAPACITY_DECAY, mNumLevels - 1 - level)));
+    }
+
+    protected void add(int level, double value) {
+        while(level >= mNumLevels) {
+            addLevel();
+        }
+
+        if(mSizes[level] == mLevels[level].length) {
+            mLevels[level] = Arrays.copyOf(mLevels[level], mLevels[level].length * 2);
+        }
+
+        mLevels[level][mSizes[level]++] = value;
+    }
+
+    protected void addLevel() {
+        if(mNumLevels == mLevels.length) {
+            mLevels = Arrays.copyOf(mLevels, mNumLevels * 2);
+            mSizes = Arrays.copyOf(mSizes, mNumLevels * 2);
+        }
+
+        mLevels[mNumLevels] = new double[2];
+        mNumLevels++;
+    }
+
+    protected void compress() {
+        int size = 0;
+        int capacity = 0;
+
+        for(int h = 0; h < mNumLevels; h++) {
+            size += mSizes[h];
+            capacity += getCapacity(h);
+        }
+
+        while(size > capacity) {
+            int level = 0;
+
+            while(mSizes[level] < getCapacity(level)) {
+                level++;
+            }
+
+            // Capacities depend on the number of levels, so they are recomputed if compacting adds one
+            int before = mNumLevels;
+            size -= compact(level);
+
+            if(mNumLevels != before) {
+                capacity = 0;
+
+                for(int h = 0; h < mNumLevels; h++) {
+                    capacity += getCapacity(h);
+                }
+            }
+        }
+    }
+
+    // Promotes every other item of a level to the next one, and returns the number of items removed
+    protected int compact(int level) {
+        double[] items = mLevels[level];
+        int size = mSizes[level];
+        int paired = size & ~1;
+        int offset = mRandom.nextBoolean() ? 1 : 0;
+
+        Arrays.sort(items, 0, size);
+
+        for(int i = offset; i < paired; i += 2) {
+            add(level + 1, items[i]);
+        }
+
+        // With an odd number of items, the largest one stays behind
+        items[0] = items[size - 1];
+        mSizes[level] = size - paired;
+
+        return paired / 2;
+    }
+}
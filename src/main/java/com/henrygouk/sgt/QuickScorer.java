@@ -0,0 +1,406 @@
+package com.henrygouk.sgt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Evaluates a set of trees feature by feature rather than tree by tree, following QuickScorer (Lucchese et al.,
+ * 2015). The leaves of each tree are numbered from left to right and every tree keeps a bitvector of the leaves
+ * that can still be reached. Each split is turned into a mask that clears the leaves ruled out when the split is
+ * not taken, and after all the masks for an instance have been applied the lowest remaining bit of each tree is
+ * its exit leaf. This replaces the data-dependent branches of tree traversal with a small number of predictable
+ * loops.
+ *
+ * Features are already discretised, so the ordinal splits on each feature are sorted by their index and the
+ * number of splits ruled out by each bin is precomputed. No comparisons are needed to find the masks for an
+ * instance. Nominal splits store one mask per category.
+ *
+ * Predictions are identical to those of the trees this was built from.
+ */
+public class QuickScorer implements MultiOutputLearner {
+
+    protected FlatTree[] mTrees;
+
+    protected int mNumOutputs;
+
+    protected int[] mOutputOffsets;
+
+    // Tree t uses words mWordOffsets[t] until mWordOffsets[t + 1] of the leaf bitvector
+    protected int[] mWordOffsets;
+
+    // The values of the leaves of tree t, from left to right, start at mValueOffsets[t]
+    protected int[] mValueOffsets;
+
+    protected double[] mLeafValues;
+
+    // Entry e is made up of the mask words from mEntryStarts[e] until mEntryStarts[e + 1]. Each mask word is
+    // ANDed into word mMaskWords[i] of the bitvector. Consecutive entries can be applied in a single loop.
+    protected int[] mEntryStarts;
+
+    protected int[] mMaskWords;
+
+    protected long[] mMasks;
+
+    // The ordinal splits on feature f are the entries from mOrdinalStarts[f], sorted by index. A value v rules
+    // out the first mOrdinalCounts[f][v] of them.
+    protected int[] mOrdinalStarts;
+
+    protected int[][] mOrdinalCounts;
+
+    // The nominal splits on feature f are mNominalEntries[mNominalStarts[f]] until mNominalEntries[mNominalStarts[f + 1]].
+    // Each is the entry for category 0, and the entries for the other categories follow it.
+    protected int[] mNominalStarts;
+
+    protected int[] mNominalEntries;
+
+    protected int mNumEntries;
+
+    protected int mNumMaskWords;
+
+    protected int mNumSplits;
+
+    // The leaf bitvectors of each thread, so that predict does not allocate them for every instance
+    protected final ThreadLocal<long[]> mLeafBitvectors = ThreadLocal.withInitial(this::createLeafBitvectors);
+
+    public QuickScorer(StreamingGradientTreeCommittee committee) {
+        this(snapshot(ModelFormat.getStructures(committee.getTrees())));
+    }
+
+    /**
+     * Builds a scorer for a set of trees whose outputs are concatenated. The trees must not be modified afterwards.
+     */
+    public QuickScorer(FlatTree[] trees) {
+        FeatureInfo[] featureInfo = trees[0].getFeatureInfo();
+        mTrees = trees;
+        mOutputOffsets = new int[trees.length + 1];
+        mWordOffsets = new int[trees.length + 1];
+        mValueOffsets = new int[trees.length + 1];
+
+        // Leaf ranges of every node, and the splits on each feature as (tree, node) pairs
+        int[][] leafStarts = new int[trees.length][];
+        int[][] leafEnds = new int[trees.length][];
+        List<List<int[]>> ordinalSplits = new ArrayList<>();
+        List<List<int[]>> nominalSplits = new ArrayList<>();
+
+        for(int f = 0; f < featureInfo.length; f++) {
+            ordinalSplits.add(new ArrayList<>());
+            nominalSplits.add(new ArrayList<>());
+        }
+
+        for(int t = 0; t < trees.length; t++) {
+            FlatTree tree = trees[t];
+            int nodes = tree.getNumNodes();
+            int[] counts = new int[nodes];
+            leafStarts[t] = new int[nodes];
+            leafEnds[t] = new int[nodes];
+
+            // Children are always stored after their parents
+            for(int n = nodes - 1; n >= 0; n--) {
+                if(tree.isLeaf(n)) {
+                    counts[n] = 1;
+                    continue;
+                }
+
+                for(int c = 0; c < tree.getNumChildren(n); c++) {
+                    counts[n] += counts[tree.getChild(n, c)];
+                }
+
+                mNumSplits++;
+
+                if(tree.getIndex(n) == -1) {
+                    nominalSplits.get(tree.getFeature(n)).add(new int[] {t, n});
+                }
+                else {
+                    ordinalSplits.get(tree.getFeature(n)).add(new int[] {t, n});
+                }
+            }
+
+            for(int n = 0; n < nodes; n++) {
+                leafEnds[t][n] = leafStarts[t][n] + counts[n];
+
+                if(tree.isLeaf(n)) {
+                    continue;
+                }
+
+                int start = leafStarts[t][n];
+
+                for(int c = 0; c < tree.getNumChildren(n); c++) {
+                    int child = tree.getChild(n, c);
+                    leafStarts[t][child] = start;
+                    start += counts[child];
+                }
+            }
+
+            mOutputOffsets[t + 1] = mOutputOffsets[t] + tree.getNumOutputs();
+            mValueOffsets[t + 1] = mValueOffsets[t] + counts[0] * tree.getNumOutputs();
+            mWordOffsets[t + 1] = mWordOffsets[t] + (counts[0] + 63) / 64;
+        }
+
+        mNumOutputs = mOutputOffsets[trees.length];
+        mLeafValues = new double[mValueOffsets[trees.length]];
+
+        for(int t = 0; t < trees.length; t++) {
+            int outputs = trees[t].getNumOutputs();
+
+            for(int n = 0; n < trees[t].getNumNodes(); n++) {
+                if(trees[t].isLeaf(n)) {
+                    trees[t].getValues(n, mLeafValues, mValueOffsets[t] + leafStarts[t][n] * outputs);
+                }
+            }
+        }
+
+        mEntryStarts = new int[16];
+        mMaskWords = new int[16];
+        mMasks = new long[16];
+        mOrdinalStarts = new int[featureInfo.length + 1];
+        mOrdinalCounts = new int[featureInfo.length][];
+        mNominalStarts = new int[featureInfo.length + 1];
+        List<Integer> nominalEntries = new ArrayList<>();
+
+        for(int f = 0; f < featureInfo.length; f++) {
+            List<int[]> splits = ordinalSplits.get(f);
+            splits.sort((a, b) -> Integer.compare(trees[a[0]].getIndex(a[1]), trees[b[0]].getIndex(b[1])));
+            mOrdinalStarts[f] = mNumEntries;
+
+            for(int[] split : splits) {
+                // Values greater than the index go right, which rules out the leaves of the left child
+                int left = trees[split[0]].getChild(split[1], 0);
+                addEntry(split[0], leafStarts[split[0]][left], leafEnds[split[0]][left], 0, 0);
+            }
+
+            if(!splits.isEmpty()) {
+                mOrdinalCounts[f] = new int[featureInfo[f].categories];
+                int ruledOut = 0;
+
+                for(int v = 0; v < featureInfo[f].categories; v++) {
+                    while(ruledOut < splits.size() && trees[splits.get(ruledOut)[0]].getIndex(splits.get(ruledOut)[1]) < v) {
+                        ruledOut++;
+                    }
+
+                    mOrdinalCounts[f][v] = ruledOut;
+                }
+            }
+
+            mNominalStarts[f] = nominalEntries.size();
+
+            for(int[] split : nominalSplits.get(f)) {
+                int t = split[0];
+                int n = split[1];
+                nominalEntries.add(mNumEntries);
+
+                // Every leaf under the split is ruled out, except those under the child for the category
+                for(int c = 0; c < trees[t].getNumChildren(n); c++) {
+                    int child = trees[t].getChild(n, c);
+                    addEntry(t, leafStarts[t][n], leafEnds[t][n], leafStarts[t][child], leafEnds[t][child]);
+                }
+            }
+        }
+
+        mOrdinalStarts[featureInfo.length] = mNumEntries;
+        mNominalStarts[featureInfo.length] = nominalEntries.size();
+        mNominalEntries = new int[nominalEntries.size()];
+
+        for(int i = 0; i < mNominalEntries.length; i++) {
+            mNominalEntries[i] = nominalEntries.get(i);
+        }
+
+        mEntryStarts = Arrays.copyOf(mEntryStarts, mNumEntries + 1);
+        mEntryStarts[mNumEntries] = mNumMaskWords;
+        mMaskWords = Arrays.copyOf(mMaskWords, mNumMaskWords);
+        mMasks = Arrays.copyOf(mMasks, mNumMaskWords);
+    }
+
+    protected static FlatTree[] snapshot(FlatTree[] trees) {
+        for(int t = 0; t < trees.length; t++) {
+            trees[t] = trees[t].snapshot();
+        }
+
+        return trees;
+    }
+
+    /**
+     * Adds an entry that clears the leaves of a tree from clearStart until clearEnd, other than those from
+     * keepStart until keepEnd.
+     */
+    protected void addEntry(int tree, int clearStart, int clearEnd, int keepStart, int keepEnd) {
+        int firstWord = clearStart / 64;
+        int lastWord = (clearEnd - 1) / 64;
+        int length = lastWord - firstWord + 1;
+
+        if(mNumEntries == mEntryStarts.length) {
+            mEntryStarts = Arrays.copyOf(mEntryStarts, mNumEntries * 2);
+        }
+
+        if(mNumMaskWords + length > mMasks.length) {
+            int capacity = Math.max(mMasks.length * 2, mNumMaskWords + length);
+            mMaskWords = Arrays.copyOf(mMaskWords, capacity);
+            mMasks = Arrays.copyOf(mMasks, capacity);
+        }
+
+        for(int w = 0; w < length; w++) {
+            long mask = -1L;
+
+            for(int b = 0; b < 64; b++) {
+                int leaf = (firstWord + w) * 64 + b;
+
+                if(leaf >= clearStart && leaf < clearEnd && (leaf < keepStart || leaf >= keepEnd)) {
+                    mask &= ~(1L << b);
+                }
+            }
+
+            mMaskWords[mNumMaskWords + w] = mWordOffsets[tree] + firstWord + w;
+            mMasks[mNumMaskWords + w] = mask;
+        }
+
+        mEntryStarts[mNumEntries] = mNumMaskWords;
+        mNumEntries++;
+        mNumMaskWords += length;
+    }
+
+    public MemoryUsage getMemoryUsage() {
+        MemoryUsage result = new MemoryUsage();
+
+        for(FlatTree tree : mTrees) {
+            result.structureBytes += tree.getMemoryBytes();
+        }
+
+        result.structureBytes += MemoryUsage.arrayBytes(mLeafValues.length, 8) + MemoryUsage.arrayBytes(mEntryStarts.length, 4)
+            + MemoryUsage.arrayBytes(mMaskWords.length, 4) + MemoryUsage.arrayBytes(mMasks.length, 8)
+            + MemoryUsage.arrayBytes(mNominalEntries.length, 4);
+
+        for(int[] counts : mOrdinalCounts) {
+            if(counts != null) {
+                result.structureBytes += MemoryUsage.arrayBytes(counts.length, 4);
+            }
+        }
+
+        result.otherBytes = MemoryUsage.objectBytes(13 * MemoryUsage.REFERENCE + 4 * 4) + MemoryUsage.arrayBytes(mTrees.length, MemoryUsage.REFERENCE)
+            + 3 * MemoryUsage.arrayBytes(mTrees.length + 1, 4) + 2 * MemoryUsage.arrayBytes(mOrdinalStarts.length, 4)
+            + MemoryUsage.arrayBytes(mOrdinalCounts.length, MemoryUsage.REFERENCE);
+
+        return result;
+    }
+
+    public int getNumNodes() {
+        int result = 0;
+
+        for(FlatTree tree : mTrees) {
+            result += tree.getNumNodes();
+        }
+
+        return result;
+    }
+
+    public int getNumNodeUpdates() {
+        return 0;
+    }
+
+    public int getNumSplits() {
+        return mNumSplits;
+    }
+
+    public int getMaxDepth() {
+        int result = 0;
+
+        for(FlatTree tree : mTrees) {
+            result = Math.max(result, tree.getDepth());
+        }
+
+        return result;
+    }
+
+    public int getNumTrees() {
+        return mTrees.length;
+    }
+
+    public void randomlyInitialize(Random rng, double predBound) {
+        throw new UnsupportedOperationException("QuickScorer models cannot be trained");
+    }
+
+    public void update(int[] features, GradHess[] gradHess) {
+        throw new UnsupportedOperationException("QuickScorer models cannot be trained");
+    }
+
+    public double[] predictAndUpdate(int[] features, GradientCallback callback) {
+        throw new UnsupportedOperationException("QuickScorer models cannot be trained");
+    }
+
+    public double[] predict(int[] features) {
+        double[] result = new double[mNumOutputs];
+        predict(features, mLeafBitvectors.get(), result);
+
+        return result;
+    }
+
+    public void predictBatch(int[][] features, double[][] out) {
+        long[] leaves = mLeafBitvectors.get();
+
+        for(int r = 0; r < features.length; r++) {
+            predict(features[r], leaves, out[r]);
+        }
+    }
+
+    /**
+     * Returns scratch space for predict(int[], long[], double[]).
+     */
+    public long[] createLeafBitvectors() {
+        return new long[mWordOffsets[mTrees.length]];
+    }
+
+    /**
+     * Writes the outputs for an instance into out, using leaves as scratch space. leaves must have been created by
+     * createLeafBitvectors, and must not be used by two threads at once.
+     */
+    public void predict(int[] features, long[] leaves, double[] out) {
+        Arrays.fill(leaves, -1L);
+
+        for(int f = 0; f < features.length; f++) {
+            int value = features[f];
+
+            // Missing values follow the first child, so they rule out no ordinal splits
+            if(value != -1 && mOrdinalCounts[f] != null) {
+                int start = mOrdinalStarts[f];
+                apply(start, start + mOrdinalCounts[f][value], leaves);
+            }
+
+            int category = value == -1 ? 0 : value;
+
+            for(int i = mNominalStarts[f]; i < mNominalStarts[f + 1]; i++) {
+                int entry = mNominalEntries[i] + category;
+                apply(entry, entry + 1, leaves);
+            }
+        }
+
+        for(int t = 0; t < mTrees.length; t++) {
+            int word = mWordOffsets[t];
+
+            while(leaves[word] == 0) {
+                word++;
+            }
+
+            int leaf = (word - mWordOffsets[t]) * 64 + Long.numberOfTrailingZeros(leaves[word]);
+            int output = mOutputOffsets[t];
+            int outputs = mOutputOffsets[t + 1] - output;
+
+            if(outputs == 1) {
+                out[output] = mLeafValues[mValueOffsets[t] + leaf];
+            }
+            else {
+                System.arraycopy(mLeafValues, mValueOffsets[t] + leaf * outputs, out, output, outputs);
+            }
+        }
+    }
+
+    /**
+     * Applies the entries from start until end.
+     */
+    protected void apply(int start, int end, long[] leaves) {
+        int last = mEntryStarts[end];
+
+        for(int i = mEntryStarts[start]; i < last; i++) {
+            leaves[mMaskWords[i]] &= mMasks[i];
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.henrygouk.sgt;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Trains a single StreamingGradientTree on several threads. The stream is processed in rounds: each round is
+ * divided into contiguous slices, one per shard, and every shard routes its slice through the tree and
+ * accumulates histograms for the leaves it reaches. The tree is not modified while this happens. At the end of
+ * the round the shard histograms of each leaf are merged into the leaf, and split decisions are made once on
+ * the merged statistics.
+ *
+ * A leaf is only checked for splits at the end of a round, so a leaf can see more than one grace period's
+ * worth of instances before it is checked. Smaller rounds follow the sequential algorithm more closely, at the
+ * cost of merging more often.
+ */
+public class ShardedTreeTrainer {
+
+    protected StreamingGradientTree mTree;
+
+    protected Shard[] mShards;
+
+    protected int mRoundSize;
+
+    // Per-round scratch space, indexed by leaf id
+    protected boolean[] mTouched;
+
+    protected int[] mTouchedLeaves;
+
+    /**
+     * Creates a trainer whose rounds span one grace period per shard.
+     */
+    public ShardedTreeTrainer(StreamingGradientTree tree, int numShards) {
+        this(tree, numShards, tree.mOptions.gracePeriod * numShards);
+    }
+
+    /**
+     * @param tree the tree to train
+     * @param numShards the number of slices each round is divided into, which are processed in parallel
+     * @param roundSize the number of instances processed before the shard statistics are merged
+     */
+    public ShardedTreeTrainer(StreamingGradientTree tree, int numShards, int roundSize) {
+        mTree = tree;
+        mRoundSize = Math.max(1, roundSize);
+        mShards = new Shard[numShards];
+
+        for(int i = 0; i < mShards.length; i++) {
+            mShards[i] = new Shard();
+        }
+
+        mTouched = new boolean[16];
+        mTouchedLeaves = new int[16];
+    }
+
+    public StreamingGradientTree getTree() {
+        return mTree;
+    }
+
+    public int getNumShards() {
+        return mShards.length;
+    }
+
+    public void update(int[][] features, GradHess[] gradHess) {
+        for(int start = 0; start < features.length; start += mRoundSize) {
+            int end = Math.min(start + mRoundSize, features.length);
+            int roundStart = start;
+            int numShards = mShards.length;
+
+            IntStream.range(0, numShards)
+                     .parallel()
+                     .forEach(s -> mShards[s].accumulate(features, gradHess,
+                        roundStart + (int)((long)(end - roundStart) * s / numShards),
+                        roundStart + (int)((long)(end - roundStart) * (s + 1) / numShards)));
+
+            merge();
+        }
+    }
+
+    protected void merge() {
+        int numTouched = 0;
+        int numNodes = mTree.getNumNodes();
+
+        if(mTouched.length < numNodes) {
+            mTouched = Arrays.copyOf(mTouched, numNodes * 2);
+            mTouchedLeaves = Arrays.copyOf(mTouchedLeaves, numNodes * 2);
+        }
+
+        for(Shard shard : mShards) {
+            for(int e = 0; e < shard.mUsed; e++) {
+                int leaf = shard.mLeafIds[e];
+
+                if(!mTouched[leaf]) {
+                    mTouched[leaf] = true;
+                    mTouchedLeaves[numTouched++] = leaf;
+                }
+            }
+        }
+
+        // Shards are merged in order, so the result does not depend on how the threads were scheduled
+        for(int t = 0; t < numTouched; t++) {
+            int leaf = mTouchedLeaves[t];
+            GradHessHistogram combined = null;
+            int instances = 0;
+
+            for(Shard shard : mShards) {
+                int e = shard.getEntry(leaf);
+
+                if(e == -1) {
+                    continue;
+                }
+
+                if(combined == null) {
+                    combined = shard.mHistograms[e];
+                }
+                else {
+                    combined.add(shard.mHistograms[e]);
+                }
+
+                instances += shard.mCounts[e];
+            }
+
+            mTree.merge(leaf, combined, instances);
+            mTouched[leaf] = false;
+        }
+
+        for(Shard shard : mShards) {
+            shard.clear();
+        }
+    }
+
+    /**
+     * The statistics gathered by one slice of a round. Histograms are reused from round to round. A shard usually
+     * only sees a few bins of each leaf, so unless the tree uses dense histograms they start out sparse, and
+     * clearing them costs about as much as filling them did.
+     */
+    protected class Shard {
+        // Maps a leaf id to its entry, or -1 if the leaf has not been reached this round
+        protected int[] mEntries = new int[0];
+
+        protected int[] mLeafIds = new int[4];
+
+        protected GradHessHistogram[] mHistograms = new GradHessHistogram[4];
+
+        protected int[] mCounts = new int[4];
+
+        protected int mUsed;
+
+        int getEntry(int leaf) {
+            return leaf < mEntries.length ? mEntries[leaf] : -1;
+        }
+
+        void accumulate(int[][] features, GradHess[] gradHess, int start, int end) {
+            for(int r = start; r < end; r++) {
+                int leaf = mTree.getLeafIndex(features[r]);
+                int e = getEntry(leaf);
+
+                if(e == -1) {
+                    e = addEntry(leaf);
+                }
+
+                mTree.addObservation(mHistograms[e], features[r], gradHess[r]);
+                mCounts[e]++;
+            }
+        }
+
+        int addEntry(int leaf) {
+            if(leaf >= mEntries.length) {
+                int oldLength = mEntries.length;
+                mEntries = Arrays.copyOf(mEntries, Math.max(leaf + 1, mTree.getNumNodes()));
+                Arrays.fill(mEntries, oldLength, mEntries.length, -1);
+            }
+
+            if(mUsed == mLeafIds.length) {
+                mLeafIds = Arrays.copyOf(mLeafIds, mUsed * 2);
+                mHistograms = Arrays.copyOf(mHistograms, mUsed * 2);
+                mCounts = Arrays.copyOf(mCounts, mUsed * 2);
+            }
+
+            if(mHistograms[mUsed] == null) {
+                mHistograms[mUsed] = mTree.createHistogram();
+            }
+
+            mEntries[leaf] = mUsed;
+            mLeafIds[mUsed] = leaf;
+            mCounts[mUsed] = 0;
+
+            return mUsed++;
+        }
+
+        void clear() {
+            for(int e = 0; e < mUsed; e++) {
+                GradHessHistogram histogram = mHistograms[e];
+                mEntries[mLeafIds[e]] = -1;
+
+                // A histogram that filled up enough to become dense is replaced, as the entry may be used by a
+                // quieter leaf next round
+                if(!histogram.isSparse() && GradHessHistogram.startsSparse(histogram.getNumSlots(), mTree.mOptions.sparseHistograms)) {
+                    mHistograms[e] = null;
+                }
+                else {
+                    histogram.clear();
+                }
+            }
+
+            mUsed = 0;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.henrygouk.sgt;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A discretised instance that only stores the features that do not take their default bin. Features that are
+ * absent take the defaultBin of their FeatureInfo, and bins of -1 indicate missing values as usual.
+ */
+public class SparseFeatures implements Serializable {
+
+    private static final long serialVersionUID = -2712395064012837452L;
+
+    protected FeatureInfo[] mFeatureInfo;
+
+    protected int[] mIndices;
+
+    protected int[] mBins;
+
+    /**
+     * @param featureInfo describes every feature, including those that are absent
+     * @param indices the features that are present, in strictly increasing order
+     * @param bins the bin of each present feature
+     */
+    public SparseFeatures(FeatureInfo[] featureInfo, int[] indices, int[] bins) {
+        if(indices.length != bins.length) {
+            throw new IllegalArgumentException("indices and bins must have the same length");
+        }
+
+        for(int i = 1; i < indices.length; i++) {
+            if(indices[i] <= indices[i - 1]) {
+                throw new IllegalArgumentException("indices must be strictly increasing");
+            }
+        }
+
+        mFeatureInfo = featureInfo;
+        mIndices = indices;
+        mBins = bins;
+    }
+
+    /**
+     * Creates a sparse copy of a dense instance, leaving out every feature that takes its default bin.
+     */
+    public static SparseFeatures fromDense(FeatureInfo[] featureInfo, int[] features) {
+        int[] indices = new int[features.length];
+        int[] bins = new int[features.length];
+        int n = 0;
+
+        for(int i = 0; i < features.length; i++) {
+            if(features[i] != featureInfo[i].defaultBin) {
+                indices[n] = i;
+                bins[n] = features[i];
+                n++;
+            }
+        }
+
+        return new SparseFeatures(featureInfo, Arrays.copyOf(indices, n), Arrays.copyOf(bins, n));
+    }
+
+    public int getNumFeatures() {
+        return mFeatureInfo.length;
+    }
+
+    public int getNumExplicit() {
+        return mIndices.length;
+    }
+
+    public int getIndex(int i) {
+        return mIndices[i];
+    }
+
+    public int getBin(int i) {
+        return mBins[i];
+    }
+
+    public FeatureInfo[] getFeatureInfo() {
+        return mFeatureInfo;
+    }
+
+    public int get(int feature) {
+        int i = Arrays.binarySearch(mIndices, feature);
+
+        return i >= 0 ? mBins[i] : mFeatureInfo[feature].defaultBin;
+    }
+
+    public int[] toDense() {
+        int[] result = new int[mFeatureInfo.length];
+
+        for(int i = 0; i < result.length; i++) {
+            result[i] = mFeatureInfo[i].defaultBin;
+        }
+
+        for(int i = 0; i < mIndices.length; i++) {
+            result[mIndices[i]] = mBins[i];
+        }
+
+        return result;
+    }
+
+    public SparseFeatures copy() {
+        return new SparseFeatures(mFeatureInfo, mIndices.clone(), mBins.clone());
+    }
+}
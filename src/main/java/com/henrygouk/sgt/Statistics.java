@@ -1,5 +1,8 @@
 package com.henrygouk.sgt;
 
+import java.io.Serializable;
+import java.util.Arrays;
+
 public class Statistics {
 
     /** Some constants */
@@ -59,6 +62,33 @@ public class Statistics {
       2.16236993594496635890E-1, 1.34204006088543189037E-2,
       3.28014464682127739104E-4, 2.89247864745380683936E-6,
       6.79019408009981274425E-9, };
+
+    /*
+     * Coefficients for lnGamma(), gamma() and stirlingFormula(). These are kept as constants so that the
+     * F-test used when growing trees does not allocate.
+     */
+    protected static final double LNGAMMA_A[] = { 8.11614167470508450300E-4, -5.95061904284301438324E-4,
+        7.93650340457716943945E-4, -2.77777777730099687205E-3,
+        8.33333333333331927722E-2 };
+    protected static final double LNGAMMA_B[] = { -1.37825152569120859100E3, -3.88016315134637840924E4,
+        -3.31612992738871184744E5, -1.16237097492762307383E6,
+        -1.72173700820839662146E6, -8.53555664245765465627E5 };
+    protected static final double LNGAMMA_C[] = {
+      /* 1.00000000000000000000E0, */
+      -3.51815701436523470549E2, -1.70642106651881159223E4,
+        -2.20528590553854454839E5, -1.13933444367982507207E6,
+        -2.53252307177582951285E6, -2.01889141433532773231E6 };
+    protected static final double GAMMA_P[] = { 1.60119522476751861407E-4, 1.19135147006586384913E-3,
+        1.04213797561761569935E-2, 4.76367800457137231464E-2,
+        2.07448227648435975150E-1, 4.94214826801497100753E-1,
+        9.99999999999999996796E-1 };
+    protected static final double GAMMA_Q[] = { -2.31581873324120129819E-5, 5.39605580493303397842E-4,
+        -4.45641913851797240494E-3, 1.18139785222060435552E-2,
+        3.58236398605498653373E-2, -2.34591795718243348568E-1,
+        7.14304917030273074085E-2, 1.00000000000000000320E0 };
+    protected static final double STIR[] = { 7.87311395793093628397E-4, -2.29549961613378126380E-4,
+        -2.68132617805781232825E-3, 3.47222221605458667310E-3,
+        8.33333333333482257126E-2, };
   
     /**
      * Computes standard error for observed values of a binomial random variable.
@@ -104,6 +134,130 @@ public class Statistics {
   
       return incompleteBeta(df2 / 2.0, df1 / 2.0, df2 / (df2 + df1 * F));
     }
+
+    /**
+     * Computes the critical value of the F-ratio, i.e., the value above which
+     * FProbability(F, df1, df2) is less than p. The value is found by bisection.
+     * 
+     * @param p the significance level
+     * @param df1 the first number of degrees of freedom
+     * @param df2 the second number of degrees of freedom, which may be
+     *          Double.POSITIVE_INFINITY
+     * @return the critical value of the F-ratio
+     */
+    public static double FCriticalValue(double p, int df1, double df2) {
+  
+      if (df2 < 1.0) {
+        return Double.POSITIVE_INFINITY;
+      }
+  
+      double lo = 0.0;
+      double hi = 1.0;
+  
+      while (FTailProbability(hi, df1, df2) >= p) {
+        lo = hi;
+        hi *= 2.0;
+  
+        if (Double.isInfinite(hi)) {
+          return hi;
+        }
+      }
+  
+      for (int i = 0; i < 200 && hi - lo > 1E-13 * hi; i++) {
+        double mid = 0.5 * (lo + hi);
+  
+        if (FTailProbability(mid, df1, df2) >= p) {
+          lo = mid;
+        } else {
+          hi = mid;
+        }
+      }
+  
+      return hi;
+    }
+  
+    /**
+     * Same as FProbability, but accepts non-integer and infinite values of df2.
+     */
+    protected static double FTailProbability(double F, int df1, double df2) {
+  
+      if (Double.isInfinite(df2)) {
+        return chiSquaredProbability(df1 * F, df1);
+      }
+      return incompleteBeta(df2 / 2.0, df1 / 2.0, df2 / (df2 + df1 * F));
+    }
+  
+    /**
+     * Memoises critical values of the F-ratio for a fixed significance level and
+     * df1. Values for small df2 are computed exactly and cached; larger values
+     * are interpolated linearly in 1 / df2 from a table of knots that ends at
+     * the limiting value for df2 = infinity. Lookups therefore reduce to an array
+     * access, rather than an evaluation of the incomplete beta function.
+     */
+    public static class FCriticalValueCache implements Serializable {
+  
+      private static final long serialVersionUID = 2968157330466121447L;
+  
+      protected static final int EXACT_LIMIT = 256;
+  
+      protected static final int KNOTS = 256;
+  
+      protected double mP;
+  
+      protected int mDf1;
+  
+      protected double[] mExact;
+  
+      protected double[] mKnots;
+  
+      public FCriticalValueCache(double p, int df1) {
+        mP = p;
+        mDf1 = df1;
+        mExact = new double[EXACT_LIMIT];
+        mKnots = new double[KNOTS + 1];
+        Arrays.fill(mExact, Double.NaN);
+        Arrays.fill(mKnots, Double.NaN);
+      }
+  
+      public double getP() {
+        return mP;
+      }
+
+      public long getMemoryBytes() {
+        return MemoryUsage.objectBytes(8 + 4 + 2 * MemoryUsage.REFERENCE) + MemoryUsage.arrayBytes(mExact.length, 8)
+          + MemoryUsage.arrayBytes(mKnots.length, 8);
+      }
+  
+      public double get(int df2) {
+  
+        if (df2 < 1) {
+          return Double.POSITIVE_INFINITY;
+        }
+  
+        if (df2 < EXACT_LIMIT) {
+          if (Double.isNaN(mExact[df2])) {
+            mExact[df2] = FCriticalValue(mP, mDf1, df2);
+          }
+          return mExact[df2];
+        }
+  
+        // Knot k corresponds to 1 / df2 = k / (EXACT_LIMIT * KNOTS)
+        double position = (double) EXACT_LIMIT * KNOTS / df2;
+        int k = Math.min((int) position, KNOTS - 1);
+        double frac = position - k;
+  
+        return (1.0 - frac) * getKnot(k) + frac * getKnot(k + 1);
+      }
+  
+      protected double getKnot(int k) {
+  
+        if (Double.isNaN(mKnots[k])) {
+          double df2 = k == 0 ? Double.POSITIVE_INFINITY : (double) EXACT_LIMIT * KNOTS / k;
+          mKnots[k] = FCriticalValue(mP, mDf1, df2);
+        }
+        return mKnots[k];
+      }
+    }
   
     /**
      * Returns the area under the Normal (Gaussian) probability density function,
@@ -217,18 +371,6 @@ public class Statistics {
   
       double p, q, w, z;
   
-      double A[] = { 8.11614167470508450300E-4, -5.95061904284301438324E-4,
-        7.93650340457716943945E-4, -2.77777777730099687205E-3,
-        8.33333333333331927722E-2 };
-      double B[] = { -1.37825152569120859100E3, -3.88016315134637840924E4,
-        -3.31612992738871184744E5, -1.16237097492762307383E6,
-        -1.72173700820839662146E6, -8.53555664245765465627E5 };
-      double C[] = {
-      /* 1.00000000000000000000E0, */
-      -3.51815701436523470549E2, -1.70642106651881159223E4,
-        -2.20528590553854454839E5, -1.13933444367982507207E6,
-        -2.53252307177582951285E6, -2.01889141433532773231E6 };
-  
       if (x < -34.0) {
         q = -x;
         w = lnGamma(q);
@@ -269,7 +411,7 @@ public class Statistics {
           return Math.log(z);
         }
         x -= 2.0;
-        p = x * polevl(x, B, 5) / p1evl(x, C, 6);
+        p = x * polevl(x, LNGAMMA_B, 5) / p1evl(x, LNGAMMA_C, 6);
         return (Math.log(z) + p);
       }
   
@@ -288,7 +430,7 @@ public class Statistics {
         q += ((7.9365079365079365079365e-4 * p - 2.7777777777777777777778e-3) * p + 0.0833333333333333333333)
           / x;
       } else {
-        q += polevl(p, A, 4) / x;
+        q += polevl(p, LNGAMMA_A, 4) / x;
       }
       return q;
     }
@@ -614,15 +756,6 @@ public class Statistics {
      */
     public static double gamma(double x) {
   
-      double P[] = { 1.60119522476751861407E-4, 1.19135147006586384913E-3,
-        1.04213797561761569935E-2, 4.76367800457137231464E-2,
-        2.07448227648435975150E-1, 4.94214826801497100753E-1,
-        9.99999999999999996796E-1 };
-      double Q[] = { -2.31581873324120129819E-5, 5.39605580493303397842E-4,
-        -4.45641913851797240494E-3, 1.18139785222060435552E-2,
-        3.58236398605498653373E-2, -2.34591795718243348568E-1,
-        7.14304917030273074085E-2, 1.00000000000000000320E0 };
-  
       double p, z;
       double q = Math.abs(x);
   
@@ -681,8 +814,8 @@ public class Statistics {
       }
   
       x -= 2.0;
-      p = polevl(x, P, 6);
-      q = polevl(x, Q, 7);
+      p = polevl(x, GAMMA_P, 6);
+      q = polevl(x, GAMMA_Q, 7);
       return z * p / q;
     }
   
@@ -692,9 +825,6 @@ public class Statistics {
      */
     public static double stirlingFormula(double x) {
   
-      double STIR[] = { 7.87311395793093628397E-4, -2.29549961613378126380E-4,
-        -2.68132617805781232825E-3, 3.47222221605458667310E-3,
-        8.33333333333482257126E-2, };
       double MAXSTIR = 143.01608;
   
       double w = 1.0 / x;
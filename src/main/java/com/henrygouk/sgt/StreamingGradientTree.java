@@ -1,58 +1,195 @@
 package com.henrygouk.sgt;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
-public class StreamingGradientTree implements Serializable {
+import com.henrygouk.sgt.neural.Layer;
+
+public class StreamingGradientTree extends AbstractStreamingGradientTree {
 
     private static final long serialVersionUID = -6696866670542821458L;
 
-    protected FeatureInfo[] mFeatureInfo;
+    // Indexed by node id. Internal nodes are set to null once they have been split.
+    protected Node[] mLeaves;
 
-    protected StreamingGradientTreeOptions mOptions;
+    protected int mMaxDepth;
 
-    protected Node mRoot;
+    // The histogram slot holding bin 0 of each feature. Slot 0 holds the statistics for the whole leaf.
+    protected int[] mBinOffsets;
 
-    protected int mNumNodes;
+    protected int mNumSlots;
 
-    protected int mNumNodeUpdates;
+    protected int mMaxCategories;
 
-    protected int mNumSplits;
+    // The implicit default bin of each feature, or -1. The histogram slot of an implicit bin holds the statistics of
+    // the missing values of the feature, and the statistics of the bin itself are derived when a split is searched for.
+    protected int[] mImplicitBins;
+
+    // The features that do not have an implicit default bin, which have to be visited for every sparse instance
+    protected int[] mDenseFeatures;
+
+    // The number of values cached for each histogram slot when cacheSplitCandidates is set
+    protected static final int CACHE_STRIDE = 4;
+
+    // Scratch space that is reused by every split search so that training does not allocate in steady state
+    protected Split mUpdateSplit;
+
+    protected SplitSearch mSplitSearch;
+
+    // One per chunk of features when the split search is run in parallel, created on first use
+    protected SplitSearch[] mParallelSplitSearches;
+
+    // A dense histogram that sparse leaf histograms are copied into for the split search, along with the slots that
+    // were copied and the features they belong to. Created on first use, and empty between searches.
+    protected GradHessHistogram mSearchStats;
+
+    protected int[] mStoredSlots;
+
+    protected boolean[] mObservedFeatures;
+
+    // The number of instances the tree has been updated with, which is used to estimate how often leaves are reached
+    protected long mInstancesSeen;
+
+    protected long mNextMemoryCheck;
 
-    protected int mMaxDepth;
-    
     public StreamingGradientTree(FeatureInfo[] featureInfo, StreamingGradientTreeOptions options) {
-        mFeatureInfo = featureInfo.clone();
-        mOptions = options;
+        super(featureInfo, options);
+        mBinOffsets = new int[mFeatureInfo.length];
+        mNumSlots = 1;
+        mMaxCategories = 2;
+
+        for(int i = 0; i < mFeatureInfo.length; i++) {
+            mBinOffsets[i] = mNumSlots;
+            mNumSlots += mFeatureInfo[i].categories;
+            mMaxCategories = Math.max(mMaxCategories, mFeatureInfo[i].categories);
+        }
+
+        mImplicitBins = new int[mFeatureInfo.length];
+        int numDense = 0;
+
+        for(int i = 0; i < mFeatureInfo.length; i++) {
+            mImplicitBins[i] = mFeatureInfo[i].implicitDefault ? mFeatureInfo[i].defaultBin : -1;
+
+            if(mImplicitBins[i] == -1) {
+                numDense++;
+            }
+        }
+
+        mDenseFeatures = new int[numDense];
+        numDense = 0;
+
+        for(int i = 0; i < mFeatureInfo.length; i++) {
+            if(mImplicitBins[i] == -1) {
+                mDenseFeatures[numDense++] = i;
+            }
+        }
+
+        mUpdateSplit = new Split(1);
+        mSplitSearch = new SplitSearch();
+
+        mStructure = new FlatTree(mFeatureInfo, options.initialPrediction);
+        mLeaves = new Node[16];
         boolean[] hasSplit = new boolean[mFeatureInfo.length];
 
         for(int i = 0; i < hasSplit.length; i++) {
             hasSplit[i] = false;
         }
 
-        mRoot = new Node(options.initialPrediction, 1, hasSplit);
+        new Node(0, 1, hasSplit);
+        publishSnapshot(true);
     }
 
-    public int getNumNodes() {
-        return mNumNodes;
+    public int getDepth() {
+        return mMaxDepth;
     }
 
-    public int getNumNodeUpdates() {
-        return mNumNodeUpdates;
+    /**
+     * Returns the number of leaves that are gathering split statistics. Leaves are only deactivated when the tree
+     * exceeds its memory budget.
+     */
+    public int getNumActiveLeaves() {
+        int result = 0;
+
+        for(Node leaf : mLeaves) {
+            if(leaf != null && leaf.isActive()) {
+                result++;
+            }
+        }
+
+        return result;
     }
 
-    public int getNumSplits() {
-        return mNumSplits;
+    /**
+     * Creates a prediction-only copy of this tree, optionally storing the leaf values as floats.
+     */
+    public FrozenModel export(boolean float32) {
+        return new FrozenModel(new FlatTree[] {getPublishedStructure()}, new Layer[0], float32);
     }
 
-    public int getDepth() {
-        return mMaxDepth;
+    /**
+     * Estimates the heap memory used by this tree. The published snapshot, if there is one, is counted as part of
+     * the structure.
+     */
+    public MemoryUsage getMemoryUsage() {
+        MemoryUsage result = new MemoryUsage();
+        FlatTree snapshot = mSnapshot;
+        result.structureBytes = mStructure.getMemoryBytes() + MemoryUsage.arrayBytes(mLeaves.length, MemoryUsage.REFERENCE);
+
+        if(snapshot != null) {
+            result.structureBytes += snapshot.getMemoryBytes();
+        }
+
+        for(Node leaf : mLeaves) {
+            if(leaf == null) {
+                continue;
+            }
+
+            result.structureBytes += leaf.getMemoryBytes();
+
+            if(leaf.mStats != null) {
+                result.leafStatisticsBytes += leaf.mStats.getMemoryBytes() + leaf.getCandidateCacheBytes();
+            }
+
+            if(leaf.mInactiveStats != null) {
+                result.leafStatisticsBytes += leaf.mInactiveStats.getMemoryBytes();
+            }
+        }
+
+        result.otherBytes = MemoryUsage.objectBytes(15 * MemoryUsage.REFERENCE + 5 * 4 + 2 * 8)
+            + MemoryUsage.arrayBytes(mFeatureInfo.length, MemoryUsage.REFERENCE)
+            + mFeatureInfo.length * MemoryUsage.objectBytes(2 * 4 + 1 + MemoryUsage.REFERENCE)
+            + MemoryUsage.arrayBytes(mBinOffsets.length, 4) + MemoryUsage.arrayBytes(mImplicitBins.length, 4)
+            + MemoryUsage.arrayBytes(mDenseFeatures.length, 4) + mUpdateSplit.getMemoryBytes() + mSplitSearch.getMemoryBytes();
+
+        if(mParallelSplitSearches != null) {
+            for(SplitSearch search : mParallelSplitSearches) {
+                result.otherBytes += search.getMemoryBytes();
+            }
+        }
+
+        if(mSearchStats != null) {
+            result.otherBytes += mSearchStats.getMemoryBytes() + MemoryUsage.arrayBytes(mStoredSlots.length, 4)
+                + MemoryUsage.arrayBytes(mObservedFeatures.length, 1);
+        }
+
+        if(mCriticalValues != null) {
+            result.otherBytes += mCriticalValues.getMemoryBytes();
+        }
+
+        return result;
+    }
+
+    public long getMemoryBytes() {
+        return getMemoryUsage().getTotalBytes();
     }
 
     public void randomlyInitialize(Random rng, double predBound) {
         int fid = rng.nextInt(mFeatureInfo.length);
-        mRoot.mSplit = new Split();
-        mRoot.mSplit.feature = fid;
+        int index = -1;
+        double[] childValues = null;
         mNumSplits++;
 
         boolean[] hasSplit = new boolean[mFeatureInfo.length];
@@ -63,56 +200,341 @@ public class StreamingGradientTree implements Serializable {
 
         // If nominal
         if(mFeatureInfo[fid].type == FeatureType.nominal) {
-            mRoot.mChildren = new Node[mFeatureInfo[fid].categories];
-
-            for(int i = 0; i < mRoot.mChildren.length; i++) {
-                mRoot.mChildren[i] = new Node(predBound * (2.0 * rng.nextDouble() - 1.0), 2, hasSplit);
-            }
+            childValues = new double[mFeatureInfo[fid].categories];
         }
         else if(mFeatureInfo[fid].type == FeatureType.ordinal) {
-            mRoot.mSplit.index = rng.nextInt(mFeatureInfo[fid].categories / 2) + mFeatureInfo[fid].categories / 4;
+            index = rng.nextInt(mFeatureInfo[fid].categories / 2) + mFeatureInfo[fid].categories / 4;
+            childValues = new double[2];
+        }
 
-            mRoot.mChildren = new Node[2];
-            mRoot.mChildren[0] = new Node(predBound * (2.0 * rng.nextDouble() - 1.0), 2, hasSplit);
-            mRoot.mChildren[1] = new Node(predBound * (2.0 * rng.nextDouble() - 1.0), 2, hasSplit);
+        for(int i = 0; i < childValues.length; i++) {
+            childValues[i] = predBound * (2.0 * rng.nextDouble() - 1.0);
         }
+
+        int first = mStructure.split(0, fid, index, childValues);
+        mLeaves[0] = null;
+
+        for(int i = 0; i < childValues.length; i++) {
+            new Node(first + i, 2, hasSplit);
+        }
+
+        publishSnapshot(true);
     }
 
     public void update(int[] features, GradHess gradHess) {
-        Node leaf = mRoot.getLeaf(features);
+        update(mStructure.getLeafIndex(features), features, gradHess);
+    }
+
+    /**
+     * Updates the leaf that features was routed to by an earlier call to getLeafIndex, which saves traversing the
+     * tree a second time. The tree must not have been updated in between.
+     */
+    public void update(int leafIndex, int[] features, GradHess gradHess) {
+        Node leaf = mLeaves[leafIndex];
         leaf.update(features, gradHess);
+        leafUpdated(leaf);
+    }
 
-        if(leaf.mInstances % mOptions.gracePeriod != 0) {
-            return;
+    public void update(SparseFeatures features, GradHess gradHess) {
+        update(mStructure.getLeafIndex(features), features, gradHess);
+    }
+
+    /**
+     * The sparse equivalent of update(int, int[], GradHess). Only the features that are present in the instance and
+     * those without an implicit default bin are visited.
+     */
+    public void update(int leafIndex, SparseFeatures features, GradHess gradHess) {
+        Node leaf = mLeaves[leafIndex];
+        leaf.update(features, gradHess);
+        leafUpdated(leaf);
+    }
+
+    protected void leafUpdated(Node leaf) {
+        if(leaf.isActive() && leaf.isCheckDue()) {
+            attemptSplit(leaf);
         }
 
-        Split bestSplit = leaf.findBestSplit();
+        mInstancesSeen++;
+        checkMemoryBudget();
+    }
 
-        double p = computePValue(bestSplit, leaf.mInstances);
+    /**
+     * Updates the tree with a batch of instances. The whole batch is routed first and grouped by leaf, and then
+     * the histogram of each leaf is accumulated one feature at a time. Each leaf consumes its instances only up
+     * to its next grace period check, after which the remaining instances are routed again, so splits are
+     * performed at exactly the same points as they would be if the instances were processed one at a time.
+     */
+    public void update(int[][] features, GradHess[] gradHess) {
+        int[] pending = new int[features.length];
+        int[] next = new int[features.length];
+        long[] keys = new long[features.length];
+        int numPending = features.length;
+
+        for(int i = 0; i < pending.length; i++) {
+            pending[i] = i;
+        }
 
-        if(p < mOptions.delta && bestSplit.lossMean < 0.0) {
-            leaf.applySplit(bestSplit);
+        while(numPending > 0) {
+            // Sort by leaf, keeping the original order of the instances within each leaf
+            for(int i = 0; i < numPending; i++) {
+                keys[i] = ((long)mStructure.getLeafIndex(features[pending[i]]) << 32) | i;
+            }
+
+            Arrays.sort(keys, 0, numPending);
+
+            for(int i = 0; i < numPending; i++) {
+                next[i] = pending[(int)keys[i]];
+            }
+
+            int[] sorted = next;
+            next = pending;
+            pending = sorted;
+            int numNext = 0;
+            int start = 0;
+
+            while(start < numPending) {
+                int leafId = (int)(keys[start] >>> 32);
+                int end = start + 1;
+
+                while(end < numPending && (int)(keys[end] >>> 32) == leafId) {
+                    end++;
+                }
+
+                Node leaf = mLeaves[leafId];
+                // Inactive leaves are never checked for splits, so they can consume every instance at once
+                int take = leaf.isActive() ? Math.min(end - start, leaf.instancesUntilCheck()) : end - start;
+                leaf.update(features, gradHess, pending, start, start + take);
+
+                if(leaf.isActive() && leaf.isCheckDue()) {
+                    attemptSplit(leaf);
+                }
+
+                mInstancesSeen += take;
+                checkMemoryBudget();
+
+                for(int i = start + take; i < end; i++) {
+                    next[numNext++] = pending[i];
+                }
+
+                start = end;
+            }
+
+            int[] tmp = pending;
+            pending = next;
+            next = tmp;
+            numPending = numNext;
         }
     }
 
     public double predict(int[] features) {
-        return mRoot.getLeaf(features).predict();
+        return getPublishedStructure().predict(features);
+    }
+
+    public int getLeafIndex(int[] features) {
+        return mStructure.getLeafIndex(features);
+    }
+
+    public double predictAndUpdate(int[] features, GradientCallback callback) {
+        int leafIndex = mStructure.getLeafIndex(features);
+        double prediction = mStructure.getValue(leafIndex);
+        GradHess[] gradHess = callback.computeGradients(new double[] {prediction});
+
+        if(gradHess != null) {
+            update(leafIndex, features, gradHess[0]);
+        }
+
+        return prediction;
+    }
+
+    public double predict(SparseFeatures features) {
+        return getPublishedStructure().predict(features);
+    }
+
+    public int getLeafIndex(SparseFeatures features) {
+        return mStructure.getLeafIndex(features);
+    }
+
+    public double predictAndUpdate(SparseFeatures features, GradientCallback callback) {
+        int leafIndex = mStructure.getLeafIndex(features);
+        double prediction = mStructure.getValue(leafIndex);
+        GradHess[] gradHess = callback.computeGradients(new double[] {prediction});
+
+        if(gradHess != null) {
+            update(leafIndex, features, gradHess[0]);
+        }
+
+        return prediction;
+    }
+
+    /**
+     * Writes the prediction for features[i] into out[i]. Rows are routed through the tree in blocks.
+     */
+    public void predictBatch(int[][] features, double[] out) {
+        FlatTree structure = getPublishedStructure();
+        int[] leaves = new int[FlatTree.BLOCK_SIZE];
+
+        for(int start = 0; start < features.length; start += FlatTree.BLOCK_SIZE) {
+            int end = Math.min(start + FlatTree.BLOCK_SIZE, features.length);
+            structure.getLeafIndices(features, start, end, leaves);
+
+            for(int r = start; r < end; r++) {
+                out[r] = structure.getValue(leaves[r - start]);
+            }
+        }
     }
 
-    protected double computePValue(Split split, int instances) {
-        // H0: the expected loss is zero
-        // HA: the expected loss is not zero
+    /**
+     * Merges statistics that were gathered for a leaf elsewhere, such as by a ShardedTreeTrainer, into the leaf. A
+     * split is attempted if the merged instances take the leaf across a grace period boundary.
+     */
+    protected void merge(int leafIndex, GradHessHistogram stats, int instances) {
+        Node leaf = mLeaves[leafIndex];
+        leaf.merge(stats, instances);
+
+        if(leaf.isActive() && leaf.isCheckDue()) {
+            attemptSplit(leaf);
+        }
 
-        try {
-            double F = instances * Math.pow(split.lossMean, 2.0) / split.lossVariance;
+        mInstancesSeen += instances;
+        checkMemoryBudget();
+    }
 
-            return Statistics.FProbability(F, 1, instances - 1);
+    protected void checkMemoryBudget() {
+        if(mOptions.maxMemoryBytes > 0 && mInstancesSeen >= mNextMemoryCheck) {
+            mNextMemoryCheck = mInstancesSeen + mOptions.memoryCheckPeriod;
+            enforceMemoryBudget();
         }
-        catch(ArithmeticException e) {
-            //System.err.println(e.getMessage());
-            //System.err.println(split.lossMean + " " + split.lossVariance);
+    }
 
-            return 1.0;
+    /**
+     * Decides which leaves gather split statistics, following the memory management of Hoeffding trees. Leaves are
+     * ranked by how often they are reached multiplied by the loss reduction they are estimated to offer, and as
+     * many of the top leaves are activated as fit into the budget. The rest are deactivated: they drop their
+     * histograms, but keep predicting and keep enough statistics to be ranked again later.
+     */
+    public void enforceMemoryBudget() {
+        MemoryUsage usage = getMemoryUsage();
+        long histogramBytes = getActiveLeafBytes();
+        long available = mOptions.maxMemoryBytes - (usage.getTotalBytes() - usage.leafStatisticsBytes);
+        long maxActive = Math.max(0, available / histogramBytes);
+        double[] promises = new double[mLeaves.length];
+        Node[] leaves = new Node[mLeaves.length];
+        int numLeaves = 0;
+
+        for(Node leaf : mLeaves) {
+            if(leaf != null) {
+                promises[leaf.mId] = leaf.getPromise();
+                leaves[numLeaves++] = leaf;
+            }
+        }
+
+        // The sort is stable, so leaves with the same promise are ranked by id
+        Arrays.sort(leaves, 0, numLeaves, (a, b) -> Double.compare(promises[b.mId], promises[a.mId]));
+
+        for(int i = 0; i < numLeaves; i++) {
+            if(i < maxActive) {
+                leaves[i].activate();
+            }
+            else {
+                leaves[i].deactivate();
+            }
+        }
+    }
+
+    /**
+     * Estimates the memory used by the tree once the histograms of its active leaves are full. Sparse histograms
+     * grow as new bins are observed, so the budget is enforced against this rather than the current usage.
+     */
+    protected long getReservedMemoryBytes() {
+        MemoryUsage usage = getMemoryUsage();
+
+        return usage.getTotalBytes() - usage.leafStatisticsBytes + getNumActiveLeaves() * getActiveLeafBytes();
+    }
+
+    // The split statistics of an active leaf once its histogram is dense
+    protected long getActiveLeafBytes() {
+        long result = GradHessHistogram.getDenseMemoryBytes(mNumSlots);
+
+        if(mOptions.cacheSplitCandidates) {
+            result += MemoryUsage.arrayBytes(mNumSlots * CACHE_STRIDE, 8) + MemoryUsage.arrayBytes(mFeatureInfo.length, 4)
+                + 2 * MemoryUsage.arrayBytes(mFeatureInfo.length, 1);
+        }
+
+        return result;
+    }
+
+    protected GradHessHistogram createHistogram() {
+        return new GradHessHistogram(mNumSlots, mOptions.sparseHistograms);
+    }
+
+    // Adds an instance to a histogram with the same layout as the leaf histograms
+    protected void addObservation(GradHessHistogram stats, int[] features, GradHess gradHess) {
+        for(int i = 0; i < features.length; i++) {
+            int value = features[i];
+
+            // Implicit bins are not accumulated, and missing values are only recorded for features that have one
+            if(value == mImplicitBins[i]) {
+                continue;
+            }
+
+            stats.addObservation(mBinOffsets[i] + (value == -1 ? mImplicitBins[i] : value), gradHess);
+        }
+
+        stats.addObservation(0, gradHess);
+    }
+
+    protected void addObservation(GradHessHistogram stats, SparseFeatures features, GradHess gradHess) {
+        for(int k = 0; k < features.getNumExplicit(); k++) {
+            int i = features.getIndex(k);
+            int value = features.getBin(k);
+
+            // Features without an implicit bin are handled below
+            if(mImplicitBins[i] == -1 || value == mImplicitBins[i]) {
+                continue;
+            }
+
+            stats.addObservation(mBinOffsets[i] + (value == -1 ? mImplicitBins[i] : value), gradHess);
+        }
+
+        for(int i : mDenseFeatures) {
+            int value = features.get(i);
+
+            if(value == -1) {
+                continue;
+            }
+
+            stats.addObservation(mBinOffsets[i] + value, gradHess);
+        }
+
+        stats.addObservation(0, gradHess);
+    }
+
+    // Returns the feature that a histogram slot other than slot 0 belongs to
+    protected int getSlotFeature(int slot) {
+        int i = Arrays.binarySearch(mBinOffsets, slot);
+
+        return i >= 0 ? i : -i - 2;
+    }
+
+    protected Node getLeaf(int[] features) {
+        return mLeaves[mStructure.getLeafIndex(features)];
+    }
+
+    protected void attemptSplit(Node leaf) {
+        Split bestSplit = leaf.findBestSplit();
+
+        leaf.mSplitGain = Math.max(0.0, -bestSplit.lossMean);
+
+        if(isSignificant(bestSplit.lossMean, bestSplit.lossVariance, leaf.mInstances) && bestSplit.lossMean < 0.0) {
+            boolean grew = bestSplit.feature != -1;
+            leaf.applySplit(bestSplit);
+
+            if(grew && mOptions.maxMemoryBytes > 0 && getReservedMemoryBytes() > mOptions.maxMemoryBytes) {
+                enforceMemoryBudget();
+            }
+        }
+        else {
+            leaf.mNextCheck = getNextCheck(leaf.mInstances, bestSplit.lossMean, bestSplit.lossVariance);
         }
     }
 
@@ -126,238 +548,659 @@ public class StreamingGradientTree implements Serializable {
         double[] deltaPredictions;
         int feature = -1;
         int index = -1;
+
+        Split() {
+        }
+
+        Split(int maxCategories) {
+            deltaPredictions = new double[maxCategories];
+        }
+
+        long getMemoryBytes() {
+            long result = MemoryUsage.objectBytes(2 * 8 + 2 * 4 + 2 * MemoryUsage.REFERENCE);
+
+            return deltaPredictions == null ? result : result + MemoryUsage.arrayBytes(deltaPredictions.length, 8);
+        }
+    }
+
+    protected class SplitSearch implements Serializable {
+        private static final long serialVersionUID = 5092816273941526340L;
+
+        Split best = new Split(mMaxCategories);
+        Split candidate = new Split(mMaxCategories);
+        // The number of features whose cached candidates have been reused by this search
+        int cachedEvaluations;
+        GradHessHistogram forwardCumulativeSum = new GradHessHistogram(mMaxCategories - 1);
+        GradHessHistogram backwardCumulativeSum = new GradHessHistogram(mMaxCategories - 1);
+        // Holds the missing value statistics of a feature with an implicit bin while the bin is being searched
+        GradHessHistogram missing = new GradHessHistogram(1);
+
+        long getMemoryBytes() {
+            return MemoryUsage.objectBytes(6 * MemoryUsage.REFERENCE + 4) + best.getMemoryBytes() + candidate.getMemoryBytes()
+                + forwardCumulativeSum.getMemoryBytes() + backwardCumulativeSum.getMemoryBytes() + missing.getMemoryBytes();
+        }
     }
 
     protected class Node implements Serializable {
 
         private static final long serialVersionUID = -3259526711954744617L;
 
-        protected double mPrediction;
-
-        protected Node[] mChildren;
-
-        protected Split mSplit;
+        protected int mId;
 
         protected int mInstances;
 
-        protected GradHessStats mUpdateStats;
+        // The value of mInstances at which this leaf is next checked for a split
+        protected int mNextCheck;
 
-        protected GradHessStats[][] mSplitStats;
+        protected GradHessHistogram mStats;
 
         protected int mDepth;
 
         protected boolean[] mHasSplit;
+
+        // Instances routed to this leaf since it was created, including while it was inactive
+        protected long mSeen;
+
+        protected long mCreatedAt;
+
+        // The loss reduction offered by the best split found by the most recent search, or that of the parent's split
+        // until this leaf has been searched
+        protected double mSplitGain;
+
+        // Replaces mStats while the leaf is inactive, holding only the statistics for the whole leaf
+        protected GradHessHistogram mInactiveStats;
+
+        // Used when cacheSplitCandidates is set. The candidate statistics of each feature from the last search,
+        // before the complexity penalty is added, stored from CACHE_STRIDE * mBinOffsets[i]. Only the features
+        // marked in mCached are stored. mEvaluatedCounts holds the number of observations of each feature when it was
+        // last evaluated, so a feature is unchanged while that number is, and mRarelyObserved marks the features that
+        // were observed at most once between their last two evaluations.
+        protected double[] mCandidateCache;
+
+        protected int[] mEvaluatedCounts;
+
+        protected boolean[] mRarelyObserved;
+
+        protected boolean[] mCached;
         
-        public Node(double prediction, int depth, boolean[] hasSplit) {
-            mPrediction = prediction;
-            mNumNodes++;
+        public Node(int id, int depth, boolean[] hasSplit) {
+            mId = id;
             mDepth = depth;
+            mCreatedAt = mInstancesSeen;
             mMaxDepth = Math.max(mMaxDepth, mDepth);
             mHasSplit = hasSplit.clone();
 
+            if(mId >= mLeaves.length) {
+                mLeaves = Arrays.copyOf(mLeaves, Math.max(mLeaves.length * 2, mId + 1));
+            }
+
+            mLeaves[mId] = this;
+
             reset();
         }
 
         public void reset() {
-            mSplitStats = new GradHessStats[mFeatureInfo.length][];
-            mUpdateStats = new GradHessStats();
+            if(mStats == null) {
+                mStats = createHistogram();
+            }
+            else {
+                mStats.clear();
+            }
+
+            if(mOptions.cacheSplitCandidates) {
+                if(mCandidateCache == null) {
+                    mCandidateCache = new double[mNumSlots * CACHE_STRIDE];
+                    mEvaluatedCounts = new int[mFeatureInfo.length];
+                    mRarelyObserved = new boolean[mFeatureInfo.length];
+                    mCached = new boolean[mFeatureInfo.length];
+                }
+
+                Arrays.fill(mEvaluatedCounts, 0);
+                Arrays.fill(mRarelyObserved, true);
+                Arrays.fill(mCached, false);
+            }
+
             mInstances = 0;
+            mNextCheck = mOptions.gracePeriod;
+        }
 
-            for(int i = 0; i < mSplitStats.length; i++) {
-                mSplitStats[i] = new GradHessStats[mFeatureInfo[i].categories];
+        public boolean isActive() {
+            return mStats != null;
+        }
 
-                for(int j = 0; j < mSplitStats[i].length; j++) {
-                    mSplitStats[i][j] = new GradHessStats();
-                }
+        void activate() {
+            if(mStats == null) {
+                mInactiveStats = null;
+                reset();
             }
         }
 
-        public Node getLeaf(int[] features) {
-            if(mChildren == null) {
-                return this;
+        void deactivate() {
+            if(mStats != null) {
+                mStats = null;
+                mCandidateCache = null;
+                mEvaluatedCounts = null;
+                mRarelyObserved = null;
+                mCached = null;
+                mInactiveStats = new GradHessHistogram(1);
             }
-            else {
-                FeatureType featureType = mFeatureInfo[mSplit.feature].type;
-                Node c = null;
-                
-                if(features[mSplit.feature] == -1) {
-                    c = mChildren[0];
-                }
-                else if(featureType == FeatureType.nominal) {
-                    c = mChildren[features[mSplit.feature]];
-                }
-                else if(featureType == FeatureType.ordinal) {
-                    if(features[mSplit.feature] <= mSplit.index) {
-                        c = mChildren[0];
-                    }
-                    else {
-                        c = mChildren[1];
-                    }
-                }
-                else {
-                    System.err.println("Unhandled attribute type");
-                }
+        }
+
+        /**
+         * Estimates the loss reduction per instance the tree would gain from this leaf being active.
+         */
+        double getPromise() {
+            GradHessHistogram stats = isActive() ? mStats : mInactiveStats;
+            double updateGain = 0.0;
 
-                return c.getLeaf(features);
+            if(stats.getObservationCount(0) > 0) {
+                updateGain = Math.max(0.0, -stats.getDeltaLossMean(0, computeDeltaPrediction(stats, 0)));
             }
+
+            // Leaves that have only just been created are assumed to be reached on every instance
+            double rate = (double)(mSeen + 1) / (mInstancesSeen - mCreatedAt + 1);
+
+            return rate * Math.max(updateGain, mSplitGain);
         }
 
         void update(int[] features, GradHess gradHess) {
+            mSeen++;
+
+            if(!isActive()) {
+                mInactiveStats.addObservation(0, gradHess);
+                return;
+            }
+
             mInstances++;
+            addObservation(mStats, features, gradHess);
+        }
 
-            for(int i = 0; i < features.length; i++) {
-                if(features[i] == -1) {
-                    continue;
+        void update(SparseFeatures features, GradHess gradHess) {
+            mSeen++;
+
+            if(!isActive()) {
+                mInactiveStats.addObservation(0, gradHess);
+                return;
+            }
+
+            mInstances++;
+            addObservation(mStats, features, gradHess);
+        }
+
+        void merge(GradHessHistogram stats, int instances) {
+            mSeen += instances;
+
+            if(!isActive()) {
+                mInactiveStats.add(0, stats, 0);
+                return;
+            }
+
+            mInstances += instances;
+            mStats.add(stats);
+        }
+
+        /**
+         * Adds the instances rows[start..end) to the histogram. The histogram is filled one feature at a time,
+         * so that consecutive writes go to the same small region of the histogram.
+         */
+        void update(int[][] features, GradHess[] gradHess, int[] rows, int start, int end) {
+            mSeen += end - start;
+
+            if(!isActive()) {
+                for(int r = start; r < end; r++) {
+                    mInactiveStats.addObservation(0, gradHess[rows[r]]);
                 }
 
-                mSplitStats[i][features[i]].addObservation(gradHess);
+                return;
+            }
+
+            mInstances += end - start;
+
+            for(int i = 0; i < mFeatureInfo.length; i++) {
+                int offset = mBinOffsets[i];
+                int implicitBin = mImplicitBins[i];
+
+                for(int r = start; r < end; r++) {
+                    int value = features[rows[r]][i];
+
+                    if(value == implicitBin) {
+                        continue;
+                    }
+
+                    mStats.addObservation(offset + (value == -1 ? implicitBin : value), gradHess[rows[r]]);
+                }
             }
 
-            mUpdateStats.addObservation(gradHess);
+            for(int r = start; r < end; r++) {
+                mStats.addObservation(0, gradHess[rows[r]]);
+            }
+        }
+
+        long getCandidateCacheBytes() {
+            return mCandidateCache == null ? 0 : MemoryUsage.arrayBytes(mCandidateCache.length, 8)
+                + MemoryUsage.arrayBytes(mEvaluatedCounts.length, 4) + MemoryUsage.arrayBytes(mRarelyObserved.length, 1)
+                + MemoryUsage.arrayBytes(mCached.length, 1);
+        }
+
+        // Does not include the histogram or the candidate cache
+        long getMemoryBytes() {
+            return MemoryUsage.objectBytes(4 * 4 + 8 * MemoryUsage.REFERENCE + 3 * 8) + MemoryUsage.arrayBytes(mHasSplit.length, 1);
+        }
+
+        public int instancesUntilCheck() {
+            return mNextCheck - mInstances;
+        }
+
+        public boolean isCheckDue() {
+            return mInstances >= mNextCheck;
         }
 
         public double predict() {
-            return mPrediction;
+            return mStructure.getValue(mId);
         }
 
+        /**
+         * Finds the best split for this leaf. The returned object is reused by subsequent searches, so it
+         * should be applied or copied before this method is called again.
+         */
         public Split findBestSplit() {
             
-            Split best = new Split();
+            Split best = mUpdateSplit;
+            GradHessHistogram stats = mStats;
+            boolean[] observed = null;
+            int numStored = 0;
+
+            // Sparse histograms are searched through a dense copy, skipping the features that have not been observed
+            if(mStats.isSparse()) {
+                numStored = expandStats();
+                stats = mSearchStats;
+                observed = mObservedFeatures;
+            }
 
             // We can try to update the prediction using the new gradient information
-            best.deltaPredictions = new double[] {computeDeltaPrediction(mUpdateStats.getMean())};
-            best.lossMean = mUpdateStats.getDeltaLossMean(best.deltaPredictions[0]);
-            best.lossVariance = mUpdateStats.getDeltaLossVariance(best.deltaPredictions[0]);
+            best.deltaPredictions[0] = computeDeltaPrediction(stats, 0);
+            best.lossMean = stats.getDeltaLossMean(0, best.deltaPredictions[0]);
+            best.lossVariance = stats.getDeltaLossVariance(0, best.deltaPredictions[0]);
             best.feature = -1;
             best.index = -1;
 
-            for(int i = 0; i < mSplitStats.length; i++) {
-                Split candidate = new Split();
-                candidate.feature = i;
+            if(mOptions.parallelSplitSearch && mFeatureInfo.length >= mOptions.parallelSplitThreshold) {
+                best = findBestSplitParallel(best, stats, observed);
+            }
+            else {
+                Split candidate = findBestFeatureSplit(mSplitSearch, stats, observed, 0, mFeatureInfo.length);
+
+                if(candidate != null && candidate.lossMean < best.lossMean) {
+                    best = candidate;
+                }
+            }
 
-                if(mFeatureInfo[i].type == FeatureType.nominal) {
-                    if(mHasSplit[i]) {
-                        continue;
+            // Only the stored slots of the dense copy were written to, so clearing them leaves it empty again
+            for(int k = 0; k < numStored; k++) {
+                int slot = mStoredSlots[k];
+                mSearchStats.clear(slot);
+
+                if(slot > 0) {
+                    mObservedFeatures[getSlotFeature(slot)] = false;
+                }
+            }
+            
+            return best;
+        }
+
+        /**
+         * Copies the sparse histogram of this leaf into mSearchStats and marks the features that have any observed
+         * bins in mObservedFeatures.
+         *
+         * @return the number of slots that were copied, which are written to mStoredSlots
+         */
+        protected int expandStats() {
+            if(mSearchStats == null) {
+                mSearchStats = new GradHessHistogram(mNumSlots);
+                mStoredSlots = new int[mNumSlots];
+                mObservedFeatures = new boolean[mFeatureInfo.length];
+            }
+
+            int numStored = mStats.getStoredSlots(mStoredSlots);
+
+            for(int k = 0; k < numStored; k++) {
+                int slot = mStoredSlots[k];
+                mSearchStats.set(slot, mStats, slot);
+
+                if(slot > 0) {
+                    mObservedFeatures[getSlotFeature(slot)] = true;
+                }
+            }
+
+            return numStored;
+        }
+
+        /**
+         * Partitions the features into contiguous chunks that are searched in parallel. The chunk results
+         * are reduced in feature order, keeping the earliest of any tied candidates, so the result is the
+         * same as that of the sequential search.
+         */
+        protected Split findBestSplitParallel(Split best, GradHessHistogram stats, boolean[] observed) {
+            int chunks = Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism(), mFeatureInfo.length / 64));
+
+            if(mParallelSplitSearches == null || mParallelSplitSearches.length != chunks) {
+                mParallelSplitSearches = new SplitSearch[chunks];
+
+                for(int c = 0; c < chunks; c++) {
+                    mParallelSplitSearches[c] = new SplitSearch();
+                }
+            }
+
+            Split[] results = new Split[chunks];
+
+            IntStream.range(0, chunks)
+                     .parallel()
+                     .forEach(c -> results[c] = findBestFeatureSplit(mParallelSplitSearches[c], stats, observed,
+                        (int)((long)mFeatureInfo.length * c / chunks), (int)((long)mFeatureInfo.length * (c + 1) / chunks)));
+
+            for(int c = 0; c < chunks; c++) {
+                if(results[c] != null && results[c].lossMean < best.lossMean) {
+                    best = results[c];
+                }
+            }
+
+            return best;
+        }
+
+        /**
+         * Finds the best split on the features in [start, end), using the scratch space in search. If observed is not
+         * null, only the features it marks are searched.
+         *
+         * @return the best candidate, or null if none of the features can be split on
+         */
+        protected Split findBestFeatureSplit(SplitSearch search, GradHessHistogram stats, boolean[] observed, int start, int end) {
+            Split best = null;
+            Split candidate = search.candidate;
+
+            for(int i = start; i < end; i++) {
+                if(observed != null && !observed[i]) {
+                    continue;
+                }
+
+                int implicitBin = mImplicitBins[i];
+                boolean evaluated;
+
+                if(implicitBin == -1 && mCandidateCache != null && mRarelyObserved[i]) {
+                    // Observations are only ever added, so the bins are unchanged as long as their total count is.
+                    // Counting them costs almost as much as evaluating the feature, so features that are observed
+                    // often are not counted here, and evaluateFeature counts them instead.
+                    int count = getObservationCount(i, stats);
+
+                    if(mCached[i] && count == mEvaluatedCounts[i]) {
+                        evaluated = evaluateCachedFeature(i, candidate);
+                        search.cachedEvaluations++;
+                    }
+                    else {
+                        // Storing the candidates only pays off if the feature is likely to be unchanged at the next
+                        // search, so features that were observed more than once since the last one are not stored
+                        mCached[i] = count - mEvaluatedCounts[i] <= 1;
+                        evaluated = evaluateFeature(i, stats, candidate, search.forwardCumulativeSum, search.backwardCumulativeSum);
                     }
+                }
+                else if(implicitBin == -1) {
+                    evaluated = evaluateFeature(i, stats, candidate, search.forwardCumulativeSum, search.backwardCumulativeSum);
+                }
+                else {
+                    // Temporarily replace the missing value statistics with those of the implicit bin
+                    int slot = mBinOffsets[i] + implicitBin;
+                    search.missing.set(0, stats, slot);
+                    deriveImplicitBin(i, stats, search.missing);
+                    evaluated = evaluateFeature(i, stats, candidate, search.forwardCumulativeSum, search.backwardCumulativeSum);
+                    stats.set(slot, search.missing, 0);
+                }
 
-                    candidate.deltaPredictions = new double[mSplitStats[i].length];
-                    double lossMean = 0.0;
-                    double lossVar = 0.0;
-                    int observations = 0;
-
-                    for(int j = 0; j < mSplitStats[i].length; j++) {
-                        double p = computeDeltaPrediction(mSplitStats[i][j].getMean());
-                        double m = mSplitStats[i][j].getDeltaLossMean(p);
-                        double s = mSplitStats[i][j].getDeltaLossVariance(p);
-                        int n = mSplitStats[i][j].getObservationCount();
-                        candidate.deltaPredictions[j] = p;
-
-                        lossMean = GradHessStats.combineMean(lossMean, observations, m, n);
-                        lossVar = GradHessStats.combineVariance(lossMean, lossVar, observations, m, s, n);
-                        observations += n;
+                if(!evaluated) {
+                    continue;
+                }
+
+                if(candidate.lossMean < (best == null ? Double.POSITIVE_INFINITY : best.lossMean)) {
+                    Split tmp = best == null ? search.best : best;
+                    best = candidate;
+                    candidate = tmp;
+                }
+            }
+
+            return best;
+        }
+
+        // The number of observations in the bins of feature i
+        protected int getObservationCount(int i, GradHessHistogram stats) {
+            int offset = mBinOffsets[i];
+            int result = 0;
+
+            for(int j = 0; j < mFeatureInfo[i].categories; j++) {
+                result += stats.getObservationCount(offset + j);
+            }
+
+            return result;
+        }
+
+        // Remembers that feature i had the given number of observations when it was last evaluated
+        protected void recordEvaluation(int i, int observations) {
+            if(mEvaluatedCounts != null && mImplicitBins[i] == -1) {
+                mRarelyObserved[i] = observations - mEvaluatedCounts[i] <= 1;
+                mEvaluatedCounts[i] = observations;
+            }
+        }
+
+        /**
+         * Writes the statistics of the implicit bin of feature i into its slot, as the statistics for the whole leaf
+         * less those of the other bins and the missing values.
+         */
+        protected void deriveImplicitBin(int i, GradHessHistogram stats, GradHessHistogram missing) {
+            int offset = mBinOffsets[i];
+            int slot = offset + mImplicitBins[i];
+            stats.set(slot, stats, 0);
+
+            for(int j = 0; j < mFeatureInfo[i].categories; j++) {
+                if(offset + j != slot) {
+                    stats.subtract(slot, stats, offset + j);
+                }
+            }
+
+            stats.subtract(slot, missing, 0);
+        }
+
+        /**
+         * Computes the best split on a single feature, writing the result into candidate.
+         *
+         * @return false if the feature cannot be split on at this leaf
+         */
+        protected boolean evaluateFeature(int i, GradHessHistogram stats, Split candidate, GradHessHistogram forwardCumulativeSum, GradHessHistogram backwardCumulativeSum) {
+            candidate.feature = i;
+            candidate.index = -1;
+            int offset = mBinOffsets[i];
+            int categories = mFeatureInfo[i].categories;
+            double[] cache = mCached != null && mCached[i] ? mCandidateCache : null;
+
+            if(mFeatureInfo[i].type == FeatureType.nominal) {
+                if(mHasSplit[i]) {
+                    return false;
+                }
+
+                double lossMean = 0.0;
+                double lossVar = 0.0;
+                int observations = 0;
+
+                for(int j = 0; j < categories; j++) {
+                    double p = computeDeltaPrediction(stats, offset + j);
+                    double m = stats.getDeltaLossMean(offset + j, p);
+                    double s = stats.getDeltaLossVariance(offset + j, p);
+                    int n = stats.getObservationCount(offset + j);
+                    candidate.deltaPredictions[j] = p;
+
+                    if(cache != null) {
+                        cache[(offset + j) * CACHE_STRIDE] = p;
                     }
 
-                    candidate.lossMean = lossMean + mSplitStats[i].length * mOptions.gamma / mInstances;
-                    candidate.lossVariance = lossVar;
+                    lossMean = GradHessStats.combineMean(lossMean, observations, m, n);
+                    lossVar = GradHessStats.combineVariance(lossMean, lossVar, observations, m, s, n);
+                    observations += n;
+                }
+
+                candidate.lossMean = lossMean + categories * mOptions.gamma / mInstances;
+                candidate.lossVariance = lossVar;
+
+                if(cache != null) {
+                    cache[offset * CACHE_STRIDE + 1] = lossMean;
+                    cache[offset * CACHE_STRIDE + 2] = lossVar;
                 }
-                else if(mFeatureInfo[i].type == FeatureType.ordinal) {
-                    GradHessStats[] forwardCumulativeSum = new GradHessStats[mFeatureInfo[i].categories - 1];
-                    GradHessStats[] backwardCumulativeSum = new GradHessStats[mFeatureInfo[i].categories - 1];
-
-                    // Compute the split stats for each possible split point
-                    for(int j = 0; j < mFeatureInfo[i].categories - 1; j++) {
-                        forwardCumulativeSum[j] = new GradHessStats();
-                        forwardCumulativeSum[j].add(mSplitStats[i][j]);
-
-                        if(j > 0) {
-                            forwardCumulativeSum[j].add(forwardCumulativeSum[j - 1]);
-                        }
+
+                recordEvaluation(i, observations);
+            }
+            else if(mFeatureInfo[i].type == FeatureType.ordinal) {
+                // Compute the split stats for each possible split point
+                for(int j = 0; j < categories - 1; j++) {
+                    forwardCumulativeSum.set(j, stats, offset + j);
+
+                    if(j > 0) {
+                        forwardCumulativeSum.add(j, forwardCumulativeSum, j - 1);
                     }
+                }
 
-                    for(int j = mFeatureInfo[i].categories - 2; j >= 0; j--) {
-                        backwardCumulativeSum[j] = new GradHessStats();
-                        backwardCumulativeSum[j].add(mSplitStats[i][j + 1]);
+                for(int j = categories - 2; j >= 0; j--) {
+                    backwardCumulativeSum.set(j, stats, offset + j + 1);
 
-                        if(j + 1 < backwardCumulativeSum.length) {
-                            backwardCumulativeSum[j].add(backwardCumulativeSum[j + 1]);
-                        }
+                    if(j + 1 < categories - 1) {
+                        backwardCumulativeSum.add(j, backwardCumulativeSum, j + 1);
                     }
+                }
+
+                candidate.lossMean = Double.POSITIVE_INFINITY;
 
-                    candidate.lossMean = Double.POSITIVE_INFINITY;
-                    candidate.deltaPredictions = new double[2];
-
-                    for(int j = 0; j < forwardCumulativeSum.length; j++) {
-                        double deltaPredLeft = computeDeltaPrediction(forwardCumulativeSum[j].getMean());
-                        double lossMeanLeft = forwardCumulativeSum[j].getDeltaLossMean(deltaPredLeft);
-                        double lossVarLeft = forwardCumulativeSum[j].getDeltaLossVariance(deltaPredLeft);
-                        int numLeft = forwardCumulativeSum[j].getObservationCount();
-
-                        double deltaPredRight = computeDeltaPrediction(backwardCumulativeSum[j].getMean());
-                        double lossMeanRight = backwardCumulativeSum[j].getDeltaLossMean(deltaPredRight);
-                        double lossVarRight = backwardCumulativeSum[j].getDeltaLossVariance(deltaPredRight);
-                        int numRight = backwardCumulativeSum[j].getObservationCount();
-
-                        double lossMean = GradHessStats.combineMean(lossMeanLeft, numLeft, lossMeanRight, numRight);
-                        double lossVar = GradHessStats.combineVariance(lossMeanLeft, lossVarLeft, numLeft, lossMeanRight, lossVarRight, numRight);
-
-                        if(lossMean < candidate.lossMean) {
-                            candidate.lossMean = lossMean + 2.0 * mOptions.gamma / mInstances;
-                            candidate.lossVariance = lossVar;
-                            candidate.index = j;
-                            candidate.deltaPredictions[0] = deltaPredLeft;
-                            candidate.deltaPredictions[1] = deltaPredRight;
-                        }
+                for(int j = 0; j < categories - 1; j++) {
+                    double deltaPredLeft = computeDeltaPrediction(forwardCumulativeSum, j);
+                    double lossMeanLeft = forwardCumulativeSum.getDeltaLossMean(j, deltaPredLeft);
+                    double lossVarLeft = forwardCumulativeSum.getDeltaLossVariance(j, deltaPredLeft);
+                    int numLeft = forwardCumulativeSum.getObservationCount(j);
+
+                    double deltaPredRight = computeDeltaPrediction(backwardCumulativeSum, j);
+                    double lossMeanRight = backwardCumulativeSum.getDeltaLossMean(j, deltaPredRight);
+                    double lossVarRight = backwardCumulativeSum.getDeltaLossVariance(j, deltaPredRight);
+                    int numRight = backwardCumulativeSum.getObservationCount(j);
+
+                    double lossMean = GradHessStats.combineMean(lossMeanLeft, numLeft, lossMeanRight, numRight);
+                    double lossVar = GradHessStats.combineVariance(lossMeanLeft, lossVarLeft, numLeft, lossMeanRight, lossVarRight, numRight);
+
+                    if(cache != null) {
+                        int base = (offset + j) * CACHE_STRIDE;
+                        cache[base] = lossMean;
+                        cache[base + 1] = lossVar;
+                        cache[base + 2] = deltaPredLeft;
+                        cache[base + 3] = deltaPredRight;
+                    }
+
+                    if(lossMean < candidate.lossMean) {
+                        candidate.lossMean = lossMean + 2.0 * mOptions.gamma / mInstances;
+                        candidate.lossVariance = lossVar;
+                        candidate.index = j;
+                        candidate.deltaPredictions[0] = deltaPredLeft;
+                        candidate.deltaPredictions[1] = deltaPredRight;
                     }
                 }
-                else {
-                    System.err.println("Unhandled attribute type");
+
+                int observations = stats.getObservationCount(offset + categories - 1);
+                recordEvaluation(i, categories > 1 ? observations + forwardCumulativeSum.getObservationCount(categories - 2) : observations);
+            }
+            else {
+                System.err.println("Unhandled attribute type");
+                return false;
+            }
+
+            return true;
+        }
+
+        /**
+         * Like evaluateFeature, but for a feature whose candidates were stored when it was last evaluated and whose
+         * bins have not changed since. Only the complexity penalty is recomputed.
+         */
+        protected boolean evaluateCachedFeature(int i, Split candidate) {
+            candidate.feature = i;
+            candidate.index = -1;
+            int offset = mBinOffsets[i];
+            int categories = mFeatureInfo[i].categories;
+
+            if(mFeatureInfo[i].type == FeatureType.nominal) {
+                if(mHasSplit[i]) {
+                    return false;
                 }
 
-                if(candidate.lossMean < best.lossMean) {
-                    best = candidate;
+                for(int j = 0; j < categories; j++) {
+                    candidate.deltaPredictions[j] = mCandidateCache[(offset + j) * CACHE_STRIDE];
                 }
+
+                candidate.lossMean = mCandidateCache[offset * CACHE_STRIDE + 1] + categories * mOptions.gamma / mInstances;
+                candidate.lossVariance = mCandidateCache[offset * CACHE_STRIDE + 2];
             }
-            
-            return best;
+            else if(mFeatureInfo[i].type == FeatureType.ordinal) {
+                candidate.lossMean = Double.POSITIVE_INFINITY;
+
+                for(int j = 0; j < categories - 1; j++) {
+                    int base = (offset + j) * CACHE_STRIDE;
+                    double lossMean = mCandidateCache[base];
+
+                    if(lossMean < candidate.lossMean) {
+                        candidate.lossMean = lossMean + 2.0 * mOptions.gamma / mInstances;
+                        candidate.lossVariance = mCandidateCache[base + 1];
+                        candidate.index = j;
+                        candidate.deltaPredictions[0] = mCandidateCache[base + 2];
+                        candidate.deltaPredictions[1] = mCandidateCache[base + 3];
+                    }
+                }
+            }
+            else {
+                return false;
+            }
+
+            return true;
         }
 
         public void applySplit(Split split) {
 
             //Should we just update the prediction being made?
             if(split.feature == -1) {
-                mPrediction += split.deltaPredictions[0];
+                mStructure.setValue(mId, predict() + split.deltaPredictions[0]);
                 mNumNodeUpdates++;
                 reset();
+                publishSnapshot(false);
                 return;
             }
 
-            mSplit = split;
             mNumSplits++;
             mHasSplit[split.feature] = true;
-            
-            if(mFeatureInfo[split.feature].type == FeatureType.nominal) {
-                mChildren = new Node[mFeatureInfo[split.feature].categories];
 
-                for(int i = 0; i < mChildren.length; i++) {
-                    mChildren[i] = new Node(mPrediction + split.deltaPredictions[i], mDepth + 1, mHasSplit);
-                }
-            }
-            else if(mFeatureInfo[split.feature].type == FeatureType.ordinal) {
-                mChildren = new Node[2];
+            int numChildren = mFeatureInfo[split.feature].type == FeatureType.nominal ? mFeatureInfo[split.feature].categories : 2;
+            double[] childValues = new double[numChildren];
 
-                mChildren[0] = new Node(mPrediction + split.deltaPredictions[0], mDepth + 1, mHasSplit);
-                mChildren[1] = new Node(mPrediction + split.deltaPredictions[1], mDepth + 1, mHasSplit);
+            for(int i = 0; i < childValues.length; i++) {
+                childValues[i] = predict() + split.deltaPredictions[i];
             }
-            else {
-                System.err.println("Unhandled attribute type");
+
+            int index = mFeatureInfo[split.feature].type == FeatureType.ordinal ? split.index : -1;
+            int first = mStructure.split(mId, split.feature, index, childValues);
+
+            for(int i = 0; i < childValues.length; i++) {
+                new Node(first + i, mDepth + 1, mHasSplit).mSplitGain = mSplitGain;
             }
 
-            //Free up memory used by the split stats
-            mSplitStats = null;
+            //This node is no longer a leaf, so the split stats can be freed along with the node itself
+            mLeaves[mId] = null;
+            mStats = null;
+
+            publishSnapshot(true);
+        }
+
+        protected double computeDeltaPrediction(int slot) {
+            return computeDeltaPrediction(mStats, slot);
         }
 
-        protected double computeDeltaPrediction(GradHess gradHess) {
-            return -gradHess.gradient / (gradHess.hessian + Double.MIN_NORMAL + mOptions.lambda);
+        protected double computeDeltaPrediction(GradHessHistogram stats, int slot) {
+            return -stats.getMeanGradient(slot) / (stats.getMeanHessian(slot) + Double.MIN_NORMAL + mOptions.lambda);
         }
     }
 }
@@ -1,23 +1,75 @@
 package com.henrygouk.sgt;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.function.ObjIntConsumer;
 import java.util.stream.IntStream;
 
+import com.henrygouk.sgt.neural.Layer;
+
 public class StreamingGradientTreeCommittee implements Serializable, MultiOutputLearner {
 
     private static final long serialVersionUID = 8961897277670201943L;
     protected StreamingGradientTree[] mTrees;
 
+    protected int mNumWorkers;
+
+    protected int mWorkerThreshold;
+
+    protected boolean mPublishSnapshots;
+
+    protected transient Executor mExecutor;
+
+    protected transient TreeWorkerPool mWorkerPool;
+
     public StreamingGradientTreeCommittee(FeatureInfo[] featureInfo, StreamingGradientTreeOptions options, int numTrees) {
         mTrees = new StreamingGradientTree[numTrees];
         
         for(int i = 0; i < mTrees.length; i++) {
             mTrees[i] = new StreamingGradientTree(featureInfo, options);
         }
+
+        mNumWorkers = options.numWorkers > 0 ? options.numWorkers : Runtime.getRuntime().availableProcessors();
+        mWorkerThreshold = options.committeeWorkerThreshold;
+        mPublishSnapshots = options.publishSnapshots;
+    }
+
+    /**
+     * Sets the executor used to run the worker threads of large committees. By default each worker gets its own
+     * daemon thread. Workers hold on to their threads while there is work queued, so the executor should be able to
+     * run numWorkers tasks at once; thread pools and fork/join pools with fewer threads get fewer workers.
+     */
+    public void setExecutor(Executor executor) {
+        sync();
+        mExecutor = executor;
+        mWorkerPool = null;
+    }
+
+    /**
+     * Returns the worker pool, or null if the committee is small enough that it should be run sequentially.
+     */
+    protected TreeWorkerPool getWorkerPool() {
+        if(mWorkerPool == null && mNumWorkers > 1 && mTrees.length >= mWorkerThreshold) {
+            mWorkerPool = new TreeWorkerPool(mTrees, mNumWorkers, mExecutor);
+        }
+
+        return mWorkerPool;
+    }
+
+    /**
+     * Waits for any queued updates to be applied to the trees.
+     */
+    public void sync() {
+        if(mWorkerPool != null) {
+            mWorkerPool.sync();
+        }
     }
 
     public int getNumNodes() {
+        sync();
         int result = 0;
 
         for(int i = 0; i < mTrees.length; i++) {
@@ -28,6 +80,7 @@ public class StreamingGradientTreeCommittee implements Serializable, MultiOutput
     }
 
     public int getNumNodeUpdates() {
+        sync();
         int result = 0;
 
         for(int i = 0; i < mTrees.length; i++) {
@@ -38,6 +91,7 @@ public class StreamingGradientTreeCommittee implements Serializable, MultiOutput
     }
 
     public int getNumSplits() {
+        sync();
         int result = 0;
 
         for(int i = 0; i < mTrees.length; i++) {
@@ -48,6 +102,7 @@ public class StreamingGradientTreeCommittee implements Serializable, MultiOutput
     }
 
     public int getMaxDepth() {
+        sync();
         int result = 0;
 
         for(int i = 0; i < mTrees.length; i++) {
@@ -61,22 +116,226 @@ public class StreamingGradientTreeCommittee implements Serializable, MultiOutput
         return mTrees.length;
     }
 
+    /**
+     * Estimates the memory used by the trees and the committee itself. Any pending updates are applied first.
+     */
+    public MemoryUsage getMemoryUsage() {
+        sync();
+        MemoryUsage result = new MemoryUsage();
+
+        for(StreamingGradientTree tree : mTrees) {
+            result.add(tree.getMemoryUsage());
+        }
+
+        result.otherBytes += MemoryUsage.objectBytes(4 * MemoryUsage.REFERENCE + 2 * 4 + 1)
+            + MemoryUsage.arrayBytes(mTrees.length, MemoryUsage.REFERENCE);
+
+        if(mWorkerPool != null) {
+            result.otherBytes += mWorkerPool.getMemoryBytes();
+        }
+
+        return result;
+    }
+
+    /**
+     * Creates a prediction-only copy of this committee, optionally storing the leaf values as floats.
+     */
+    public FrozenModel export(boolean float32) {
+        return new FrozenModel(ModelFormat.getStructures(getTrees()), new Layer[0], float32);
+    }
+
+    public StreamingGradientTree[] getTrees() {
+        sync();
+
+        return mTrees;
+    }
+
     public void randomlyInitialize(Random rng, double predBound) {
+        sync();
+
         for(StreamingGradientTree t : mTrees) {
             t.randomlyInitialize(rng, predBound);
         }
     }
 
     public void update(int[] features, GradHess[] gradHesses) {
-        IntStream.range(0, mTrees.length)
-                 .parallel()
-                 .forEach(i -> mTrees[i].update(features, gradHesses[i]));
+        TreeWorkerPool pool = getWorkerPool();
+
+        if(pool != null) {
+            pool.update(features, gradHesses);
+        }
+        else {
+            for(int i = 0; i < mTrees.length; i++) {
+                mTrees[i].update(features, gradHesses[i]);
+            }
+        }
     }
 
+    /**
+     * Updates the committee with a batch of instances, where gradHesses[i][j] is the gradient information for
+     * instance i and tree j.
+     */
+    public void update(int[][] features, GradHess[][] gradHesses) {
+        TreeWorkerPool pool = getWorkerPool();
+
+        if(pool != null) {
+            pool.update(features, gradHesses);
+        }
+        else {
+            GradHess[] treeGradHesses = new GradHess[features.length];
+
+            for(int i = 0; i < mTrees.length; i++) {
+                for(int j = 0; j < features.length; j++) {
+                    treeGradHesses[j] = gradHesses[j][i];
+                }
+
+                mTrees[i].update(features, treeGradHesses);
+            }
+        }
+    }
+
+    /**
+     * If snapshots are being published, predictions are made from the latest snapshot of each tree on the calling
+     * thread. This can be done from any thread, but does not wait for queued updates to be applied.
+     */
     public double[] predict(int[] features) {
-        return IntStream.range(0, mTrees.length)
-                        .parallel()
-                        .mapToDouble(i -> mTrees[i].predict(features))
-                        .toArray();
+        TreeWorkerPool pool = mPublishSnapshots ? null : getWorkerPool();
+        double[] result = new double[mTrees.length];
+
+        if(pool != null) {
+            pool.predict(features, result);
+        }
+        else {
+            for(int i = 0; i < mTrees.length; i++) {
+                result[i] = mTrees[i].predict(features);
+            }
+        }
+
+        return result;
+    }
+
+    public double[] predictAndUpdate(int[] features, GradientCallback callback) {
+        TreeWorkerPool pool = getWorkerPool();
+        double[] result = new double[mTrees.length];
+        int[] leaves = new int[mTrees.length];
+
+        if(pool != null) {
+            pool.predict(features, result, leaves);
+        }
+        else {
+            for(int i = 0; i < mTrees.length; i++) {
+                leaves[i] = mTrees[i].getLeafIndex(features);
+                result[i] = mTrees[i].getStructure().getValue(leaves[i]);
+            }
+        }
+
+        // Pooled updates run after this method returns, by which time the caller may have reused features
+        int[] updateFeatures = pool != null ? features.clone() : features;
+
+        return predictAndUpdate(pool, result, callback, (gradHess, i) -> mTrees[i].update(leaves[i], updateFeatures, gradHess));
+    }
+
+    public void update(SparseFeatures features, GradHess[] gradHesses) {
+        TreeWorkerPool pool = getWorkerPool();
+
+        if(pool != null) {
+            pool.update(null, features, gradHesses);
+        }
+        else {
+            for(int i = 0; i < mTrees.length; i++) {
+                mTrees[i].update(features, gradHesses[i]);
+            }
+        }
+    }
+
+    public double[] predict(SparseFeatures features) {
+        TreeWorkerPool pool = mPublishSnapshots ? null : getWorkerPool();
+        double[] result = new double[mTrees.length];
+
+        if(pool != null) {
+            pool.predict(features, result, null);
+        }
+        else {
+            for(int i = 0; i < mTrees.length; i++) {
+                result[i] = mTrees[i].predict(features);
+            }
+        }
+
+        return result;
+    }
+
+    public double[] predictAndUpdate(SparseFeatures features, GradientCallback callback) {
+        TreeWorkerPool pool = getWorkerPool();
+        double[] result = new double[mTrees.length];
+        int[] leaves = new int[mTrees.length];
+
+        if(pool != null) {
+            pool.predict(features, result, leaves);
+        }
+        else {
+            for(int i = 0; i < mTrees.length; i++) {
+                leaves[i] = mTrees[i].getLeafIndex(features);
+                result[i] = mTrees[i].getStructure().getValue(leaves[i]);
+            }
+        }
+
+        SparseFeatures updateFeatures = pool != null ? features.copy() : features;
+
+        return predictAndUpdate(pool, result, callback, (gradHess, i) -> mTrees[i].update(leaves[i], updateFeatures, gradHess));
+    }
+
+    // Shared by the dense and sparse versions once each tree has routed the instance to a leaf and made its
+    // prediction. updateTree applies the gradient information for a tree to the leaf the instance was routed to.
+    private double[] predictAndUpdate(TreeWorkerPool pool, double[] result, GradientCallback callback, ObjIntConsumer<GradHess> updateTree) {
+        GradHess[] gradHesses = callback.computeGradients(result);
+
+        if(gradHesses == null) {
+            return result;
+        }
+
+        if(pool != null) {
+            pool.update(gradHesses, updateTree);
+        }
+        else {
+            for(int i = 0; i < mTrees.length; i++) {
+                updateTree.accept(gradHesses[i], i);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Batch prediction is parallelised over blocks of rows, rather than over trees, and each tree routes a whole
+     * block of rows at a time.
+     */
+    public void predictBatch(int[][] features, double[][] out) {
+        if(!mPublishSnapshots) {
+            sync();
+        }
+
+        int blocks = (features.length + FlatTree.BLOCK_SIZE - 1) / FlatTree.BLOCK_SIZE;
+
+        IntStream.range(0, blocks)
+                 .parallel()
+                 .forEach(b -> {
+                     int start = b * FlatTree.BLOCK_SIZE;
+                     int end = Math.min(start + FlatTree.BLOCK_SIZE, features.length);
+                     int[] leaves = new int[FlatTree.BLOCK_SIZE];
+
+                     for(int i = 0; i < mTrees.length; i++) {
+                         FlatTree structure = mTrees[i].getPublishedStructure();
+                         structure.getLeafIndices(features, start, end, leaves);
+
+                         for(int r = start; r < end; r++) {
+                             out[r][i] = structure.getValue(leaves[r - start]);
+                         }
+                     }
+                 });
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        sync();
+        out.defaultWriteObject();
     }
-}
\ No newline at end of file
+}
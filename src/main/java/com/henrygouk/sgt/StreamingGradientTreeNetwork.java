@@ -2,6 +2,7 @@ package com.henrygouk.sgt;
 
 import java.io.Serializable;
 import java.util.Random;
+import java.util.function.ObjIntConsumer;
 import java.util.stream.IntStream;
 
 import com.henrygouk.sgt.neural.Layer;
@@ -65,6 +66,41 @@ public class StreamingGradientTreeNetwork implements Serializable, MultiOutputLe
         return mTrees.length;
     }
 
+    /**
+     * Estimates the memory used by the trees, the layer parameters and the network itself.
+     */
+    public MemoryUsage getMemoryUsage() {
+        MemoryUsage result = new MemoryUsage();
+
+        for(StreamingGradientTree tree : mTrees) {
+            result.add(tree.getMemoryUsage());
+        }
+
+        for(Layer layer : mLayers) {
+            result.layerParameterBytes += layer.getMemoryBytes();
+        }
+
+        result.otherBytes += MemoryUsage.objectBytes(2 * MemoryUsage.REFERENCE) + MemoryUsage.arrayBytes(mTrees.length, MemoryUsage.REFERENCE)
+            + MemoryUsage.arrayBytes(mLayers.length, MemoryUsage.REFERENCE);
+
+        return result;
+    }
+
+    /**
+     * Creates a prediction-only copy of this network, optionally storing the leaf values and weights as floats.
+     */
+    public FrozenModel export(boolean float32) {
+        return new FrozenModel(ModelFormat.getStructures(mTrees), mLayers, float32);
+    }
+
+    public StreamingGradientTree[] getTrees() {
+        return mTrees;
+    }
+
+    public Layer[] getLayers() {
+        return mLayers;
+    }
+
     public void randomlyInitialize(Random rng, double predBound) {
         for(StreamingGradientTree t : mTrees) {
             t.randomlyInitialize(rng, predBound);
@@ -106,4 +142,113 @@ public class StreamingGradientTreeNetwork implements Serializable, MultiOutputLe
 
         return activations[activations.length - 1];
     }
-}
\ No newline at end of file
+
+    /**
+     * The leaf each tree routes the instance to and the activations of each layer are kept from the forward pass and
+     * reused for the update.
+     */
+    public double[] predictAndUpdate(int[] features, GradientCallback callback) {
+        int[] leaves = new int[mTrees.length];
+
+        IntStream.range(0, mTrees.length)
+                 .parallel()
+                 .forEach(i -> leaves[i] = mTrees[i].getLeafIndex(features));
+
+        return predictAndUpdate(leaves, callback, (gradHess, i) -> mTrees[i].update(leaves[i], features, gradHess));
+    }
+
+    // The layers have to see the tree outputs before the trees can be updated, so this makes a prediction first
+    public void update(SparseFeatures features, GradHess[] gradHesses) {
+        predictAndUpdate(features, p -> gradHesses);
+    }
+
+    public double[] predict(SparseFeatures features) {
+        double[][] activations = new double[mLayers.length + 1][];
+        activations[0] = IntStream.range(0, mTrees.length)
+                                  .parallel()
+                                  .mapToDouble(i -> mTrees[i].predict(features))
+                                  .toArray();
+
+        for(int i = 0; i < mLayers.length; i++) {
+            activations[i + 1] = mLayers[i].predict(activations[i]);
+        }
+
+        return activations[activations.length - 1];
+    }
+
+    public double[] predictAndUpdate(SparseFeatures features, GradientCallback callback) {
+        int[] leaves = new int[mTrees.length];
+
+        IntStream.range(0, mTrees.length)
+                 .parallel()
+                 .forEach(i -> leaves[i] = mTrees[i].getLeafIndex(features));
+
+        return predictAndUpdate(leaves, callback, (gradHess, i) -> mTrees[i].update(leaves[i], features, gradHess));
+    }
+
+    // Shared by the dense and sparse versions once each tree has routed the instance to a leaf. updateTree applies
+    // the gradient information for a tree to the leaf the instance was routed to.
+    private double[] predictAndUpdate(int[] leaves, GradientCallback callback, ObjIntConsumer<GradHess> updateTree) {
+        double[][] activations = new double[mLayers.length + 1][];
+        activations[0] = new double[mTrees.length];
+
+        for(int i = 0; i < mTrees.length; i++) {
+            activations[0][i] = mTrees[i].getStructure().getValue(leaves[i]);
+        }
+
+        for(int i = 0; i < mLayers.length; i++) {
+            activations[i + 1] = mLayers[i].predict(activations[i]);
+        }
+
+        double[] result = activations[activations.length - 1];
+        GradHess[] gradHesses = callback.computeGradients(result);
+
+        if(gradHesses == null) {
+            return result;
+        }
+
+        for(int i = mLayers.length - 1; i >= 0; i--) {
+            gradHesses = mLayers[i].update(activations[i], gradHesses);
+        }
+
+        final GradHess[] finalGradHesses = gradHesses;
+
+        IntStream.range(0, mTrees.length)
+                 .parallel()
+                 .forEach(i -> updateTree.accept(finalGradHesses[i], i));
+
+        return result;
+    }
+
+    public void predictBatch(int[][] features, double[][] out) {
+        int blocks = (features.length + FlatTree.BLOCK_SIZE - 1) / FlatTree.BLOCK_SIZE;
+
+        IntStream.range(0, blocks)
+                 .parallel()
+                 .forEach(b -> {
+                     int start = b * FlatTree.BLOCK_SIZE;
+                     int end = Math.min(start + FlatTree.BLOCK_SIZE, features.length);
+                     int[] leaves = new int[FlatTree.BLOCK_SIZE];
+                     double[][] treeOutputs = new double[end - start][mTrees.length];
+
+                     for(int i = 0; i < mTrees.length; i++) {
+                         FlatTree structure = mTrees[i].getPublishedStructure();
+                         structure.getLeafIndices(features, start, end, leaves);
+
+                         for(int r = 0; r < end - start; r++) {
+                             treeOutputs[r][i] = structure.getValue(leaves[r]);
+                         }
+                     }
+
+                     for(int r = 0; r < end - start; r++) {
+                         double[] activation = treeOutputs[r];
+
+                         for(int i = 0; i < mLayers.length; i++) {
+                             activation = mLayers[i].predict(activation);
+                         }
+
+                         System.arraycopy(activation, 0, out[start + r], 0, activation.length);
+                     }
+                 });
+    }
+}
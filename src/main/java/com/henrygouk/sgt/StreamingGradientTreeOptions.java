@@ -10,4 +10,30 @@ public class StreamingGradientTreeOptions implements Serializable
     public double initialPrediction = 0;
     public double lambda = 0.1;
     public double gamma = 1.0;
+    // Search for splits on different features in parallel when there are at least parallelSplitThreshold features
+    public boolean parallelSplitSearch = false;
+    public int parallelSplitThreshold = 1024;
+    // Committees with at least committeeWorkerThreshold trees are spread over numWorkers threads (0 means one per core).
+    // A committee given its own executor uses no more workers than the executor has threads
+    public int numWorkers = 0;
+    public int committeeWorkerThreshold = 16;
+    // Publish an immutable copy of each tree whenever it changes, so that predict can be called from other threads
+    public boolean publishSnapshots = false;
+    // When a tree is estimated to use more than maxMemoryBytes (0 means no limit), its least promising leaves stop
+    // gathering split statistics. The budget applies to each tree separately, and is rebalanced after every split
+    // that exceeds it and every memoryCheckPeriod instances.
+    public long maxMemoryBytes = 0;
+    public int memoryCheckPeriod = 100000;
+    // Leaf histograms start out storing only the bins that have been observed, and switch to a dense array once
+    // that would use less memory
+    public boolean sparseHistograms = true;
+    // After a check that finds no significant split, postpone the next check of the leaf until the F statistic would
+    // reach the critical value if the loss statistics stayed the same, rounded up to a multiple of the grace period
+    // and at most maxCheckInterval instances away
+    public boolean adaptiveGracePeriod = false;
+    public int maxCheckInterval = 2000;
+    // Keep the split candidates of rarely observed features at every leaf, and reuse them until the feature is observed
+    // again. Only features without an implicit bin that were observed at most once since the previous search are
+    // kept, so this helps with features that are usually missing and costs little for the others.
+    public boolean cacheSplitCandidates = false;
 }
\ No newline at end of file
@@ -0,0 +1,534 @@
+package com.henrygouk.sgt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles trees into JVM bytecode for fast prediction. Each tree becomes a static method made up of nested
+ * comparisons between features and constant thresholds, with the leaf values inlined as constants, so there are
+ * no arrays to walk and nothing for the JIT to speculate on.
+ *
+ * Subtrees are moved into methods of their own so that no method is too large for the JIT to compile, and trees
+ * are spread over several classes if they would not fit into one constant pool. A tree that is too large for a
+ * single class, or has a nominal split too wide for a single method, is evaluated by its FlatTree instead. On Java
+ * 15 and later the generated classes are defined as hidden classes, and on earlier versions they are defined by a
+ * dedicated class loader.
+ */
+public class TreeCompiler {
+
+    /**
+     * Implemented by the generated classes. Each class writes the outputs of the trees it was compiled from into
+     * their own slots of out.
+     */
+    public interface Scorer {
+        public void score(int[] features, double[] out);
+    }
+
+    // HotSpot does not compile methods larger than this, see -XX:HugeMethodLimit
+    protected static final int MAX_METHOD_SIZE = 8000;
+
+    // The JVM does not load methods with more bytecode than this
+    protected static final int MAX_CODE_SIZE = 65535;
+
+    protected static final int MAX_CONSTANTS = 60000;
+
+    protected static final String PACKAGE = TreeCompiler.class.getPackage().getName().replace('.', '/');
+
+    protected static final String SCORER = Scorer.class.getName().replace('.', '/');
+
+    protected static final AtomicInteger sClassCounter = new AtomicInteger();
+
+    public static CompiledModel compile(StreamingGradientTree tree) {
+        return compile(new FlatTree[] {tree.getPublishedStructure().snapshot()});
+    }
+
+    public static CompiledModel compile(StreamingGradientTreeCommittee committee) {
+        FlatTree[] trees = ModelFormat.getStructures(committee.getTrees());
+
+        for(int t = 0; t < trees.length; t++) {
+            trees[t] = trees[t].snapshot();
+        }
+
+        return compile(trees);
+    }
+
+    /**
+     * Compiles a set of trees whose outputs are concatenated. The trees must not be modified afterwards.
+     */
+    public static CompiledModel compile(FlatTree[] trees) {
+        List<Scorer> scorers = new ArrayList<>();
+        List<Integer> interpreted = new ArrayList<>();
+        int[] outputOffsets = new int[trees.length];
+        ClassBuilder builder = null;
+        int numOutputs = 0;
+
+        for(int t = 0; t < trees.length; t++) {
+            outputOffsets[t] = numOutputs;
+            numOutputs += trees[t].getNumOutputs();
+            int constants = estimateConstants(trees[t]);
+            boolean[] outlined = constants > MAX_CONSTANTS ? null : ClassBuilder.chooseOutlinedNodes(trees[t]);
+
+            if(outlined == null) {
+                // Too large to compile, so this tree will be evaluated by the FlatTree instead
+                interpreted.add(t);
+                continue;
+            }
+
+            if(builder != null && builder.mPool.size() + constants > MAX_CONSTANTS) {
+                scorers.add(builder.define());
+                builder = null;
+            }
+
+            if(builder == null) {
+                builder = new ClassBuilder();
+            }
+
+            builder.addTree(trees[t], outputOffsets[t], outlined);
+        }
+
+        if(builder != null) {
+            scorers.add(builder.define());
+        }
+
+        int[] interpretedTrees = new int[interpreted.size()];
+
+        for(int i = 0; i < interpretedTrees.length; i++) {
+            interpretedTrees[i] = interpreted.get(i);
+        }
+
+        return new CompiledModel(trees, scorers.toArray(new Scorer[0]), interpretedTrees, outputOffsets, numOutputs);
+    }
+
+    protected static int estimateConstants(FlatTree tree) {
+        // Two pool entries per leaf value, plus the name, descriptor and reference of each method, plus features
+        // and thresholds that do not fit into a short
+        return tree.getNumNodes() * (2 * tree.getNumOutputs() + 6) + 16;
+    }
+
+    /**
+     * Assembles a single generated class. The class file version is 49, which does not require stack map frames.
+     */
+    protected static class ClassBuilder {
+
+        protected String mName = PACKAGE + "/CompiledTrees" + sClassCounter.incrementAndGet();
+
+        protected ConstantPool mPool = new ConstantPool();
+
+        protected ByteArrayOutputStream mMethods = new ByteArrayOutputStream();
+
+        protected int mNumMethods;
+
+        // The body of the score method, which calls the method compiled from each tree
+        protected Code mScore = new Code();
+
+        protected int mNumTrees;
+
+        void addTree(FlatTree tree, int outputOffset, boolean[] outlined) {
+            String prefix = "t" + mNumTrees++ + "n";
+
+            for(int n = 0; n < tree.getNumNodes(); n++) {
+                if(!outlined[n]) {
+                    continue;
+                }
+
+                Code code = new Code();
+                emitNode(tree, n, outputOffset, outlined, prefix, code);
+                addMethod(0x000a, prefix + n, "([I[D)V", code, 4, 2);
+            }
+
+            mScore.op(0x2b); // aload_1
+            mScore.op(0x2c); // aload_2
+            mScore.op(0xb8); // invokestatic
+            mScore.u2(mPool.methodRef(mName, prefix + 0, "([I[D)V"));
+        }
+
+        /**
+         * Decides which subtrees are compiled into methods of their own, working from the leaves up and moving the
+         * largest subtrees out until every method is small enough. The root is always given its own method.
+         *
+         * @return null if a method would still be too large for the JVM, which happens when a nominal split has so
+         * many categories that even the calls to its children do not fit
+         */
+        static boolean[] chooseOutlinedNodes(FlatTree tree) {
+            int nodes = tree.getNumNodes();
+            int[] sizes = new int[nodes];
+            boolean[] outlined = new boolean[nodes];
+            outlined[0] = true;
+
+            // Children are always stored after their parents
+            for(int n = nodes - 1; n >= 0; n--) {
+                if(tree.isLeaf(n)) {
+                    sizes[n] = 8 * tree.getNumOutputs() + 1;
+                    continue;
+                }
+
+                int children = tree.getNumChildren(n);
+                int size = tree.getIndex(n) == -1 ? 21 + 4 * children : 11;
+
+                for(int c = 0; c < children; c++) {
+                    size += sizes[tree.getChild(n, c)];
+                }
+
+                while(size > MAX_METHOD_SIZE) {
+                    int largest = -1;
+
+                    for(int c = 0; c < children; c++) {
+                        int child = tree.getChild(n, c);
+
+                        if(!outlined[child] && (largest == -1 || sizes[child] > sizes[largest])) {
+                            largest = child;
+                        }
+                    }
+
+                    if(largest == -1) {
+                        // A single nominal split with a very large number of categories, which is still fine for the
+                        // interpreter as long as the JVM accepts the method
+                        if(size > MAX_CODE_SIZE) {
+                            return null;
+                        }
+
+                        break;
+                    }
+
+                    outlined[largest] = true;
+                    size += 6 - sizes[largest];
+                    sizes[largest] = 6;
+                }
+
+                sizes[n] = size;
+            }
+
+            return outlined;
+        }
+
+        void emitNode(FlatTree tree, int node, int outputOffset, boolean[] outlined, String prefix, Code code) {
+            if(tree.isLeaf(node)) {
+                for(int k = 0; k < tree.getNumOutputs(); k++) {
+                    code.op(0x2b); // aload_1
+                    code.pushInt(outputOffset + k, mPool);
+                    code.op(0x14); // ldc2_w
+                    code.u2(mPool.doubleConstant(tree.getValue(node, k)));
+                    code.op(0x52); // dastore
+                }
+
+                code.op(0xb1); // return
+                return;
+            }
+
+            code.op(0x2a); // aload_0
+            code.pushInt(tree.getFeature(node), mPool);
+            code.op(0x2e); // iaload
+
+            if(tree.getIndex(node) != -1) {
+                // Missing values are -1, so they go left along with everything else that is <= the threshold
+                code.pushInt(tree.getIndex(node), mPool);
+                int branch = code.size();
+                code.op(0xa3); // if_icmpgt
+                code.u2(0);
+                emitChild(tree, tree.getChild(node, 0), outputOffset, outlined, prefix, code);
+                code.patch2(branch + 1, code.size() - branch);
+                emitChild(tree, tree.getChild(node, 1), outputOffset, outlined, prefix, code);
+            }
+            else {
+                // Missing values fall through to the default case, which is the first child
+                int children = tree.getNumChildren(node);
+                int start = code.size();
+                code.op(0xaa); // tableswitch
+
+                while(code.size() % 4 != 0) {
+                    code.op(0);
+                }
+
+                int table = code.size();
+                code.u4(0);
+                code.u4(0);
+                code.u4(children - 1);
+
+                for(int c = 0; c < children; c++) {
+                    code.u4(0);
+                }
+
+                code.patch4(table, code.size() - start);
+
+                for(int c = 0; c < children; c++) {
+                    code.patch4(table + 12 + 4 * c, code.size() - start);
+                    emitChild(tree, tree.getChild(node, c), outputOffset, outlined, prefix, code);
+                }
+            }
+        }
+
+        void emitChild(FlatTree tree, int child, int outputOffset, boolean[] outlined, String prefix, Code code) {
+            if(outlined[child]) {
+                code.op(0x2a); // aload_0
+                code.op(0x2b); // aload_1
+                code.op(0xb8); // invokestatic
+                code.u2(mPool.methodRef(mName, prefix + child, "([I[D)V"));
+                code.op(0xb1); // return
+            }
+            else {
+                emitNode(tree, child, outputOffset, outlined, prefix, code);
+            }
+        }
+
+        void addMethod(int access, String name, String descriptor, Code code, int maxStack, int maxLocals) {
+            if(code.size() > MAX_CODE_SIZE) {
+                throw new IllegalStateException("Method " + name + " of " + mName + " has " + code.size()
+                    + " bytes of code, which is more than the JVM allows");
+            }
+
+            try {
+                DataOutputStream out = new DataOutputStream(mMethods);
+                out.writeShort(access);
+                out.writeShort(mPool.utf8(name));
+                out.writeShort(mPool.utf8(descriptor));
+                out.writeShort(1);
+                out.writeShort(mPool.utf8("Code"));
+                out.writeInt(12 + code.size());
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(code.size());
+                code.writeTo(out);
+                out.writeShort(0);
+                out.writeShort(0);
+                mNumMethods++;
+            }
+            catch(IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        byte[] toByteArray() {
+            Code init = new Code();
+            init.op(0x2a); // aload_0
+            init.op(0xb7); // invokespecial
+            init.u2(mPool.methodRef("java/lang/Object", "<init>", "()V"));
+            init.op(0xb1); // return
+            addMethod(0x0001, "<init>", "()V", init, 1, 1);
+
+            mScore.op(0xb1); // return
+            addMethod(0x0001, "score", "([I[D)V", mScore, 2, 3);
+
+            int thisClass = mPool.classRef(mName);
+            int superClass = mPool.classRef("java/lang/Object");
+            int scorer = mPool.classRef(SCORER);
+
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(0xcafebabe);
+                out.writeShort(0);
+                out.writeShort(49);
+                mPool.writeTo(out);
+                out.writeShort(0x0011); // public final
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                out.writeShort(1);
+                out.writeShort(scorer);
+                out.writeShort(0);
+                out.writeShort(mNumMethods);
+                mMethods.writeTo(out);
+                out.writeShort(0);
+
+                return bytes.toByteArray();
+            }
+            catch(IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        Scorer define() {
+            byte[] bytes = toByteArray();
+
+            try {
+                return (Scorer)defineClass(mName.replace('/', '.'), bytes).getDeclaredConstructor().newInstance();
+            }
+            catch(ReflectiveOperationException e) {
+                throw new RuntimeException("Could not load a compiled tree", e);
+            }
+        }
+    }
+
+    /**
+     * Defines a hidden class if the running JVM supports them, or otherwise loads the class in its own class loader.
+     */
+    protected static Class<?> defineClass(String name, byte[] bytes) throws ReflectiveOperationException {
+        Method defineHiddenClass = null;
+        Class<?> classOption = null;
+
+        try {
+            classOption = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            defineHiddenClass = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class, Array.newInstance(classOption, 0).getClass());
+        }
+        catch(ClassNotFoundException | NoSuchMethodException e) {
+            return new GeneratedClassLoader(TreeCompiler.class.getClassLoader()).define(name, bytes);
+        }
+
+        MethodHandles.Lookup lookup = (MethodHandles.Lookup)defineHiddenClass.invoke(MethodHandles.lookup(), bytes, true, Array.newInstance(classOption, 0));
+
+        return lookup.lookupClass();
+    }
+
+    protected static class GeneratedClassLoader extends ClassLoader {
+        GeneratedClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    protected static class ConstantPool {
+
+        protected ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+
+        protected DataOutputStream mOut = new DataOutputStream(mBytes);
+
+        protected Map<String, Integer> mEntries = new HashMap<>();
+
+        // The index of the next entry. Index 0 is never used.
+        protected int mNext = 1;
+
+        int size() {
+            return mNext;
+        }
+
+        int utf8(String value) {
+            return add("U" + value, 1, 1, out -> out.writeUTF(value));
+        }
+
+        int classRef(String name) {
+            int nameIndex = utf8(name);
+
+            return add("C" + name, 1, 7, out -> out.writeShort(nameIndex));
+        }
+
+        int methodRef(String owner, String name, String descriptor) {
+            int classIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            int nameAndType = add("N" + name + " " + descriptor, 1, 12, out -> {
+                out.writeShort(nameIndex);
+                out.writeShort(descriptorIndex);
+            });
+
+            return add("M" + owner + " " + name + " " + descriptor, 1, 10, out -> {
+                out.writeShort(classIndex);
+                out.writeShort(nameAndType);
+            });
+        }
+
+        int intConstant(int value) {
+            return add("I" + value, 1, 3, out -> out.writeInt(value));
+        }
+
+        int doubleConstant(double value) {
+            // Keyed on the bit pattern so that -0.0 and 0.0 are kept apart
+            long bits = Double.doubleToRawLongBits(value);
+
+            return add("D" + bits, 2, 6, out -> out.writeLong(bits));
+        }
+
+        int add(String key, int slots, int tag, EntryWriter writer) {
+            Integer index = mEntries.get(key);
+
+            if(index != null) {
+                return index;
+            }
+
+            try {
+                mOut.writeByte(tag);
+                writer.write(mOut);
+            }
+            catch(IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            index = mNext;
+            mNext += slots;
+            mEntries.put(key, index);
+
+            return index;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeShort(mNext);
+            mBytes.writeTo(out);
+        }
+    }
+
+    protected interface EntryWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    protected static class Code {
+
+        protected byte[] mBytes = new byte[256];
+
+        protected int mSize;
+
+        int size() {
+            return mSize;
+        }
+
+        void op(int value) {
+            if(mSize == mBytes.length) {
+                mBytes = Arrays.copyOf(mBytes, mSize * 2);
+            }
+
+            mBytes[mSize++] = (byte)value;
+        }
+
+        void u2(int value) {
+            op(value >>> 8);
+            op(value);
+        }
+
+        void u4(int value) {
+            u2(value >>> 16);
+            u2(value);
+        }
+
+        void patch2(int position, int value) {
+            mBytes[position] = (byte)(value >>> 8);
+            mBytes[position + 1] = (byte)value;
+        }
+
+        void patch4(int position, int value) {
+            patch2(position, value >>> 16);
+            patch2(position + 2, value);
+        }
+
+        void pushInt(int value, ConstantPool pool) {
+            if(value >= -1 && value <= 5) {
+                op(0x03 + value); // iconst_m1 to iconst_5
+            }
+            else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(0x10); // bipush
+                op(value);
+            }
+            else if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op(0x11); // sipush
+                u2(value);
+            }
+            else {
+                op(0x13); // ldc_w
+                u2(pool.intConstant(value));
+            }
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.write(mBytes, 0, mSize);
+        }
+    }
+}
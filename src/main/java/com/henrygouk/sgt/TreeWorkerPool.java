@@ -0,0 +1,346 @@
+package com.henrygouk.sgt;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Spreads a fixed set of trees over a number of long-lived workers. Each worker owns a contiguous range of
+ * trees and receives work through its own bounded queue, so there is no per-instance fork/join dispatch and
+ * the trees owned by a worker are only ever touched by one thread at a time.
+ *
+ * Updates are asynchronous: they are queued and the caller returns immediately. Predictions are queued
+ * behind any pending updates and wait for every worker to finish, so they always see the effect of all
+ * earlier updates. The pool is intended to be driven by a single thread.
+ *
+ * Workers exit after being idle for a short time and are restarted on demand, so a pool that is no longer
+ * used does not keep threads alive.
+ *
+ * If updating a tree fails, or the executor rejects a worker, the trees may no longer be consistent with each other.
+ * The pool then discards all queued work, and every later call throws an IllegalStateException.
+ */
+public class TreeWorkerPool {
+
+    protected static final int QUEUE_CAPACITY = 1024;
+
+    protected static final long IDLE_TIMEOUT_MILLIS = 1000;
+
+    protected StreamingGradientTree[] mTrees;
+
+    protected Worker[] mWorkers;
+
+    protected Executor mExecutor;
+
+    protected volatile Throwable mError;
+
+    /**
+     * @param trees the trees to distribute over the workers
+     * @param numWorkers the number of workers
+     * @param executor used to run the workers, or null to run each worker on its own daemon thread. A worker keeps
+     * its thread until it has been idle for a while, so the executor must be able to run every worker at once. The
+     * number of workers is reduced to fit thread pools and fork/join pools, but other executors are not checked.
+     */
+    public TreeWorkerPool(StreamingGradientTree[] trees, int numWorkers, Executor executor) {
+        mTrees = trees;
+        mExecutor = executor;
+        numWorkers = Math.max(1, Math.min(Math.min(numWorkers, trees.length), getMaxThreads(executor)));
+        mWorkers = new Worker[numWorkers];
+
+        for(int i = 0; i < numWorkers; i++) {
+            mWorkers[i] = new Worker(trees.length * i / numWorkers, trees.length * (i + 1) / numWorkers);
+        }
+    }
+
+    // Returns Integer.MAX_VALUE if the executor does not have a known limit
+    protected static int getMaxThreads(Executor executor) {
+        if(executor instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor)executor).getMaximumPoolSize();
+        }
+        else if(executor instanceof ForkJoinPool) {
+            return ((ForkJoinPool)executor).getParallelism();
+        }
+        else {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    public int getNumWorkers() {
+        return mWorkers.length;
+    }
+
+    // The queues are allocated up front, so this does not depend on how much work is pending
+    public long getMemoryBytes() {
+        return MemoryUsage.objectBytes(4 * MemoryUsage.REFERENCE) + MemoryUsage.arrayBytes(mWorkers.length, MemoryUsage.REFERENCE)
+            + mWorkers.length * (MemoryUsage.objectBytes(2 * 4 + 3 * MemoryUsage.REFERENCE)
+            + MemoryUsage.arrayBytes(QUEUE_CAPACITY, MemoryUsage.REFERENCE));
+    }
+
+    public void update(int[] features, GradHess[] gradHesses) {
+        update(null, features, gradHesses);
+    }
+
+    /**
+     * Queues an update using the leaf indices written by an earlier call to predict, or routes the instance again if
+     * leaves is null.
+     */
+    public void update(int[] leaves, int[] features, GradHess[] gradHesses) {
+        // The caller is free to reuse its arrays once this method returns, so take a copy
+        int[] featuresCopy = features.clone();
+
+        if(leaves == null) {
+            update(gradHesses, (gradHess, i) -> mTrees[i].update(featuresCopy, gradHess));
+        }
+        else {
+            update(gradHesses, (gradHess, i) -> mTrees[i].update(leaves[i], featuresCopy, gradHess));
+        }
+    }
+
+    public void update(int[] leaves, SparseFeatures features, GradHess[] gradHesses) {
+        SparseFeatures featuresCopy = features.copy();
+
+        if(leaves == null) {
+            update(gradHesses, (gradHess, i) -> mTrees[i].update(featuresCopy, gradHess));
+        }
+        else {
+            update(gradHesses, (gradHess, i) -> mTrees[i].update(leaves[i], featuresCopy, gradHess));
+        }
+    }
+
+    /**
+     * Queues a call to updateTree for every tree, with the gradient information for that tree and its index. The
+     * gradients are copied, but anything else updateTree refers to must be left unchanged by the caller.
+     */
+    public void update(GradHess[] gradHesses, ObjIntConsumer<GradHess> updateTree) {
+        GradHess[] gradHessesCopy = new GradHess[gradHesses.length];
+
+        for(int i = 0; i < gradHesses.length; i++) {
+            gradHessesCopy[i] = new GradHess(gradHesses[i]);
+        }
+
+        submit(new Task() {
+            void run(int start, int end) {
+                for(int i = start; i < end; i++) {
+                    updateTree.accept(gradHessesCopy[i], i);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the batch update of every tree, where gradHesses[i][j] is the gradient information for instance i
+     * and tree j. This waits for the batch to be processed.
+     */
+    public void update(int[][] features, GradHess[][] gradHesses) {
+        submitAndWait(new Task() {
+            void run(int start, int end) {
+                GradHess[] treeGradHesses = new GradHess[features.length];
+
+                for(int i = start; i < end; i++) {
+                    for(int j = 0; j < features.length; j++) {
+                        treeGradHesses[j] = gradHesses[j][i];
+                    }
+
+                    mTrees[i].update(features, treeGradHesses);
+                }
+            }
+        });
+    }
+
+    public void predict(int[] features, double[] out) {
+        predict(features, out, null);
+    }
+
+    /**
+     * Makes a prediction with each tree and, if leaves is not null, records the leaf each tree routed the instance to.
+     */
+    public void predict(int[] features, double[] out, int[] leaves) {
+        submitAndWait(new Task() {
+            void run(int start, int end) {
+                for(int i = start; i < end; i++) {
+                    if(leaves == null) {
+                        out[i] = mTrees[i].predict(features);
+                    }
+                    else {
+                        leaves[i] = mTrees[i].getLeafIndex(features);
+                        out[i] = mTrees[i].getStructure().getValue(leaves[i]);
+                    }
+                }
+            }
+        });
+    }
+
+    public void predict(SparseFeatures features, double[] out, int[] leaves) {
+        submitAndWait(new Task() {
+            void run(int start, int end) {
+                for(int i = start; i < end; i++) {
+                    if(leaves == null) {
+                        out[i] = mTrees[i].predict(features);
+                    }
+                    else {
+                        leaves[i] = mTrees[i].getLeafIndex(features);
+                        out[i] = mTrees[i].getStructure().getValue(leaves[i]);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until all previously submitted work has been completed.
+     */
+    public void sync() {
+        submitAndWait(new Task() {
+            void run(int start, int end) {
+            }
+        });
+    }
+
+    protected void submit(Task task) {
+        checkError();
+
+        for(Worker worker : mWorkers) {
+            worker.submit(task);
+        }
+    }
+
+    protected void submitAndWait(Task task) {
+        task.mDone = new CountDownLatch(mWorkers.length);
+        submit(task);
+
+        try {
+            task.mDone.await();
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+
+        checkError();
+    }
+
+    protected void checkError() {
+        Throwable error = mError;
+
+        if(error != null) {
+            throw new IllegalStateException("A tree worker failed", error);
+        }
+    }
+
+    // Only the first error is kept, and the pool cannot be used once one has been recorded
+    protected synchronized void fail(Throwable error) {
+        if(mError == null) {
+            mError = error;
+        }
+    }
+
+    protected static abstract class Task {
+        CountDownLatch mDone;
+
+        abstract void run(int start, int end);
+    }
+
+    protected class Worker implements Runnable {
+        protected final int mStart;
+
+        protected final int mEnd;
+
+        protected final BlockingQueue<Task> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+        protected final AtomicBoolean mRunning = new AtomicBoolean(false);
+
+        Worker(int start, int end) {
+            mStart = start;
+            mEnd = end;
+        }
+
+        void submit(Task task) {
+            try {
+                mQueue.put(task);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+
+            if(mRunning.compareAndSet(false, true)) {
+                start();
+            }
+        }
+
+        void start() {
+            if(mExecutor != null) {
+                try {
+                    mExecutor.execute(this);
+                }
+                catch(RejectedExecutionException e) {
+                    // Nothing will run the queued work, so release anyone waiting for it
+                    fail(e);
+                    mRunning.set(false);
+                    discardQueued();
+                }
+            }
+            else {
+                Thread thread = new Thread(this, "sgt-tree-worker-" + mStart + "-" + mEnd);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        void discardQueued() {
+            Task task;
+
+            while((task = mQueue.poll()) != null) {
+                if(task.mDone != null) {
+                    task.mDone.countDown();
+                }
+            }
+        }
+
+        public void run() {
+            while(true) {
+                Task task;
+
+                try {
+                    // A failed pool only drains its queues, so there is no reason to wait for more work
+                    task = mQueue.poll(mError == null ? IDLE_TIMEOUT_MILLIS : 0, TimeUnit.MILLISECONDS);
+                }
+                catch(InterruptedException e) {
+                    task = null;
+                }
+
+                if(task == null) {
+                    mRunning.set(false);
+
+                    // Something may have been queued after the poll timed out but before mRunning was cleared
+                    if(mQueue.isEmpty() || !mRunning.compareAndSet(false, true)) {
+                        return;
+                    }
+
+                    continue;
+                }
+
+                try {
+                    // The work queued after a failure is discarded, as the trees may have been left half updated
+                    if(mError == null) {
+                        task.run(mStart, mEnd);
+                    }
+                }
+                catch(Throwable e) {
+                    fail(e);
+                }
+                finally {
+                    if(task.mDone != null) {
+                        task.mDone.countDown();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -4,6 +4,7 @@ import java.io.Serializable;
 import java.util.Random;
 
 import com.henrygouk.sgt.GradHess;
+import com.henrygouk.sgt.MemoryUsage;
 
 public class FullyConnected implements Serializable, Layer {
     
@@ -51,6 +52,29 @@ public class FullyConnected implements Serializable, Layer {
         mLearningRate = learningRate;
     }
 
+    public int getNumInputs() {
+        return mInputs;
+    }
+
+    public int getNumOutputs() {
+        return mOutputs;
+    }
+
+    // The weight connecting input i to output o is stored at o * getNumInputs() + i
+    public double[] getWeights() {
+        return mWeights;
+    }
+
+    public double[] getBiases() {
+        return mBiases;
+    }
+
+    public long getMemoryBytes() {
+        // The weights and biases each have gradient, momentum, and velocity arrays of the same size
+        return MemoryUsage.objectBytes(8 * MemoryUsage.REFERENCE + 5 * 4 + 4 * 8) + 4 * MemoryUsage.arrayBytes(mWeights.length, 8)
+            + 4 * MemoryUsage.arrayBytes(mBiases.length, 8);
+    }
+
     public FullyConnected(int numInputs, int numOutputs, int batchSize, double learningRate, double beta1, double beta2, double epsilon) {
         mInputs = numInputs;
         mOutputs = numOutputs;
@@ -3,6 +3,7 @@ package com.henrygouk.sgt.neural;
 import java.io.Serializable;
 
 import com.henrygouk.sgt.GradHess;
+import com.henrygouk.sgt.MemoryUsage;
 
 public class Identity implements Serializable, Layer {
     private static final long serialVersionUID = 1583592862930132577L;
@@ -14,4 +15,8 @@ public class Identity implements Serializable, Layer {
     public double[] predict(double[] features) {
         return features.clone();
     }
+
+    public long getMemoryBytes() {
+        return MemoryUsage.objectBytes(0);
+    }
 }
\ No newline at end of file
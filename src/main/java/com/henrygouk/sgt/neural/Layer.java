@@ -6,4 +6,7 @@ public interface Layer {
     public GradHess[] update(double[] features, GradHess[] gradHess);
 
     public double[] predict(double[] features);
+
+    // An estimate of the heap memory used by the parameters and optimiser state of the layer
+    public long getMemoryBytes();
 }
\ No newline at end of file
@@ -3,6 +3,7 @@ package com.henrygouk.sgt.neural;
 import java.io.Serializable;
 
 import com.henrygouk.sgt.GradHess;
+import com.henrygouk.sgt.MemoryUsage;
 
 public class RectifiedLinearUnit implements Serializable, Layer {
 
@@ -32,4 +33,8 @@ public class RectifiedLinearUnit implements Serializable, Layer {
 
         return result;
     }
+
+    public long getMemoryBytes() {
+        return MemoryUsage.objectBytes(0);
+    }
 }
\ No newline at end of file
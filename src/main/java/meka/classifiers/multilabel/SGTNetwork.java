@@ -25,7 +25,7 @@ public class SGTNetwork extends AbstractMultiLabelClassifier {
     protected double mEpsilon = 1E-8;
     protected int mEpochs = 20;
     protected Objective mObjective;
-    protected Discretize mDiscretize;
+    protected Discretizer mDiscretizer;
 
     public int getEpochs() {
         return mEpochs;
@@ -38,6 +38,8 @@ public class SGTNetwork extends AbstractMultiLabelClassifier {
     @Override
     public void buildClassifier(Instances data) throws Exception {
         FeatureInfo[] featureInfo = createFeatureInfo(data);
+        fitDiscretizer(featureInfo, data);
+        EncodedDataset encoded = encode(featureInfo, data);
 
         Layer[] layers = new Layer[] {
             new FullyConnected(mNumTrees, mNumHidden, mBatchSize, mLearningRate, mBeta1, mBeta2, mEpsilon),
@@ -56,21 +58,16 @@ public class SGTNetwork extends AbstractMultiLabelClassifier {
         mNetwork.randomlyInitialize(new Random(), 1.0 / Math.sqrt(mNumTrees));
         mObjective = new BinaryCrossEntropy();
 
-        for(int e = 0; e < mEpochs; e++) {
-            for(int i = 0; i < data.numInstances(); i++) {
-                int[] features = getFeatures(data.instance(i));
-
-                double[] pred = mNetwork.predict(features);
-                double[] groundTruth = new double[data.classIndex()];
-                groundTruth = new double[data.classIndex()];
+        int[] features = new int[featureInfo.length];
 
-                for(int l = 0; l < data.classIndex(); l++) {
-                    groundTruth[l] = data.instance(i).value(l);
-                }
+        for(int e = 0; e < mEpochs; e++) {
+            for(int i = 0; i < encoded.getNumRows(); i++) {
+                encoded.getFeatures(i, features);
 
-                GradHess[] gradHess = mObjective.computeDerivatives(groundTruth, pred);
+                double[] groundTruth = new double[encoded.getNumTargets()];
+                encoded.getTargets(i, groundTruth);
 
-                mNetwork.update(features, gradHess);
+                mNetwork.predictAndUpdate(features, pred -> mObjective.computeDerivatives(groundTruth, pred));
             }
         }
     }
@@ -106,36 +103,60 @@ public class SGTNetwork extends AbstractMultiLabelClassifier {
             i++;
         }
 
-        mDiscretize = new Discretize();
-        mDiscretize.setUseEqualFrequency(true);
-        mDiscretize.setBins(mBins);
-        mDiscretize.setInputFormat(insts);
-        Filter.useFilter(insts, mDiscretize);
-
         return featureInfo;
     }
 
-    private int[] getFeatures(Instance inst) {
-        mDiscretize.input(inst);
-        mDiscretize.batchFinished();
-        inst = mDiscretize.output();
-        
-        int[] features = new int[inst.numAttributes() - inst.classIndex()];
+    // Fits the discretisation filter to insts and keeps only the cut points it learns
+    private void fitDiscretizer(FeatureInfo[] featureInfo, Instances insts) throws Exception {
+        Discretize discretize = new Discretize();
+        discretize.setUseEqualFrequency(true);
+        discretize.setBins(mBins);
+        discretize.setInputFormat(insts);
+        Filter.useFilter(insts, discretize);
 
+        mDiscretizer = new Discretizer(featureInfo);
         int i = 0;
 
-        for(int attInd = 0; attInd < inst.numAttributes(); attInd++) {
-            if(attInd < inst.classIndex()) {
+        for(int attInd = 0; attInd < insts.numAttributes(); attInd++) {
+            if(attInd < insts.classIndex()) {
                 continue;
             }
 
-            if(Double.isNaN(inst.value(attInd))) {
-                features[i] = -1;
+            if(featureInfo[i].type == FeatureType.ordinal) {
+                mDiscretizer.setCutPoints(i, discretize.getCutPoints(attInd));
+            }
+
+            i++;
+        }
+    }
+
+    // The labels come before the features, and are used as the targets
+    private EncodedDataset encode(FeatureInfo[] featureInfo, Instances data) {
+        EncodedDataset result = new EncodedDataset(featureInfo, data.numInstances(), data.classIndex());
+        double[] labels = new double[data.classIndex()];
+
+        for(int i = 0; i < data.numInstances(); i++) {
+            for(int l = 0; l < labels.length; l++) {
+                labels[l] = data.instance(i).value(l);
             }
-            else if(inst.attribute(attInd).isNominal()) {
-                features[i] = (int)inst.value(attInd);
+
+            result.set(i, getFeatures(data.instance(i)), labels);
+        }
+
+        return result;
+    }
+
+    private int[] getFeatures(Instance inst) {
+        int[] features = new int[mDiscretizer.getNumFeatures()];
+
+        int i = 0;
+
+        for(int attInd = 0; attInd < inst.numAttributes(); attInd++) {
+            if(attInd < inst.classIndex()) {
+                continue;
             }
 
+            features[i] = mDiscretizer.getBin(i, inst.value(attInd));
             i++;
         }
 
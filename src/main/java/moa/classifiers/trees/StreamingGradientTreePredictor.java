@@ -39,12 +39,30 @@ public class StreamingGradientTreePredictor extends AbstractClassifier implement
     public IntOption gracePeriod = new IntOption("gracePeriod", 'G',
         "The number of instances to observe between searches for new splits.", 200, 0, Integer.MAX_VALUE);
     
+    public FlagOption adaptiveGracePeriod = new FlagOption("adaptiveGracePeriod", 'P',
+        "Postpone the next split search of a leaf until its last search suggests a significant split is possible.");
+
+    public IntOption maxCheckInterval = new IntOption("maxCheckInterval", 'I',
+        "The largest number of instances an adaptive grace period can postpone a split search by.", 2000, 0, Integer.MAX_VALUE);
+
     public IntOption warmStart = new IntOption("warmStart", 'W',
         "The number of instances used to estimate bin boundaries for numeric values.", 1000, 0, Integer.MAX_VALUE);
 
     public IntOption bins = new IntOption("bins", 'B',
         "The number of bins to be used for discretizing numeric attributes.", 64, 0, Integer.MAX_VALUE);
 
+    public FlagOption quantileBins = new FlagOption("quantileBins", 'Q',
+        "Place the bin boundaries of numeric attributes at quantiles estimated during the warm start, and give numeric attributes with at most as many distinct values as bins one bin per value.");
+
+    public IntOption maxMemory = new IntOption("maxMemory", 'X',
+        "The memory budget of each tree in kilobytes, after which the least promising leaves stop learning splits. 0 means no limit. Cannot be combined with vectorLeaves.", 0, 0, Integer.MAX_VALUE);
+
+    public FlagOption sparse = new FlagOption("sparse", 'S',
+        "Treat zero as the default value of every attribute and only visit the values stored in sparse instances.");
+
+    public FlagOption vectorLeaves = new FlagOption("vectorLeaves", 'M',
+        "Use a single tree with vector-valued leaves instead of one tree per class. Cannot be combined with a maxMemory budget.");
+
     public FloatOption semiSupervisedOption = new FloatOption("enableSemiSupervised", 'U',
         "Enables learning from unlabelled instances", 0.0, 0.0, 1.0);
 
@@ -61,16 +79,26 @@ public class StreamingGradientTreePredictor extends AbstractClassifier implement
     @Override
     public void resetLearningImpl() {
         mTrees = null;
-        mDiscretizer = new AttributeDiscretizer(bins.getValue());
+        mDiscretizer = new AttributeDiscretizer(bins.getValue(), sparse.isSet(), quantileBins.isSet());
         mInstances = 0;
     }
 
     @Override
     public int measureByteSize() {
-        return 0;
+        long bytes = mDiscretizer == null ? 0 : mDiscretizer.getMemoryBytes();
+
+        if(mTrees != null) {
+            bytes += mTrees.getMemoryBytes();
+        }
+
+        return (int)Math.min(bytes, Integer.MAX_VALUE);
     }
 
     protected MultiOutputLearner createTrees(FeatureInfo[] featureInfo, StreamingGradientTreeOptions options, int numOutputs) {
+        if(vectorLeaves.isSet()) {
+            return new MultiOutputStreamingGradientTree(featureInfo, options, numOutputs);
+        }
+
         return new StreamingGradientTreeCommittee(featureInfo, options, numOutputs);
     }
 
@@ -89,8 +117,11 @@ public class StreamingGradientTreePredictor extends AbstractClassifier implement
             StreamingGradientTreeOptions options = new StreamingGradientTreeOptions();
             options.delta = delta.getValue();
             options.gracePeriod = gracePeriod.getValue();
+            options.adaptiveGracePeriod = adaptiveGracePeriod.isSet();
+            options.maxCheckInterval = maxCheckInterval.getValue();
             options.lambda = lambda.getValue();
             options.gamma = gamma.getValue();
+            options.maxMemoryBytes = maxMemory.getValue() * 1024L;
 
             if(target.isNominal()) {
                 mTrees = createTrees(featureInfo, options, target.numValues() - 1);
@@ -102,33 +133,39 @@ public class StreamingGradientTreePredictor extends AbstractClassifier implement
             }
         }
 
-        int[] features = mDiscretizer.getFeatures(inst);
-        double[] groundTruth;
-        double[] raw = mTrees.predict(features);
+        GradientCallback callback = raw -> {
+            double[] groundTruth;
 
-        if(target.isNominal()) {
-            if(!inst.classIsMissing()) {
-                groundTruth = new double[target.numValues()];
-                groundTruth[(int)inst.classValue()] = 1.0;
-            }
-            else if(semiSupervisedOption.getValue() > 0.0) {
-                //This is equivalent to entropy minimisation when mObjective is the SoftmaxCrossEntropy objective
-                groundTruth = mObjective.transfer(raw);
+            if(target.isNominal()) {
+                if(!inst.classIsMissing()) {
+                    groundTruth = new double[target.numValues()];
+                    groundTruth[(int)inst.classValue()] = 1.0;
+                }
+                else if(semiSupervisedOption.getValue() > 0.0) {
+                    //This is equivalent to entropy minimisation when mObjective is the SoftmaxCrossEntropy objective
+                    groundTruth = mObjective.transfer(raw);
 
-                for(int j = 0; j < groundTruth.length; j++) {
-                    groundTruth[j] *= semiSupervisedOption.getValue();
+                    for(int j = 0; j < groundTruth.length; j++) {
+                        groundTruth[j] *= semiSupervisedOption.getValue();
+                    }
+                }
+                else {
+                    return null;
                 }
             }
             else {
-                return;
+                groundTruth = new double[] {inst.classValue()};
             }
+
+            return mObjective.computeDerivatives(groundTruth, raw);
+        };
+
+        if(sparse.isSet()) {
+            mTrees.predictAndUpdate(mDiscretizer.getSparseFeatures(inst), callback);
         }
         else {
-            groundTruth = new double[] {inst.classValue()};
+            mTrees.predictAndUpdate(mDiscretizer.getFeatures(inst), callback);
         }
-
-        GradHess[] gradHess = mObjective.computeDerivatives(groundTruth, raw);
-        mTrees.update(features, gradHess);
     }
 
     public double[] getVotesForInstance(Instance inst) {
@@ -141,9 +178,15 @@ public class StreamingGradientTreePredictor extends AbstractClassifier implement
             }
         }
 
-        int[] features = mDiscretizer.getFeatures(inst);
-        double[] raw = mTrees.predict(features);
-        
+        double[] raw;
+
+        if(sparse.isSet()) {
+            raw = mTrees.predict(mDiscretizer.getSparseFeatures(inst));
+        }
+        else {
+            raw = mTrees.predict(mDiscretizer.getFeatures(inst));
+        }
+
         return mObjective.transfer(raw);
     }
 
@@ -159,19 +202,25 @@ public class StreamingGradientTreePredictor extends AbstractClassifier implement
         double splits = 0.0;
         double updates = 0.0;
         double maxDepth = 0.0;
+        MemoryUsage memory = new MemoryUsage();
 
         if(mTrees != null) {
             nodes = mTrees.getNumNodes();
             splits = mTrees.getNumSplits();
             updates = mTrees.getNumNodeUpdates();
             maxDepth = mTrees.getMaxDepth();
+            memory = mTrees.getMemoryUsage();
         }
 
         return new Measurement[] {
             new Measurement("nodes", nodes),
             new Measurement("splits", splits),
             new Measurement("node updates", updates),
-            new Measurement("max depth", maxDepth)
+            new Measurement("max depth", maxDepth),
+            new Measurement("model bytes", memory.getTotalBytes()),
+            new Measurement("structure bytes", memory.structureBytes),
+            new Measurement("leaf statistics bytes", memory.leafStatisticsBytes),
+            new Measurement("layer parameter bytes", memory.layerParameterBytes)
         };
     }
 }
@@ -1,18 +1,44 @@
 package moa.classifiers.trees.sgt;
 
 import java.io.Serializable;
+import java.util.Arrays;
 
 import com.henrygouk.sgt.*;
 import com.yahoo.labs.samoa.instances.*;
 
 public class AttributeDiscretizer implements Serializable {
+    // The size parameter of each quantile sketch, which bounds its error and memory
+    public static final int SKETCH_SIZE = 200;
+
     protected int mBins;
     protected FeatureInfo[] mFeatureInfo;
-    protected double[] mMin;
-    protected double[] mMax;
+    protected Discretizer mDiscretizer;
+
+    // If set, every feature has an implicit default bin holding the value zero, and sparse instances are only
+    // visited at their stored values
+    protected boolean mSparse;
+
+    // If set, numeric bin boundaries are placed at quantiles of the observed values, and numeric attributes with at
+    // most mBins distinct values get one bin per value
+    protected boolean mQuantiles;
+
+    // One sketch per numeric input attribute while observing in quantile mode, and null otherwise
+    protected QuantileSketch[] mSketches;
+
+    protected long mObserved;
 
     public AttributeDiscretizer(int bins) {
+        this(bins, false);
+    }
+
+    public AttributeDiscretizer(int bins, boolean sparse) {
+        this(bins, sparse, false);
+    }
+
+    public AttributeDiscretizer(int bins, boolean sparse, boolean quantiles) {
         mBins = bins;
+        mSparse = sparse;
+        mQuantiles = quantiles;
     }
 
     public void observe(Instance inst) {
@@ -20,50 +46,124 @@ public class AttributeDiscretizer implements Serializable {
             createFeatureInfo(inst);
         }
 
+        mObserved++;
+
+        if(mSparse) {
+            // Values that are not stored are zero, which is always inside the range
+            for(int k = 0; k < inst.numValues(); k++) {
+                int i = getInputIndex(inst, inst.index(k));
+
+                if(i != -1) {
+                    observe(i, inst.valueSparse(k));
+                }
+            }
+
+            return;
+        }
+
         for(int i = 0; i < inst.numInputAttributes(); i++) {
-            if(!Double.isNaN(inst.valueInputAttribute(i))) {
-                mMin[i] = Math.min(mMin[i], inst.valueInputAttribute(i));
-                mMax[i] = Math.max(mMax[i], inst.valueInputAttribute(i));
+            observe(i, inst.valueInputAttribute(i));
+        }
+    }
+
+    protected void observe(int i, double value) {
+        if(mSketches != null) {
+            if(mSketches[i] != null) {
+                mSketches[i].update(value);
             }
         }
+        else {
+            mDiscretizer.observe(i, value);
+        }
     }
 
     public int[] getFeatures(Instance inst) {
         int[] features = new int[inst.numInputAttributes()];
 
         for(int i = 0; i < features.length; i++) {
-            if(Double.isNaN(inst.valueInputAttribute(i))) {
-                features[i] = -1;
-            }
-            else if(inst.inputAttribute(i).isNominal()) {
-                features[i] = (int)inst.valueInputAttribute(i);
-            }
-            else {
-                features[i] = (int)((double)mBins * ((inst.valueInputAttribute(i) - mMin[i]) / (mMax[i] - mMin[i])));
+            features[i] = getBin(i, inst.valueInputAttribute(i));
+        }
 
-                if(features[i] < 0) {
-                    features[i] = 0;
-                }
-                else if(features[i] >= mBins) {
-                    features[i] = mBins - 1;
-                }
+        return features;
+    }
+
+    /**
+     * Discretises only the values that are stored in the instance. The remaining features take their default bin.
+     */
+    public SparseFeatures getSparseFeatures(Instance inst) {
+        int[] indices = new int[inst.numValues()];
+        int[] bins = new int[inst.numValues()];
+        int n = 0;
+
+        for(int k = 0; k < inst.numValues(); k++) {
+            int i = getInputIndex(inst, inst.index(k));
+
+            if(i != -1) {
+                indices[n] = i;
+                bins[n] = getBin(i, inst.valueSparse(k));
+                n++;
             }
         }
 
-        return features;
+        return new SparseFeatures(mFeatureInfo, Arrays.copyOf(indices, n), Arrays.copyOf(bins, n));
+    }
+
+    protected int getBin(int i, double value) {
+        return mDiscretizer.getBin(i, value);
+    }
+
+    // Maps an attribute index to an input attribute index, or -1 for the class attribute
+    protected int getInputIndex(Instance inst, int attribute) {
+        int classIndex = inst.classIndex();
+
+        if(attribute == classIndex) {
+            return -1;
+        }
+
+        return classIndex >= 0 && attribute > classIndex ? attribute - 1 : attribute;
     }
 
+    /**
+     * Returns the feature descriptions. The bins depend on the observed values in quantile mode, as do the default
+     * bins in sparse mode, so this should only be called once observation has finished.
+     */
     public FeatureInfo[] getFeatureInfo() {
+        if(mSketches != null) {
+            fitQuantiles();
+        }
+
+        if(mSparse) {
+            mDiscretizer.setImplicitDefaults();
+        }
+
         return mFeatureInfo;
     }
 
+    public long getMemoryBytes() {
+        long result = MemoryUsage.objectBytes(4 + 8 + 2 + 3 * MemoryUsage.REFERENCE);
+
+        if(mDiscretizer != null) {
+            result += mDiscretizer.getMemoryBytes();
+        }
+
+        if(mSketches != null) {
+            result += MemoryUsage.arrayBytes(mSketches.length, MemoryUsage.REFERENCE);
+
+            for(QuantileSketch sketch : mSketches) {
+                if(sketch != null) {
+                    result += sketch.getMemoryBytes();
+                }
+            }
+        }
+
+        return result;
+    }
+
     protected void createFeatureInfo(Instance inst) {
         mFeatureInfo = new FeatureInfo[inst.numInputAttributes()];
 
         for(int i = 0; i < mFeatureInfo.length; i++) {
             mFeatureInfo[i] = new FeatureInfo();
-            mMax = new double[mFeatureInfo.length];
-            mMin = new double[mFeatureInfo.length];
 
             if(inst.inputAttribute(i).isNominal()) {
                 mFeatureInfo[i].type = FeatureType.nominal;
@@ -74,5 +174,69 @@ public class AttributeDiscretizer implements Serializable {
                 mFeatureInfo[i].categories = mBins;
             }
         }
+
+        mDiscretizer = new Discretizer(mFeatureInfo);
+
+        if(mQuantiles) {
+            mSketches = new QuantileSketch[mFeatureInfo.length];
+
+            for(int i = 0; i < mFeatureInfo.length; i++) {
+                if(mFeatureInfo[i].type == FeatureType.ordinal) {
+                    mSketches[i] = new QuantileSketch(SKETCH_SIZE, mBins);
+                }
+            }
+        }
+    }
+
+    // Replaces the equal-width bins of each numeric attribute with bins taken from its sketch, and frees the sketches
+    protected void fitQuantiles() {
+        for(int i = 0; i < mSketches.length; i++) {
+            QuantileSketch sketch = mSketches[i];
+
+            if(sketch == null) {
+                continue;
+            }
+
+            if(mSparse) {
+                // The values that were not stored are all zero
+                sketch.update(0.0, mObserved - sketch.getCount());
+            }
+
+            double[] distinct = sketch.getDistinctValues();
+            double[] cutPoints;
+
+            if(distinct != null) {
+                // Few enough values for each to get a bin, with the boundaries half way between them
+                cutPoints = new double[Math.max(distinct.length - 1, 0)];
+
+                for(int j = 0; j < cutPoints.length; j++) {
+                    cutPoints[j] = distinct[j] + (distinct[j + 1] - distinct[j]) / 2.0;
+                }
+            }
+            else {
+                double[] fractions = new double[Math.max(mBins - 1, 0)];
+
+                for(int j = 0; j < fractions.length; j++) {
+                    fractions[j] = (j + 1.0) / mBins;
+                }
+
+                // Heavily repeated values can produce the same quantile several times
+                double[] quantiles = sketch.getQuantiles(fractions);
+                int n = 0;
+
+                for(int j = 0; j < quantiles.length; j++) {
+                    if(n == 0 || quantiles[j] > quantiles[n - 1]) {
+                        quantiles[n++] = quantiles[j];
+                    }
+                }
+
+                cutPoints = Arrays.copyOf(quantiles, n);
+            }
+
+            mDiscretizer.setCutPoints(i, cutPoints);
+            mFeatureInfo[i].categories = cutPoints.length + 1;
+        }
+
+        mSketches = null;
     }
-}
\ No newline at end of file
+}
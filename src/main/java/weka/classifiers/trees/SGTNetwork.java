@@ -28,7 +28,7 @@ public class SGTNetwork extends AbstractClassifier {
     protected double mEpsilon = 1E-8;
     protected int mEpochs = 20;
     protected Objective mObjective;
-    protected Discretize mDiscretize;
+    protected Discretizer mDiscretizer;
     protected double mLambda = 0.1;
     protected double mGamma = 1.0;
     protected Stats mTargetStats;
@@ -76,6 +76,8 @@ public class SGTNetwork extends AbstractClassifier {
     @Override
     public void buildClassifier(Instances data) throws Exception {
         FeatureInfo[] featureInfo = createFeatureInfo(data);
+        fitDiscretizer(featureInfo, data);
+        EncodedDataset encoded = encode(featureInfo, data);
         Attribute target = data.classAttribute();
         mTargetStats = data.attributeStats(data.classIndex()).numericStats;
 
@@ -96,26 +98,24 @@ public class SGTNetwork extends AbstractClassifier {
         mNetwork.randomlyInitialize(new Random(), 1.0 / Math.sqrt(mNumTrees));
         mObjective = target.isNominal() ? new SoftmaxCrossEntropy() : new SquaredError();
 
+        int[] features = new int[featureInfo.length];
+
         for(int e = 0; e < mEpochs; e++) {
-            for(int i = 0; i < data.numInstances(); i++) {
-                int[] features = getFeatures(data.instance(i));
+            for(int i = 0; i < encoded.getNumRows(); i++) {
+                encoded.getFeatures(i, features);
 
-                double[] pred = mNetwork.predict(features);
                 double[] groundTruth;
                 
                 if(target.isNominal()) {
                     groundTruth = new double[target.numValues()];
-                    groundTruth = new double[target.numValues()];
-                    groundTruth[(int)data.instance(i).classValue()] = 1.0;
+                    groundTruth[(int)encoded.getTarget(i)] = 1.0;
                 }
                 else {
                     groundTruth = new double[1];
-                    groundTruth[0] = (data.instance(i).classValue() - mTargetStats.mean) / mTargetStats.stdDev;
+                    groundTruth[0] = (encoded.getTarget(i) - mTargetStats.mean) / mTargetStats.stdDev;
                 }
 
-                GradHess[] gradHess = mObjective.computeDerivatives(groundTruth, pred);
-
-                mNetwork.update(features, gradHess);
+                mNetwork.predictAndUpdate(features, pred -> mObjective.computeDerivatives(groundTruth, pred));
             }
         }
     }
@@ -152,36 +152,54 @@ public class SGTNetwork extends AbstractClassifier {
             i++;
         }
 
-        mDiscretize = new Discretize();
-        mDiscretize.setUseEqualFrequency(true);
-        mDiscretize.setBins(mBins);
-        mDiscretize.setInputFormat(insts);
-        Filter.useFilter(insts, mDiscretize);
-
         return featureInfo;
     }
 
-    private int[] getFeatures(Instance inst) {
-        mDiscretize.input(inst);
-        mDiscretize.batchFinished();
-        inst = mDiscretize.output();
-        
-        int[] features = new int[inst.numAttributes() - 1];
+    // Fits the discretisation filter to insts and keeps only the cut points it learns
+    private void fitDiscretizer(FeatureInfo[] featureInfo, Instances insts) throws Exception {
+        Discretize discretize = new Discretize();
+        discretize.setUseEqualFrequency(true);
+        discretize.setBins(mBins);
+        discretize.setInputFormat(insts);
+        Filter.useFilter(insts, discretize);
 
+        mDiscretizer = new Discretizer(featureInfo);
         int i = 0;
 
-        for(int attInd = 0; attInd < inst.numAttributes(); attInd++) {
-            if(attInd == inst.classIndex()) {
+        for(int attInd = 0; attInd < insts.numAttributes(); attInd++) {
+            if(attInd == insts.classIndex()) {
                 continue;
             }
 
-            if(Double.isNaN(inst.value(attInd))) {
-                features[i] = -1;
+            if(featureInfo[i].type == FeatureType.ordinal) {
+                mDiscretizer.setCutPoints(i, discretize.getCutPoints(attInd));
             }
-            else if(inst.attribute(attInd).isNominal()) {
-                features[i] = (int)inst.value(attInd);
+
+            i++;
+        }
+    }
+
+    private EncodedDataset encode(FeatureInfo[] featureInfo, Instances data) {
+        EncodedDataset result = new EncodedDataset(featureInfo, data.numInstances(), 1);
+
+        for(int i = 0; i < data.numInstances(); i++) {
+            result.set(i, getFeatures(data.instance(i)), data.instance(i).classValue());
+        }
+
+        return result;
+    }
+
+    private int[] getFeatures(Instance inst) {
+        int[] features = new int[mDiscretizer.getNumFeatures()];
+
+        int i = 0;
+
+        for(int attInd = 0; attInd < inst.numAttributes(); attInd++) {
+            if(attInd == inst.classIndex()) {
+                continue;
             }
 
+            features[i] = mDiscretizer.getBin(i, inst.value(attInd));
             i++;
         }
 
@@ -1,5 +1,6 @@
 package weka.classifiers.trees;
 
+import java.util.Arrays;
 import java.util.Random;
 
 import com.henrygouk.sgt.*;
@@ -9,6 +10,7 @@ import weka.classifiers.AbstractClassifier;
 import weka.core.Attribute;
 import weka.core.Instance;
 import weka.core.Instances;
+import weka.core.SparseInstance;
 import weka.experiment.Stats;
 import weka.filters.Filter;
 import weka.filters.unsupervised.attribute.Discretize;
@@ -21,10 +23,12 @@ public class StochasticGradientTree extends AbstractClassifier {
     protected int mBatchSize = 1;
     protected int mEpochs = 20;
     protected Objective mObjective;
-    protected Discretize mDiscretize;
+    protected Discretizer mDiscretizer;
     protected double mLambda = 0.1;
     protected double mGamma = 1.0;
     protected FeatureInfo[] mFeatureInfo;
+    protected boolean mSparse;
+    protected boolean mAdaptiveGracePeriod;
 
     public int getEpochs() {
         return mEpochs;
@@ -66,6 +70,14 @@ public class StochasticGradientTree extends AbstractClassifier {
         return mGamma;
     }
 
+    public void setAdaptiveGracePeriod(boolean a) {
+        mAdaptiveGracePeriod = a;
+    }
+
+    public boolean getAdaptiveGracePeriod() {
+        return mAdaptiveGracePeriod;
+    }
+
     @Override
     public void buildClassifier(Instances data) throws Exception {
         if(data.numAttributes() == 3 && data.attribute(1).isRelationValued()) {
@@ -85,19 +97,53 @@ public class StochasticGradientTree extends AbstractClassifier {
         }
 
         mFeatureInfo = createFeatureInfo(data);
+        fitDiscretizer(data);
+        mSparse = data.numInstances() > 0 && data.instance(0) instanceof SparseInstance;
+
+        if(mSparse) {
+            mDiscretizer.setImplicitDefaults();
+        }
+
         StreamingGradientTreeOptions options = new StreamingGradientTreeOptions();
         options.gracePeriod = mBatchSize;
         options.lambda = mLambda;
         options.gamma = mGamma;
+        options.adaptiveGracePeriod = mAdaptiveGracePeriod;
 
         mTree = new StreamingGradientTree(mFeatureInfo, options);
 
+        // Every epoch sees the same data, so it is only discretised once
+        if(mSparse) {
+            SparseFeatures[] rows = new SparseFeatures[data.numInstances()];
+
+            for(int i = 0; i < rows.length; i++) {
+                rows[i] = getSparseFeatures(data.instance(i));
+            }
+
+            for(int e = 0; e < mEpochs; e++) {
+                for(int i = 0; i < rows.length; i++) {
+                    double[] target = new double[]{data.instance(i).classValue()};
+                    mTree.predictAndUpdate(rows[i], pred -> mObjective.computeDerivatives(target, pred));
+                }
+            }
+
+            return;
+        }
+
+        double[] targets = new double[data.numInstances()];
+
+        for(int i = 0; i < targets.length; i++) {
+            targets[i] = data.instance(i).classValue();
+        }
+
+        EncodedDataset encoded = encode(data, targets);
+        int[] features = new int[mFeatureInfo.length];
+
         for(int e = 0; e < mEpochs; e++) {
-            for(int i = 0; i < data.numInstances(); i++) {
-                double[] pred = new double[]{mTree.predict(getFeatures(data.instance(i)))};
-                double[] target = new double[]{data.instance(i).classValue()};
-                GradHess[] gradHess = mObjective.computeDerivatives(target, pred);
-                mTree.update(getFeatures(data.instance(i)), gradHess[0]);
+            for(int i = 0; i < encoded.getNumRows(); i++) {
+                double[] target = new double[]{encoded.getTarget(i)};
+                encoded.getFeatures(i, features);
+                mTree.predictAndUpdate(features, pred -> mObjective.computeDerivatives(target, pred));
             }
         }
     }
@@ -116,22 +162,42 @@ public class StochasticGradientTree extends AbstractClassifier {
         mFeatureInfo = createFeatureInfo(allInstances);
         mObjective = new SoftmaxCrossEntropy();
 
+        // The instances of bag b are stored from row bagStarts[b] onwards
+        int[] bagStarts = new int[data.numInstances()];
+        double[] targets = new double[allInstances.numInstances()];
+        int row = 0;
+
+        for(int b = 0; b < data.numInstances(); b++) {
+            bagStarts[b] = row;
+
+            for(int i = 0; i < data.instance(b).relationalValue(1).numInstances(); i++) {
+                targets[row++] = data.instance(b).classValue();
+            }
+        }
+
+        fitDiscretizer(allInstances);
+        EncodedDataset encoded = encode(allInstances, targets);
+        int[] features = new int[mFeatureInfo.length];
+
         StreamingGradientTreeOptions options = new StreamingGradientTreeOptions();
         options.gracePeriod = mBatchSize;
         options.lambda = mLambda;
         options.gamma = mGamma;
+        options.adaptiveGracePeriod = mAdaptiveGracePeriod;
 
         mTree = new StreamingGradientTree(mFeatureInfo, options);
 
         for(int e = 0; e < mEpochs; e++) {
             for(int b = 0; b < data.numInstances(); b++) {
-                Instances bag = data.instance(b).relationalValue(1);
+                int bagStart = bagStarts[b];
+                int bagEnd = b + 1 < bagStarts.length ? bagStarts[b + 1] : encoded.getNumRows();
                 double bagLabel = data.instance(b).classValue();
                 double topScore = Double.NEGATIVE_INFINITY;
                 int topScoreInd = -1;
 
-                for(int i = 0; i < bag.numInstances(); i++) {
-                    double score = mTree.predict(getFeatures(bag.instance(i)));
+                for(int i = bagStart; i < bagEnd; i++) {
+                    encoded.getFeatures(i, features);
+                    double score = mTree.predict(features);
                     
                     if(score > topScore) {
                         topScore = score;
@@ -145,12 +211,14 @@ public class StochasticGradientTree extends AbstractClassifier {
                 GradHess[] gradHess = mObjective.computeDerivatives(target, pred);
                 GradHess nullGradHess = new GradHess(0.0, 0.0);
 
-                for(int i = 0; i < bag.numInstances(); i++) {
+                for(int i = bagStart; i < bagEnd; i++) {
+                    encoded.getFeatures(i, features);
+
                     if(i == topScoreInd) {
-                        mTree.update(getFeatures(bag.instance(i)), gradHess[0]);
+                        mTree.update(features, gradHess[0]);
                     }
                     else {
-                        mTree.update(getFeatures(bag.instance(i)), nullGradHess);
+                        mTree.update(features, nullGradHess);
                     }
                 }
             }
@@ -173,16 +241,20 @@ public class StochasticGradientTree extends AbstractClassifier {
             return new double[]{pred[1], pred[0]};
         }
         else if(inst.classAttribute().isNumeric()) {
-            double[] pred = new double[]{mTree.predict(getFeatures(inst))};
+            double[] pred = new double[]{predict(inst)};
             return mObjective.transfer(pred);
         }
         else {
-            double[] logit = new double[]{mTree.predict(getFeatures(inst))};
+            double[] logit = new double[]{predict(inst)};
             double[] pred = mObjective.transfer(logit);
             return new double[]{pred[1], pred[0]};
         }
     }
     
+    private double predict(Instance inst) {
+        return mSparse ? mTree.predict(getSparseFeatures(inst)) : mTree.predict(getFeatures(inst));
+    }
+
     private FeatureInfo[] createFeatureInfo(Instances insts) throws Exception {
         FeatureInfo[] featureInfo = new FeatureInfo[insts.numAttributes() - (insts.classIndex() >= 0 ? 1 : 0)];
         int i = 0;
@@ -206,39 +278,78 @@ public class StochasticGradientTree extends AbstractClassifier {
             i++;
         }
 
-        mDiscretize = new Discretize();
-        mDiscretize.setUseEqualFrequency(false);
-        mDiscretize.setBins(mBins);
-        mDiscretize.setInputFormat(insts);
-        Filter.useFilter(insts, mDiscretize);
-
         return featureInfo;
     }
 
-    private int[] getFeatures(Instance inst) {
-        mDiscretize.input(inst);
-        mDiscretize.batchFinished();
-        inst = mDiscretize.output();
-        
-        int[] features = new int[inst.numAttributes() - (inst.classIndex() >= 0 ? 1 : 0)];
+    // Fits the discretisation filter to insts and keeps only the cut points it learns
+    private void fitDiscretizer(Instances insts) throws Exception {
+        Discretize discretize = new Discretize();
+        discretize.setUseEqualFrequency(false);
+        discretize.setBins(mBins);
+        discretize.setInputFormat(insts);
+        Filter.useFilter(insts, discretize);
 
+        mDiscretizer = new Discretizer(mFeatureInfo);
         int i = 0;
 
-        for(int attInd = 0; attInd < inst.numAttributes(); attInd++) {
-            if(attInd == inst.classIndex()) {
+        for(int attInd = 0; attInd < insts.numAttributes(); attInd++) {
+            if(attInd == insts.classIndex()) {
                 continue;
             }
 
-            if(Double.isNaN(inst.value(attInd))) {
-                features[i] = -1;
+            if(mFeatureInfo[i].type == FeatureType.ordinal) {
+                mDiscretizer.setCutPoints(i, discretize.getCutPoints(attInd));
             }
-            else if(inst.attribute(attInd).isNominal()) {
-                features[i] = (int)inst.value(attInd);
+
+            i++;
+        }
+    }
+
+    private EncodedDataset encode(Instances insts, double[] targets) {
+        EncodedDataset result = new EncodedDataset(mFeatureInfo, insts.numInstances(), 1);
+
+        for(int i = 0; i < insts.numInstances(); i++) {
+            result.set(i, getFeatures(insts.instance(i)), targets[i]);
+        }
+
+        return result;
+    }
+
+    private int[] getFeatures(Instance inst) {
+        int[] features = new int[mFeatureInfo.length];
+
+        int i = 0;
+
+        for(int attInd = 0; attInd < inst.numAttributes(); attInd++) {
+            if(attInd == inst.classIndex()) {
+                continue;
             }
 
+            features[i] = mDiscretizer.getBin(i, inst.value(attInd));
             i++;
         }
 
         return features;
     }
+
+    // Only the stored values are binned, the rest take the bin of zero
+    private SparseFeatures getSparseFeatures(Instance inst) {
+        int[] indices = new int[inst.numValues()];
+        int[] bins = new int[inst.numValues()];
+        int n = 0;
+
+        for(int k = 0; k < inst.numValues(); k++) {
+            int attInd = inst.index(k);
+
+            if(attInd == inst.classIndex()) {
+                continue;
+            }
+
+            indices[n] = inst.classIndex() >= 0 && attInd > inst.classIndex() ? attInd - 1 : attInd;
+            bins[n] = mDiscretizer.getBin(indices[n], inst.valueSparse(k));
+            n++;
+        }
+
+        return new SparseFeatures(mFeatureInfo, Arrays.copyOf(indices, n), Arrays.copyOf(bins, n));
+    }
 }
@@ -41,9 +41,7 @@ public class StreamingGradientTreeEmbedder extends SimpleBatchFilter implements
         new FullyConnected(32, 32, 200, 0.001, 0.9, 0.999, 1e-8)
     };
 
-    protected double[] mMin;
-
-    protected double[] mMax;
+    protected Discretizer mDiscretizer;
 
     protected MultiOutputLearner mTrees;
 
@@ -205,22 +203,31 @@ public class StreamingGradientTreeEmbedder extends SimpleBatchFilter implements
 
         mTrees.randomlyInitialize(rng, Math.sqrt(1.0 / mDimensions));
 
+        // Each instance is visited many times, so they are all discretised up front
+        EncodedDataset encoded = new EncodedDataset(featureInfo, instances.numInstances(), 1);
+
+        for(int i = 0; i < instances.numInstances(); i++) {
+            encoded.set(i, getFeatures(instances.instance(i)), instances.instance(i).classValue());
+        }
+
         int pairs = instances.numInstances() * mEpochs;
+        int[] xi = new int[featureInfo.length];
+        int[] xj = new int[featureInfo.length];
 
         for(int p = 0; p < pairs; p++) {
             int i = rng.nextInt(instances.numInstances());
             int j = i;
 
-            while(j == i || (instances.get(i).classValue() == instances.get(j).classValue()) != (p % 2 == 0)) {
+            while(j == i || (encoded.getTarget(i) == encoded.getTarget(j)) != (p % 2 == 0)) {
                 j = rng.nextInt(instances.numInstances());
             }
 
-            int[] xi = getFeatures(instances.instance(i));
-            int[] xj = getFeatures(instances.instance(j));
+            encoded.getFeatures(i, xi);
+            encoded.getFeatures(j, xj);
             double[] zi = mTrees.predict(xi);
             double[] zj = mTrees.predict(xj);
             double w = euclidean(zi, zj);
-            double y = instances.get(i).classValue() == instances.get(j).classValue() ? 1.0 : 0.0;
+            double y = encoded.getTarget(i) == encoded.getTarget(j) ? 1.0 : 0.0;
 
             GradHess[] grads = new GradHess[zi.length];
 
@@ -262,8 +269,7 @@ public class StreamingGradientTreeEmbedder extends SimpleBatchFilter implements
 
     private FeatureInfo[] createFeatureInfo(Instances insts) {
         FeatureInfo[] featureInfo = new FeatureInfo[insts.numAttributes() - 1];
-        mMax = new double[featureInfo.length];
-        mMin = new double[featureInfo.length];
+        mDiscretizer = new Discretizer(featureInfo);
         int i = 0;
 
         for(int attInd = 0; attInd < insts.numAttributes(); attInd++) {
@@ -281,8 +287,7 @@ public class StreamingGradientTreeEmbedder extends SimpleBatchFilter implements
                 featureInfo[i].type = FeatureType.ordinal;
                 featureInfo[i].categories = mBins;
                 Stats stats = insts.attributeStats(attInd).numericStats;
-                mMin[i] = stats.min;
-                mMax[i] = stats.max;
+                mDiscretizer.setRange(i, stats.min, stats.max);
             }
 
             i++;
@@ -301,23 +306,7 @@ public class StreamingGradientTreeEmbedder extends SimpleBatchFilter implements
                 continue;
             }
 
-            if(Double.isNaN(inst.value(attInd))) {
-                features[i] = -1;
-            }
-            else if(inst.attribute(attInd).isNominal()) {
-                features[i] = (int)inst.value(attInd);
-            }
-            else {
-                features[i] = (int)((double)mBins * ((inst.value(attInd) - mMin[i]) / (mMax[i] - mMin[i])));
-
-                if(features[i] < 0) {
-                    features[i] = 0;
-                }
-                else if(features[i] >= mBins) {
-                    features[i] = mBins - 1;
-                }
-            }
-
+            features[i] = mDiscretizer.getBin(i, inst.value(attInd));
             i++;
         }
 
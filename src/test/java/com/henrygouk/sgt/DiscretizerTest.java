@@ -0,0 +1,74 @@
+package com.henrygouk.sgt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.*;
+
+public class DiscretizerTest {
+    private static FeatureInfo createFeatureInfo(FeatureType type, int categories) {
+        FeatureInfo info = new FeatureInfo();
+        info.type = type;
+        info.categories = categories;
+
+        return info;
+    }
+
+    @Test
+    public void testCutPoints() {
+        Discretizer discretizer = new Discretizer(new FeatureInfo[] {createFeatureInfo(FeatureType.ordinal, 4)});
+        double[] cutPoints = {-1.0, 0.5, 2.0};
+        discretizer.setCutPoints(0, cutPoints);
+
+        // Compare against a linear scan, with values on the cut points belonging to the lower bin
+        double[] values = {-5.0, -1.0, -0.5, 0.5, 1.0, 2.0, 2.5};
+
+        for(double value : values) {
+            int expected = 0;
+
+            while(expected < cutPoints.length && value > cutPoints[expected]) {
+                expected++;
+            }
+
+            assertEquals(expected, discretizer.getBin(0, value));
+        }
+
+        assertEquals(-1, discretizer.getBin(0, Double.NaN));
+
+        discretizer.setCutPoints(0, null);
+        assertEquals(0, discretizer.getBin(0, 10.0));
+    }
+
+    @Test
+    public void testEqualWidth() {
+        Discretizer discretizer = new Discretizer(new FeatureInfo[] {
+            createFeatureInfo(FeatureType.ordinal, 4),
+            createFeatureInfo(FeatureType.nominal, 3)
+        });
+
+        discretizer.observe(0, 8.0);
+        discretizer.observe(0, Double.NaN);
+
+        assertEquals(0.0, discretizer.getMin(0), 0.0);
+        assertEquals(8.0, discretizer.getMax(0), 0.0);
+
+        int[] features = discretizer.getFeatures(new double[] {5.0, 2.0});
+        assertEquals(2, features[0]);
+        assertEquals(2, features[1]);
+
+        assertEquals(0, discretizer.getBin(0, -3.0));
+        assertEquals(3, discretizer.getBin(0, 8.0));
+        assertEquals(3, discretizer.getBin(0, 20.0));
+    }
+
+    @Test
+    public void testImplicitDefaults() {
+        FeatureInfo[] featureInfo = {createFeatureInfo(FeatureType.ordinal, 4)};
+        Discretizer discretizer = new Discretizer(featureInfo);
+        discretizer.setCutPoints(0, new double[] {-2.0, -1.0, 1.0});
+        discretizer.setImplicitDefaults();
+
+        assertTrue(featureInfo[0].implicitDefault);
+        assertEquals(2, featureInfo[0].defaultBin);
+    }
+}
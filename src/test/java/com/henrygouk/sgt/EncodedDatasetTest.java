@@ -0,0 +1,55 @@
+package com.henrygouk.sgt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.*;
+
+public class EncodedDatasetTest {
+    private static FeatureInfo[] createFeatureInfo(int... categories) {
+        FeatureInfo[] featureInfo = new FeatureInfo[categories.length];
+
+        for(int i = 0; i < categories.length; i++) {
+            featureInfo[i] = new FeatureInfo();
+            featureInfo[i].type = FeatureType.ordinal;
+            featureInfo[i].categories = categories[i];
+        }
+
+        return featureInfo;
+    }
+
+    @Test
+    public void testRoundTrip() {
+        int[][] rows = {{0, 254, -1}, {-1, 0, 3}, {7, 100, 0}};
+        double[][] targets = {{1.0, -2.0}, {0.5, 0.0}, {-1.0, 3.0}};
+
+        for(int maxCategories : new int[] {255, 300, 70000}) {
+            EncodedDataset dataset = new EncodedDataset(createFeatureInfo(8, maxCategories, 4), rows.length, 2);
+
+            for(int i = 0; i < rows.length; i++) {
+                dataset.set(i, rows[i], targets[i]);
+            }
+
+            int[] features = new int[3];
+            double[] rowTargets = new double[2];
+
+            for(int i = 0; i < rows.length; i++) {
+                dataset.getFeatures(i, features);
+                dataset.getTargets(i, rowTargets);
+                for(int j = 0; j < features.length; j++) {
+                    assertEquals(rows[i][j], features[j]);
+                    assertEquals(rows[i][j], dataset.getFeatures(i)[j]);
+                }
+
+                assertArrayEquals(targets[i], rowTargets, 0.0);
+                assertEquals(targets[i][1], dataset.getTarget(i, 1), 0.0);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManyCells() {
+        // 65536 * 32768 wraps around to zero in int arithmetic
+        new EncodedDataset(createFeatureInfo(new int[32768]), 65536, 1);
+    }
+}
@@ -0,0 +1,60 @@
+package com.henrygouk.sgt;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.*;
+
+public class FlatTreeTest {
+
+    private FeatureInfo[] createFeatureInfo() {
+        FeatureInfo[] featureInfo = new FeatureInfo[2];
+        featureInfo[0] = new FeatureInfo();
+        featureInfo[0].type = FeatureType.nominal;
+        featureInfo[0].categories = 3;
+        featureInfo[1] = new FeatureInfo();
+        featureInfo[1].type = FeatureType.ordinal;
+        featureInfo[1].categories = 8;
+
+        return featureInfo;
+    }
+
+    @Test
+    public void testGetLeafIndex() {
+        FlatTree tree = new FlatTree(createFeatureInfo(), 0.0);
+        int first = tree.split(0, 0, -1, new double[] {1.0, 2.0, 3.0});
+        int second = tree.split(first + 2, 1, 4, new double[] {4.0, 5.0});
+
+        assertEquals(6, tree.getNumNodes());
+        assertEquals(first, tree.getLeafIndex(new int[] {0, 7}));
+        assertEquals(first + 1, tree.getLeafIndex(new int[] {1, 7}));
+        assertEquals(second, tree.getLeafIndex(new int[] {2, 4}));
+        assertEquals(second + 1, tree.getLeafIndex(new int[] {2, 5}));
+    }
+
+    @Test
+    public void testMissingValues() {
+        FlatTree tree = new FlatTree(createFeatureInfo(), 0.0);
+        int first = tree.split(0, 0, -1, new double[] {1.0, 2.0, 3.0});
+        tree.split(first, 1, 4, new double[] {4.0, 5.0});
+
+        assertEquals(4.0, tree.predict(new int[] {-1, -1}), 1E-12);
+        assertEquals(4.0, tree.predict(new int[] {0, -1}), 1E-12);
+        assertEquals(5.0, tree.predict(new int[] {-1, 6}), 1E-12);
+    }
+
+    @Test
+    public void testGetLeafIndices() {
+        FlatTree tree = new FlatTree(createFeatureInfo(), 0.0);
+        int first = tree.split(0, 0, -1, new double[] {1.0, 2.0, 3.0});
+        tree.split(first + 2, 1, 4, new double[] {4.0, 5.0});
+        tree.split(first, 1, 1, new double[] {6.0, 7.0});
+
+        int[][] features = {{0, 0}, {0, 7}, {1, 3}, {2, 4}, {2, 5}, {-1, -1}, {2, -1}};
+        int[] leaves = new int[features.length];
+        tree.getLeafIndices(features, 1, features.length, leaves);
+
+        for(int i = 1; i < features.length; i++) {
+            assertEquals(tree.getLeafIndex(features[i]), leaves[i - 1]);
+        }
+    }
+}
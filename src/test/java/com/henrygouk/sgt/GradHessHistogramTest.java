@@ -0,0 +1,115 @@
+package com.henrygouk.sgt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.*;
+
+public class GradHessHistogramTest {
+    @Test
+    public void testMatchesGradHessStats() {
+        GradHessHistogram histogram = new GradHessHistogram(2);
+        GradHessStats stats = new GradHessStats();
+        GradHess[] observations = {new GradHess(0.5, 0.8), new GradHess(1.0, 1.0), new GradHess(1.5, 1.2)};
+
+        for(GradHess gradHess : observations) {
+            histogram.addObservation(1, gradHess);
+            stats.addObservation(gradHess);
+        }
+
+        assertEquals(0, histogram.getObservationCount(0));
+        assertEquals(stats.getObservationCount(), histogram.getObservationCount(1));
+        assertEquals(stats.getMean().gradient, histogram.getMeanGradient(1), 1E-12);
+        assertEquals(stats.getMean().hessian, histogram.getMeanHessian(1), 1E-12);
+        assertEquals(stats.getDeltaLossMean(-1.0), histogram.getDeltaLossMean(1, -1.0), 1E-12);
+        assertEquals(stats.getDeltaLossVariance(-1.0), histogram.getDeltaLossVariance(1, -1.0), 1E-12);
+    }
+
+    @Test
+    public void testAdd() {
+        GradHessHistogram histogram = new GradHessHistogram(3);
+        histogram.addObservation(0, new GradHess(0.5, 0.8));
+        histogram.addObservation(0, new GradHess(1.0, 1.0));
+        histogram.addObservation(0, new GradHess(1.5, 1.2));
+        histogram.addObservation(1, new GradHess(0.5, 1.2));
+        histogram.addObservation(1, new GradHess(1.0, 1.0));
+        histogram.addObservation(1, new GradHess(1.5, 0.9));
+
+        histogram.add(0, histogram, 1);
+
+        GradHessHistogram expected = new GradHessHistogram(1);
+        expected.addObservation(0, new GradHess(0.5, 0.8));
+        expected.addObservation(0, new GradHess(1.0, 1.0));
+        expected.addObservation(0, new GradHess(1.5, 1.2));
+        expected.addObservation(0, new GradHess(0.5, 1.2));
+        expected.addObservation(0, new GradHess(1.0, 1.0));
+        expected.addObservation(0, new GradHess(1.5, 0.9));
+
+        assertEquals(expected.getObservationCount(0), histogram.getObservationCount(0));
+        assertEquals(expected.getDeltaLossMean(0, -1.0), histogram.getDeltaLossMean(0, -1.0), 1E-12);
+        assertEquals(expected.getDeltaLossVariance(0, -1.0), histogram.getDeltaLossVariance(0, -1.0), 1E-12);
+    }
+
+    @Test
+    public void testSubtract() {
+        GradHessHistogram histogram = new GradHessHistogram(2);
+        GradHess[] observations = {new GradHess(0.5, 0.8), new GradHess(1.0, 1.0), new GradHess(1.5, 1.2),
+            new GradHess(0.5, 1.2), new GradHess(-1.0, 1.0), new GradHess(1.5, 0.9)};
+
+        for(int i = 0; i < observations.length; i++) {
+            histogram.addObservation(0, observations[i]);
+
+            if(i >= 3) {
+                histogram.addObservation(1, observations[i]);
+            }
+        }
+
+        histogram.subtract(0, histogram, 1);
+
+        GradHessHistogram expected = new GradHessHistogram(1);
+
+        for(int i = 0; i < 3; i++) {
+            expected.addObservation(0, observations[i]);
+        }
+
+        assertEquals(expected.getObservationCount(0), histogram.getObservationCount(0));
+        assertEquals(expected.getMeanGradient(0), histogram.getMeanGradient(0), 1E-12);
+        assertEquals(expected.getDeltaLossMean(0, -1.0), histogram.getDeltaLossMean(0, -1.0), 1E-12);
+        assertEquals(expected.getDeltaLossVariance(0, -1.0), histogram.getDeltaLossVariance(0, -1.0), 1E-12);
+    }
+
+    @Test
+    public void testSparse() {
+        GradHessHistogram sparse = new GradHessHistogram(1000, true);
+        GradHessHistogram dense = new GradHessHistogram(1000);
+        Random rng = new Random(1);
+
+        assertTrue(sparse.isSparse());
+
+        for(int i = 0; i < 100; i++) {
+            int slot = rng.nextInt(100) * 10;
+            GradHess gradHess = new GradHess(rng.nextGaussian(), rng.nextDouble());
+            sparse.addObservation(slot, gradHess);
+            dense.addObservation(slot, gradHess);
+        }
+
+        assertTrue(sparse.isSparse());
+        assertTrue(sparse.getMemoryBytes() < dense.getMemoryBytes());
+
+        for(int slot = 0; slot < 1000; slot++) {
+            assertEquals(dense.getObservationCount(slot), sparse.getObservationCount(slot));
+            assertEquals(dense.getDeltaLossMean(slot, -1.0), sparse.getDeltaLossMean(slot, -1.0), 0.0);
+            assertEquals(dense.getDeltaLossVariance(slot, -1.0), sparse.getDeltaLossVariance(slot, -1.0), 0.0);
+        }
+
+        // Filling most of the slots switches to the dense layout
+        for(int slot = 0; slot < 1000; slot++) {
+            sparse.addObservation(slot, new GradHess(1.0, 1.0));
+        }
+
+        assertFalse(sparse.isSparse());
+    }
+}
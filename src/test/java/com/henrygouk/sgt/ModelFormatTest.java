@@ -0,0 +1,144 @@
+package com.henrygouk.sgt;
+
+import static com.henrygouk.sgt.TestData.createFeatureInfo;
+import static com.henrygouk.sgt.TestData.createFeaturesWithMissing;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.*;
+
+import com.henrygouk.sgt.neural.*;
+
+public class ModelFormatTest {
+
+    private void train(MultiOutputLearner learner, FeatureInfo[] featureInfo) {
+        Objective objective = new SoftmaxCrossEntropy();
+        Random rng = new Random(1);
+
+        for(int i = 0; i < 5000; i++) {
+            int[] features = createFeaturesWithMissing(featureInfo, rng);
+            double[] target = new double[3];
+            target[Math.max(features[0], 0)] = 1.0;
+            learner.predictAndUpdate(features, p -> objective.computeDerivatives(target, p));
+        }
+    }
+
+    private void assertSamePredictions(MultiOutputLearner learner, FeatureInfo[] featureInfo) throws IOException {
+        Path path = Files.createTempFile("sgt", ".model");
+
+        try {
+            ModelFormat.save(learner, path);
+            MappedModel model = ModelFormat.map(path);
+            Random rng = new Random(2);
+
+            assertEquals(learner.getNumNodes(), model.getNumNodes());
+            assertEquals(learner.getMaxDepth(), model.getMaxDepth());
+
+            for(int i = 0; i < 1000; i++) {
+                int[] features = createFeaturesWithMissing(featureInfo, rng);
+                assertArrayEquals(learner.predict(features), model.predict(features), 0.0);
+            }
+        }
+        finally {
+            Files.delete(path);
+        }
+    }
+
+    private void assertSamePredictions(MultiOutputLearner learner, FrozenModel frozen, FeatureInfo[] featureInfo, double tolerance) {
+        Random rng = new Random(2);
+
+        assertEquals(learner.getNumNodes(), frozen.getNumNodes());
+        assertEquals(learner.getMaxDepth(), frozen.getMaxDepth());
+
+        for(int i = 0; i < 1000; i++) {
+            int[] features = createFeaturesWithMissing(featureInfo, rng);
+            assertArrayEquals(learner.predict(features), frozen.predict(features), tolerance);
+        }
+    }
+
+    @Test
+    public void testCommittee() throws IOException {
+        FeatureInfo[] featureInfo = createFeatureInfo();
+        StreamingGradientTreeOptions options = new StreamingGradientTreeOptions();
+        options.gracePeriod = 50;
+        options.delta = 1E-3;
+        StreamingGradientTreeCommittee committee = new StreamingGradientTreeCommittee(featureInfo, options, 2);
+        train(committee, featureInfo);
+
+        assertSamePredictions(committee, featureInfo);
+        assertSamePredictions(committee, committee.export(false), featureInfo, 0.0);
+        assertSamePredictions(committee, committee.export(true), featureInfo, 1E-6);
+    }
+
+    @Test
+    public void testNetwork() throws IOException {
+        FeatureInfo[] featureInfo = createFeatureInfo();
+        StreamingGradientTreeOptions options = new StreamingGradientTreeOptions();
+        options.gracePeriod = 50;
+        options.delta = 1E-3;
+        Layer[] layers = {
+            new FullyConnected(8, 16, 50, 0.01, 0.9, 0.999, 1E-8),
+            new RectifiedLinearUnit(),
+            new FullyConnected(16, 2, 50, 0.01, 0.9, 0.999, 1E-8)
+        };
+        StreamingGradientTreeNetwork network = new StreamingGradientTreeNetwork(featureInfo, options, 8, layers);
+        network.randomlyInitialize(new Random(1), 0.5);
+        train(network, featureInfo);
+
+        assertSamePredictions(network, featureInfo);
+        assertSamePredictions(network, network.export(false), featureInfo, 0.0);
+        assertSamePredictions(network, network.export(true), featureInfo, 1E-5);
+    }
+
+    @Test
+    public void testSparseFeatureDefaults() throws IOException {
+        FeatureInfo[] featureInfo = createFeatureInfo();
+
+        for(int i = 0; i < featureInfo.length; i++) {
+            featureInfo[i].implicitDefault = true;
+            featureInfo[i].defaultBin = 1 + i % 2;
+        }
+
+        StreamingGradientTreeOptions options = new StreamingGradientTreeOptions();
+        options.gracePeriod = 50;
+        options.delta = 1E-3;
+        StreamingGradientTreeCommittee committee = new StreamingGradientTreeCommittee(featureInfo, options, 2);
+        train(committee, featureInfo);
+        Path path = Files.createTempFile("sgt", ".model");
+
+        try {
+            ModelFormat.save(committee, path);
+            MappedModel model = ModelFormat.map(path);
+            Random rng = new Random(2);
+
+            for(int i = 0; i < featureInfo.length; i++) {
+                assertTrue(model.getFeatureInfo()[i].implicitDefault);
+                assertEquals(featureInfo[i].defaultBin, model.getFeatureInfo()[i].defaultBin);
+            }
+
+            // The absent features must take the defaults stored in the file, not those of a fresh FeatureInfo
+            for(int i = 0; i < 1000; i++) {
+                SparseFeatures features = SparseFeatures.fromDense(featureInfo, createFeaturesWithMissing(featureInfo, rng));
+                int[] indices = new int[features.getNumExplicit()];
+                int[] bins = new int[features.getNumExplicit()];
+
+                for(int j = 0; j < indices.length; j++) {
+                    indices[j] = features.getIndex(j);
+                    bins[j] = features.getBin(j);
+                }
+
+                SparseFeatures mapped = new SparseFeatures(model.getFeatureInfo(), indices, bins);
+                assertArrayEquals(committee.predict(features), model.predict(mapped), 0.0);
+            }
+        }
+        finally {
+            Files.delete(path);
+        }
+    }
+}
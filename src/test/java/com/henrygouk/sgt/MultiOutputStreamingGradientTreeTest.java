@@ -0,0 +1,181 @@
+package com.henrygouk.sgt;
+
+import static com.henrygouk.sgt.TestData.createFeatureInfo;
+import static com.henrygouk.sgt.TestData.createFeatures;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+
+import org.junit.*;
+
+public class MultiOutputStreamingGradientTreeTest {
+
+    private void assertSingleOutputMatchesTree(boolean adaptiveGracePeriod) {
+        FeatureInfo[] featureInfo = createFeatureInfo();
+        StreamingGradientTreeOptions options = new StreamingGradientTreeOptions();
+        options.gracePeriod = 50;
+        options.delta = 1E-3;
+        options.adaptiveGracePeriod = adaptiveGracePeriod;
+        StreamingGradientTree tree = new StreamingGradientTree(featureInfo, options);
+        MultiOutputStreamingGradientTree vectorTree = new MultiOutputStreamingGradientTree(featureInfo, options, 1);
+        Objective objective = new SquaredError();
+        Random rng = new Random(1);
+
+        for(int i = 0; i < 5000; i++) {
+            int[] features = createFeatures(featureInfo, rng);
+            double[] target = {features[1] > 8 ? 1.0 : -1.0};
+
+            double[] predictions = {tree.predict(features)};
+            tree.update(features, objective.computeDerivatives(target, predictions)[0]);
+
+            assertEquals(predictions[0], vectorTree.predictAndUpdate(features, p -> objective.computeDerivatives(target, p))[0], 1E-12);
+        }
+
+        assertEquals(tree.getNumSplits(), vectorTree.getNumSplits());
+    }
+
+    @Test
+    public void testSingleOutputMatchesTree() {
+        assertSingleOutputMatchesTree(false);
+        assertSingleOutputMatchesTree(true);
+    }
+
+    @Test
+    public void testMultiClass() {
+        FeatureInfo[] featureInfo = createFeatureInfo();
+        StreamingGradientTreeOptions options = new StreamingGradientTreeOptions();
+        options.gracePeriod = 50;
+        options.delta = 1E-3;
+        MultiOutputStreamingGradientTree tree = new MultiOutputStreamingGradientTree(featureInfo, options, 2);
+        Objective objective = new SoftmaxCrossEntropy();
+        Random rng = new Random(1);
+
+        for(int i = 0; i < 5000; i++) {
+            int[] features = createFeatures(featureInfo, rng);
+            double[] target = new double[3];
+            target[features[0]] = 1.0;
+            tree.predictAndUpdate(features, p -> objective.computeDerivatives(target, p));
+        }
+
+        assertTrue(tree.getNumSplits() > 0);
+
+        int correct = 0;
+
+        for(int i = 0; i < 1000; i++) {
+            int[] features = createFeatures(featureInfo, rng);
+            double[] probs = objective.transfer(tree.predict(features));
+            int predicted = 0;
+
+            for(int c = 1; c < probs.length; c++) {
+                if(probs[c] > probs[predicted]) {
+                    predicted = c;
+                }
+            }
+
+            if(predicted == features[0]) {
+                correct++;
+            }
+        }
+
+        assertTrue(correct > 900);
+    }
+
+    @Test
+    public void testSparseHistograms() {
+        FeatureInfo[] featureInfo = createFeatureInfo();
+        StreamingGradientTreeOptions options = new StreamingGradientTreeOptions();
+        options.gracePeriod = 50;
+        options.delta = 1E-3;
+        options.sparseHistograms = false;
+        MultiOutputStreamingGradientTree dense = new MultiOutputStreamingGradientTree(featureInfo, options, 2);
+        options.sparseHistograms = true;
+        MultiOutputStreamingGradientTree sparse = new MultiOutputStreamingGradientTree(featureInfo, options, 2);
+        Objective objective = new SoftmaxCrossEntropy();
+        Random rng = new Random(2);
+
+        assertFalse(dense.mLeaves[0].mStats.isSparse());
+        assertTrue(sparse.mLeaves[0].mStats.isSparse());
+
+        for(int i = 0; i < 5000; i++) {
+            int[] features = createFeatures(featureInfo, rng);
+            double[] target = new double[3];
+            target[features[0]] = 1.0;
+
+            double[] predictions = dense.predictAndUpdate(features, p -> objective.computeDerivatives(target, p));
+            assertArrayEquals(predictions, sparse.predictAndUpdate(features, p -> objective.computeDerivatives(target, p)), 0.0);
+        }
+
+        assertEquals(dense.getNumSplits(), sparse.getNumSplits());
+    }
+
+    @Test
+    public void testSnapshotAfterDeserialization() throws IOException, ClassNotFoundException {
+        FeatureInfo[] featureInfo = createFeatureInfo();
+        StreamingGradientTreeOptions options = new StreamingGradientTreeOptions();
+        options.gracePeriod = 50;
+        options.delta = 1E-3;
+        options.publishSnapshots = true;
+        MultiOutputStreamingGradientTree tree = new MultiOutputStreamingGradientTree(featureInfo, options, 2);
+        Objective objective = new SoftmaxCrossEntropy();
+        Random rng = new Random(3);
+
+        for(int i = 0; i < 2000; i++) {
+            int[] features = createFeatures(featureInfo, rng);
+            double[] target = new double[3];
+            target[features[0]] = 1.0;
+            tree.predictAndUpdate(features, p -> objective.computeDerivatives(target, p));
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(tree);
+        }
+
+        MultiOutputStreamingGradientTree copy;
+
+        try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            copy = (MultiOutputStreamingGradientTree)in.readObject();
+        }
+
+        assertNotNull(copy.mSnapshot);
+        assertNotSame(copy.getStructure(), copy.getPublishedStructure());
+
+        for(int i = 0; i < 100; i++) {
+            int[] features = createFeatures(featureInfo, rng);
+            assertArrayEquals(tree.predict(features), copy.predict(features), 0.0);
+        }
+    }
+
+    @Test
+    public void testUnsupportedOptions() {
+        FeatureInfo[] featureInfo = createFeatureInfo();
+        int rejected = 0;
+
+        for(int i = 0; i < 3; i++) {
+            StreamingGradientTreeOptions options = new StreamingGradientTreeOptions();
+            options.maxMemoryBytes = i == 0 ? 1 << 20 : 0;
+            options.cacheSplitCandidates = i == 1;
+            options.parallelSplitSearch = i == 2;
+
+            try {
+                new MultiOutputStreamingGradientTree(featureInfo, options, 2);
+            }
+            catch(IllegalArgumentException e) {
+                rejected++;
+            }
+        }
+
+        assertEquals(3, rejected);
+    }
+}
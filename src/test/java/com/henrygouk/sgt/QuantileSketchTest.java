@@ -0,0 +1,61 @@
+package com.henrygouk.sgt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.*;
+
+public class QuantileSketchTest {
+    @Test
+    public void testSkewedQuantiles() {
+        QuantileSketch sketch = new QuantileSketch(200, 64);
+        Random rng = new Random(7);
+        double[] values = new double[100000];
+
+        for(int i = 0; i < values.length; i++) {
+            values[i] = Math.exp(4.0 * rng.nextGaussian());
+            sketch.update(values[i]);
+        }
+
+        Arrays.sort(values);
+        long memory = sketch.getMemoryBytes();
+
+        assertEquals(values.length, sketch.getCount());
+        assertNull(sketch.getDistinctValues());
+        assertTrue(memory < 64 * 1024);
+
+        for(double q = 0.1; q < 1.0; q += 0.1) {
+            // The rank of the estimate should be close to the requested one
+            int rank = Arrays.binarySearch(values, sketch.getQuantile(q));
+            assertEquals(q, (double)rank / values.length, 0.02);
+        }
+
+        for(int i = 0; i < values.length; i++) {
+            sketch.update(values[i]);
+        }
+
+        assertTrue(sketch.getMemoryBytes() < 2 * memory);
+    }
+
+    @Test
+    public void testWeightedUpdate() {
+        QuantileSketch sketch = new QuantileSketch(200, 4);
+        sketch.update(1.0, 3);
+        sketch.update(0.0, 1000000);
+        sketch.update(2.0);
+
+        assertEquals(1000004, sketch.getCount());
+        assertArrayEquals(new double[] {0.0, 1.0, 2.0}, sketch.getDistinctValues(), 0.0);
+        assertEquals(0.0, sketch.getQuantile(0.5), 0.0);
+        assertEquals(2.0, sketch.getQuantile(1.0), 0.0);
+
+        sketch.update(3.0);
+        sketch.update(4.0);
+        assertNull(sketch.getDistinctValues());
+    }
+}
@@ -0,0 +1,86 @@
+package com.henrygouk.sgt;
+
+import static com.henrygouk.sgt.TestData.createFeatureInfo;
+import static com.henrygouk.sgt.TestData.createFeaturesWithMissing;
+import static com.henrygouk.sgt.TestData.createNominalTree;
+import static com.henrygouk.sgt.TestData.createNominalTreeFeatures;
+import static com.henrygouk.sgt.TestData.splitOrdinal;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.*;
+
+public class QuickScorerTest {
+
+    @Test
+    public void testCommittee() {
+        FeatureInfo[] featureInfo = createFeatureInfo(200);
+        StreamingGradientTreeOptions options = new StreamingGradientTreeOptions();
+        options.gracePeriod = 50;
+        options.delta = 1E-3;
+        StreamingGradientTreeCommittee committee = new StreamingGradientTreeCommittee(featureInfo, options, 3);
+        Objective objective = new SoftmaxCrossEntropy();
+        Random rng = new Random(1);
+
+        for(int i = 0; i < 5000; i++) {
+            int[] features = createFeaturesWithMissing(featureInfo, rng);
+            double[] target = new double[3];
+            target[features[1] > 100 ? 2 : Math.max(features[0], 0)] = 1.0;
+            committee.predictAndUpdate(features, p -> objective.computeDerivatives(target, p));
+        }
+
+        QuickScorer scorer = new QuickScorer(committee);
+        assertTrue(scorer.getNumSplits() > 0);
+        assertEquals(committee.getNumSplits(), scorer.getNumSplits());
+
+        for(int i = 0; i < 1000; i++) {
+            int[] features = createFeaturesWithMissing(featureInfo, rng);
+            assertArrayEquals(committee.predict(features), scorer.predict(features), 0.0);
+        }
+    }
+
+    @Test
+    public void testWideTree() {
+        // Nominal split at the root, with hundreds of leaves under each child so that masks span several words
+        FeatureInfo[] featureInfo = createFeatureInfo(300);
+        FlatTree tree = new FlatTree(featureInfo, 0.0);
+        Random rng = new Random(1);
+        int first = tree.split(0, 2, -1, new double[] {0.0, 0.0, 0.0});
+
+        for(int c = 0; c < 3; c++) {
+            splitOrdinal(tree, first + c, 0, 299, rng);
+        }
+
+        QuickScorer scorer = new QuickScorer(new FlatTree[] {tree, tree.snapshot()});
+        long[] leaves = scorer.createLeafBitvectors();
+        double[] out = new double[2];
+
+        for(int i = 0; i < 1000; i++) {
+            int[] features = createFeaturesWithMissing(featureInfo, rng);
+            double[] prediction = scorer.predict(features);
+            assertEquals(tree.predict(features), prediction[0], 0.0);
+            assertEquals(tree.predict(features), prediction[1], 0.0);
+
+            // The same scratch space is reused for every instance
+            scorer.predict(features, leaves, out);
+            assertArrayEquals(prediction, out, 0.0);
+        }
+    }
+
+    @Test
+    public void testMissingNominalValue() {
+        FeatureInfo[] featureInfo = createFeatureInfo();
+        FlatTree tree = createNominalTree(featureInfo);
+        QuickScorer scorer = new QuickScorer(new FlatTree[] {tree});
+
+        // Missing values follow the first child of a nominal split
+        assertEquals(4.0, scorer.predict(new int[] {-1, 0, -1, 0})[0], 0.0);
+
+        for(int[] features : createNominalTreeFeatures()) {
+            assertEquals(tree.predict(features), scorer.predict(features)[0], 0.0);
+        }
+    }
+}
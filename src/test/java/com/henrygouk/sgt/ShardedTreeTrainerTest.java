@@ -0,0 +1,101 @@
+package com.henrygouk.sgt;
+
+import static com.henrygouk.sgt.TestData.createFeatureInfo;
+import static com.henrygouk.sgt.TestData.createFeatures;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.*;
+
+public class ShardedTreeTrainerTest {
+
+    private double target(int[] features) {
+        return features[1] > 8 ? 1.0 : -1.0;
+    }
+
+    @Test
+    public void testSingleInstanceRounds() {
+        FeatureInfo[] featureInfo = createFeatureInfo();
+        StreamingGradientTreeOptions options = new StreamingGradientTreeOptions();
+        options.gracePeriod = 50;
+        options.delta = 1E-3;
+        StreamingGradientTree tree = new StreamingGradientTree(featureInfo, options);
+        ShardedTreeTrainer trainer = new ShardedTreeTrainer(new StreamingGradientTree(featureInfo, options), 1, 1);
+        int[][] features = createFeatures(featureInfo, 5000, new Random(1));
+
+        for(int i = 0; i < features.length; i++) {
+            GradHess[] gradHess = {new GradHess(trainer.getTree().predict(features[i]) - target(features[i]), 1.0)};
+            assertEquals(tree.predict(features[i]), trainer.getTree().predict(features[i]), 1E-9);
+
+            tree.update(features[i], new GradHess(tree.predict(features[i]) - target(features[i]), 1.0));
+            trainer.update(new int[][] {features[i]}, gradHess);
+        }
+
+        assertEquals(tree.getNumSplits(), trainer.getTree().getNumSplits());
+    }
+
+    @Test
+    public void testShardedTraining() {
+        FeatureInfo[] featureInfo = createFeatureInfo();
+        StreamingGradientTreeOptions options = new StreamingGradientTreeOptions();
+        options.gracePeriod = 50;
+        options.delta = 1E-3;
+        ShardedTreeTrainer trainer = new ShardedTreeTrainer(new StreamingGradientTree(featureInfo, options), 4);
+        Random rng = new Random(1);
+
+        for(int b = 0; b < 50; b++) {
+            int[][] features = createFeatures(featureInfo, 200, rng);
+            GradHess[] gradHess = new GradHess[features.length];
+
+            for(int i = 0; i < features.length; i++) {
+                gradHess[i] = new GradHess(trainer.getTree().predict(features[i]) - target(features[i]), 1.0);
+            }
+
+            trainer.update(features, gradHess);
+        }
+
+        assertTrue(trainer.getTree().getNumSplits() > 0);
+
+        for(int[] features : createFeatures(featureInfo, 100, rng)) {
+            assertEquals(target(features), trainer.getTree().predict(features), 0.5);
+        }
+    }
+
+    @Test
+    public void testSparseShardHistograms() {
+        FeatureInfo[] featureInfo = createFeatureInfo(64);
+        ShardedTreeTrainer[] trainers = new ShardedTreeTrainer[2];
+
+        for(int t = 0; t < trainers.length; t++) {
+            StreamingGradientTreeOptions options = new StreamingGradientTreeOptions();
+            options.gracePeriod = 50;
+            options.delta = 1E-3;
+            options.sparseHistograms = t == 0;
+            trainers[t] = new ShardedTreeTrainer(new StreamingGradientTree(featureInfo, options), 4);
+        }
+
+        Random rng = new Random(1);
+
+        for(int b = 0; b < 50; b++) {
+            int[][] features = createFeatures(featureInfo, 200, rng);
+            GradHess[] gradHess = new GradHess[features.length];
+
+            for(int i = 0; i < features.length; i++) {
+                gradHess[i] = new GradHess(trainers[0].getTree().predict(features[i]) - target(features[i]), 1.0);
+            }
+
+            for(ShardedTreeTrainer trainer : trainers) {
+                trainer.update(features, gradHess);
+            }
+        }
+
+        assertTrue(trainers[0].getTree().getNumSplits() > 0);
+        assertEquals(trainers[1].getTree().getNumSplits(), trainers[0].getTree().getNumSplits());
+
+        for(int[] features : createFeatures(featureInfo, 100, rng)) {
+            assertEquals(trainers[1].getTree().predict(features), trainers[0].getTree().predict(features), 1E-9);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.henrygouk.sgt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.*;
+
+public class StatisticsTest {
+    @Test
+    public void testFCriticalValue() {
+        double p = 1E-7;
+        int[] df2s = {1, 9, 199, 5000};
+
+        for(int df2 : df2s) {
+            double critical = Statistics.FCriticalValue(p, 1, df2);
+
+            assertTrue(Statistics.FProbability(critical * (1.0 - 1E-9), 1, df2) >= p);
+            assertTrue(Statistics.FProbability(critical * (1.0 + 1E-9), 1, df2) < p);
+        }
+    }
+
+    @Test
+    public void testFCriticalValueCache() {
+        double p = 1E-7;
+        Statistics.FCriticalValueCache cache = new Statistics.FCriticalValueCache(p, 1);
+        int[] df2s = {1, 9, 199, 255, 256, 399, 1999, 123456, 10000000};
+
+        for(int df2 : df2s) {
+            double exact = Statistics.FCriticalValue(p, 1, df2);
+
+            assertEquals(exact, cache.get(df2), exact * 1E-7);
+        }
+
+        assertEquals(Double.POSITIVE_INFINITY, cache.get(0), 0.0);
+    }
+}
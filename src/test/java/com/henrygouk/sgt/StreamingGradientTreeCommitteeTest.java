@@ -0,0 +1,108 @@
+package com.henrygouk.sgt;
+
+import static com.henrygouk.sgt.TestData.createFeatureInfo;
+import static com.henrygouk.sgt.TestData.createFeatures;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.*;
+
+public class StreamingGradientTreeCommitteeTest {
+
+    private void train(StreamingGradientTreeCommittee committee, FeatureInfo[] featureInfo, int numTrees) {
+        Random rng = new Random(1);
+        int[] features = new int[featureInfo.length];
+        GradHess[] gradHesses = new GradHess[numTrees];
+
+        for(int i = 0; i < 5000; i++) {
+            for(int j = 0; j < features.length; j++) {
+                features[j] = rng.nextInt(featureInfo[j].categories);
+            }
+
+            double[] predictions = committee.predict(features);
+
+            // The arrays are reused for every instance, which the committee must cope with
+            for(int t = 0; t < numTrees; t++) {
+                double target = features[t % features.length] > 1 ? 1.0 : -1.0;
+                gradHesses[t] = new GradHess(predictions[t] - target, 1.0);
+            }
+
+            committee.update(features, gradHesses);
+        }
+    }
+
+    private void assertPooledMatchesSequential(ExecutorService executor, int numWorkers, int expectedWorkers) {
+        FeatureInfo[] featureInfo = createFeatureInfo();
+        int numTrees = 8;
+
+        StreamingGradientTreeOptions options = new StreamingGradientTreeOptions();
+        options.gracePeriod = 50;
+        options.delta = 1E-3;
+        options.committeeWorkerThreshold = Integer.MAX_VALUE;
+        StreamingGradientTreeCommittee sequential = new StreamingGradientTreeCommittee(featureInfo, options, numTrees);
+
+        options.committeeWorkerThreshold = 1;
+        options.numWorkers = numWorkers;
+        StreamingGradientTreeCommittee pooled = new StreamingGradientTreeCommittee(featureInfo, options, numTrees);
+        pooled.setExecutor(executor);
+
+        train(sequential, featureInfo, numTrees);
+        train(pooled, featureInfo, numTrees);
+        executor.shutdown();
+
+        assertEquals(expectedWorkers, pooled.getWorkerPool().getNumWorkers());
+        assertEquals(sequential.getNumNodes(), pooled.getNumNodes());
+        assertEquals(sequential.getNumSplits(), pooled.getNumSplits());
+
+        Random rng = new Random(2);
+
+        for(int i = 0; i < 100; i++) {
+            int[] features = createFeatures(featureInfo, rng);
+
+            assertArrayEquals(sequential.predict(features), pooled.predict(features), 0.0);
+        }
+    }
+
+    @Test
+    public void testWorkerPoolMatchesSequential() {
+        assertPooledMatchesSequential(Executors.newCachedThreadPool(), 3, 3);
+    }
+
+    // Workers that are queued behind another worker's thread would wait for it to go idle on every prediction
+    @Test(timeout = 60000)
+    public void testWorkerPoolFitsExecutor() {
+        assertPooledMatchesSequential(Executors.newFixedThreadPool(1), 3, 1);
+    }
+
+    @Test
+    public void testPredictAndUpdate() {
+        FeatureInfo[] featureInfo = createFeatureInfo();
+        int numTrees = 3;
+
+        StreamingGradientTreeOptions options = new StreamingGradientTreeOptions();
+        options.gracePeriod = 50;
+        options.delta = 1E-3;
+        StreamingGradientTreeCommittee separate = new StreamingGradientTreeCommittee(featureInfo, options, numTrees);
+        StreamingGradientTreeCommittee fused = new StreamingGradientTreeCommittee(featureInfo, options, numTrees);
+        Objective objective = new SoftmaxCrossEntropy();
+        Random rng = new Random(1);
+
+        for(int i = 0; i < 5000; i++) {
+            int[] features = createFeatures(featureInfo, rng);
+
+            double[] groundTruth = new double[numTrees + 1];
+            groundTruth[features[0]] = 1.0;
+
+            double[] predictions = separate.predict(features);
+            separate.update(features, objective.computeDerivatives(groundTruth, predictions));
+
+            assertArrayEquals(predictions, fused.predictAndUpdate(features, p -> objective.computeDerivatives(groundTruth, p)), 0.0);
+        }
+
+        assertEquals(separate.getNumSplits(), fused.getNumSplits());
+    }
+}
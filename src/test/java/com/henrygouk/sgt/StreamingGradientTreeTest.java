@@ -0,0 +1,458 @@
+package com.henrygouk.sgt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.*;
+
+public class StreamingGradientTreeTest {
+
+    private FeatureInfo[] createFeatureInfo() {
+        FeatureInfo[] featureInfo = new FeatureInfo[8];
+
+        for(int i = 0; i < featureInfo.length; i++) {
+            featureInfo[i] = new FeatureInfo();
+            featureInfo[i].type = i % 2 == 0 ? FeatureType.nominal : FeatureType.ordinal;
+            featureInfo[i].categories = i % 2 == 0 ? 4 : 32;
+        }
+
+        return featureInfo;
+    }
+
+    private int[][] createFeatures(FeatureInfo[] featureInfo, int rows, Random rng) {
+        int[][] features = new int[rows][featureInfo.length];
+
+        for(int i = 0; i < rows; i++) {
+            for(int j = 0; j < featureInfo.length; j++) {
+                features[i][j] = rng.nextInt(featureInfo[j].categories);
+            }
+        }
+
+        return features;
+    }
+
+    @Test
+    public void testUpdateDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        Random rng = new Random(1);
+        FeatureInfo[] featureInfo = createFeatureInfo();
+        int[][] features = createFeatures(featureInfo, 1000, rng);
+        GradHess[] gradHess = new GradHess[features.length];
+
+        for(int i = 0; i < gradHess.length; i++) {
+            gradHess[i] = new GradHess(features[i][1] > 16 ? 1.0 : -1.0, 1.0);
+        }
+
+        // A large gamma prevents splits, but still allows the leaf prediction to be updated
+        StreamingGradientTreeOptions options = new StreamingGradientTreeOptions();
+        options.gracePeriod = 50;
+        options.gamma = 1E9;
+        options.delta = 0.5;
+        StreamingGradientTree tree = new StreamingGradientTree(featureInfo, options);
+
+        for(int e = 0; e < 20; e++) {
+            for(int i = 0; i < features.length; i++) {
+                tree.update(features[i], gradHess[i]);
+            }
+        }
+
+        int updatesBefore = tree.getNumNodeUpdates();
+        threadBean.getThreadAllocatedBytes(threadId);
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+
+        for(int e = 0; e < 20; e++) {
+            for(int i = 0; i < features.length; i++) {
+                tree.update(features[i], gradHess[i]);
+            }
+        }
+
+        long after = threadBean.getThreadAllocatedBytes(threadId);
+
+        assertTrue(tree.getNumNodeUpdates() > updatesBefore);
+        assertEquals(0, (after - before) / (20 * features.length));
+    }
+
+    @Test
+    public void testBatchUpdate() {
+        Random rng = new Random(2);
+        FeatureInfo[] featureInfo = createFeatureInfo();
+        StreamingGradientTreeOptions options = new StreamingGradientTreeOptions();
+        options.gracePeriod = 37;
+        options.delta = 1E-4;
+        StreamingGradientTree sequential = new StreamingGradientTree(featureInfo, options);
+        StreamingGradientTree batched = new StreamingGradientTree(featureInfo, options);
+
+        for(int b = 0; b < 20; b++) {
+            int[][] features = createFeatures(featureInfo, 500, rng);
+            GradHess[] gradHess = new GradHess[features.length];
+
+            for(int i = 0; i < features.length; i++) {
+                double target = (features[i][1] > 16 ? 1.0 : -1.0) + (features[i][0] == 2 ? 0.5 : 0.0);
+                gradHess[i] = new GradHess(batched.predict(features[i]) - target, 1.0);
+                sequential.update(features[i], gradHess[i]);
+            }
+
+            batched.update(features, gradHess);
+        }
+
+        assertTrue(batched.getNumSplits() > 0);
+        assertEquals(sequential.getNumSplits(), batched.getNumSplits());
+        assertEquals(sequential.getNumNodeUpdates(), batched.getNumNodeUpdates());
+
+        int[][] features = createFeatures(featureInfo, 1000, rng);
+
+        for(int i = 0; i < features.length; i++) {
+            assertEquals(sequential.predict(features[i]), batched.predict(features[i]), 0.0);
+        }
+    }
+
+    @Test
+    public void testConcurrentSnapshotReads() throws InterruptedException {
+        Random rng = new Random(1);
+        FeatureInfo[] featureInfo = createFeatureInfo();
+        int[][] features = createFeatures(featureInfo, 20000, rng);
+
+        StreamingGradientTreeOptions options = new StreamingGradientTreeOptions();
+        options.gracePeriod = 50;
+        options.delta = 1E-3;
+        options.publishSnapshots = true;
+        StreamingGradientTree tree = new StreamingGradientTree(featureInfo, options);
+
+        AtomicBoolean done = new AtomicBoolean(false);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            try {
+                int i = 0;
+
+                while(!done.get()) {
+                    double prediction = tree.predict(features[i++ % features.length]);
+
+                    if(Double.isNaN(prediction) || Double.isInfinite(prediction)) {
+                        throw new IllegalStateException("Read an invalid prediction");
+                    }
+                }
+            }
+            catch(Throwable e) {
+                error.set(e);
+            }
+        });
+
+        reader.start();
+
+        for(int i = 0; i < features.length; i++) {
+            tree.update(features[i], new GradHess(tree.predict(features[i]) - (features[i][1] > 16 ? 1.0 : -1.0), 1.0));
+        }
+
+        done.set(true);
+        reader.join();
+
+        assertNull(error.get());
+        assertTrue(tree.getNumSplits() > 0);
+
+        for(int i = 0; i < 100; i++) {
+            assertEquals(tree.getStructure().predict(features[i]), tree.predict(features[i]), 0.0);
+        }
+    }
+
+    @Test
+    public void testSnapshotAfterDeserialization() throws IOException, ClassNotFoundException {
+        Random rng = new Random(4);
+        FeatureInfo[] featureInfo = createFeatureInfo();
+        int[][] features = createFeatures(featureInfo, 2000, rng);
+
+        StreamingGradientTreeOptions options = new StreamingGradientTreeOptions();
+        options.gracePeriod = 50;
+        options.delta = 1E-3;
+        options.publishSnapshots = true;
+        StreamingGradientTree tree = new StreamingGradientTree(featureInfo, options);
+
+        for(int i = 0; i < features.length; i++) {
+            tree.update(features[i], new GradHess(tree.predict(features[i]) - (features[i][1] > 16 ? 1.0 : -1.0), 1.0));
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(tree);
+        }
+
+        StreamingGradientTree copy;
+
+        try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            copy = (StreamingGradientTree)in.readObject();
+        }
+
+        assertNotNull(copy.mSnapshot);
+        assertNotSame(copy.getStructure(), copy.getPublishedStructure());
+
+        for(int i = 0; i < 100; i++) {
+            assertEquals(tree.predict(features[i]), copy.predict(features[i]), 0.0);
+        }
+    }
+
+    @Test
+    public void testMemoryUsage() {
+        Random rng = new Random(3);
+        FeatureInfo[] featureInfo = createFeatureInfo();
+        StreamingGradientTreeOptions options = new StreamingGradientTreeOptions();
+        options.gracePeriod = 50;
+        options.delta = 1E-4;
+        // Sparse histograms grow as bins are observed, so only dense ones have a known size
+        options.sparseHistograms = false;
+        StreamingGradientTree tree = new StreamingGradientTree(featureInfo, options);
+        long histogramBytes = tree.createHistogram().getMemoryBytes();
+        MemoryUsage initial = tree.getMemoryUsage();
+
+        assertEquals(histogramBytes, initial.leafStatisticsBytes);
+        assertEquals(0, initial.layerParameterBytes);
+
+        int[][] features = createFeatures(featureInfo, 5000, rng);
+
+        for(int i = 0; i < features.length; i++) {
+            double target = (features[i][1] > 16 ? 1.0 : -1.0) + (features[i][0] == 2 ? 0.5 : 0.0);
+            tree.update(features[i], new GradHess(tree.predict(features[i]) - target, 1.0));
+        }
+
+        int leaves = 0;
+
+        for(int n = 0; n < tree.getNumNodes(); n++) {
+            leaves += tree.getStructure().isLeaf(n) ? 1 : 0;
+        }
+
+        MemoryUsage trained = tree.getMemoryUsage();
+
+        assertTrue(leaves > 1);
+        assertEquals(leaves * histogramBytes, trained.leafStatisticsBytes);
+        assertTrue(trained.structureBytes > initial.structureBytes);
+        assertEquals(trained.getTotalBytes(), tree.getMemoryBytes());
+    }
+
+    @Test
+    public void testMemoryBudget() {
+        Random rng = new Random(4);
+        FeatureInfo[] featureInfo = createFeatureInfo();
+        StreamingGradientTreeOptions options = new StreamingGradientTreeOptions();
+        options.gracePeriod = 50;
+        options.delta = 1E-4;
+        options.maxMemoryBytes = 64 * 1024;
+        options.memoryCheckPeriod = 1000;
+        StreamingGradientTree tree = new StreamingGradientTree(featureInfo, options);
+        int[][] features = createFeatures(featureInfo, 20000, rng);
+
+        for(int i = 0; i < features.length; i++) {
+            double target = (features[i][1] > 16 ? 1.0 : -1.0) + features[i][0] * 0.5 + (features[i][3] > 8 ? 0.5 : 0.0);
+            tree.update(features[i], new GradHess(tree.predict(features[i]) - target, 1.0));
+            assertTrue(tree.getMemoryBytes() <= options.maxMemoryBytes);
+        }
+
+        int leaves = 0;
+
+        for(int n = 0; n < tree.getNumNodes(); n++) {
+            leaves += tree.getStructure().isLeaf(n) ? 1 : 0;
+        }
+
+        assertTrue(tree.getNumSplits() > 0);
+        assertTrue(tree.getNumActiveLeaves() < leaves);
+
+        // Inactive leaves are reactivated once there is room for them
+        options.maxMemoryBytes = 1024 * 1024;
+        tree.enforceMemoryBudget();
+        assertEquals(leaves, tree.getNumActiveLeaves());
+    }
+
+    @Test
+    public void testSparseUpdate() {
+        Random rng = new Random(1);
+        FeatureInfo[] featureInfo = new FeatureInfo[200];
+
+        for(int i = 0; i < featureInfo.length; i++) {
+            featureInfo[i] = new FeatureInfo();
+            featureInfo[i].type = i % 10 == 0 ? FeatureType.nominal : FeatureType.ordinal;
+            featureInfo[i].categories = i % 10 == 0 ? 3 : 8;
+            featureInfo[i].implicitDefault = i % 7 != 0;
+            featureInfo[i].defaultBin = i % 3 == 0 ? 0 : 2;
+        }
+
+        int[][] features = new int[2000][featureInfo.length];
+        SparseFeatures[] sparseFeatures = new SparseFeatures[features.length];
+        GradHess[] gradHess = new GradHess[features.length];
+
+        for(int r = 0; r < features.length; r++) {
+            for(int i = 0; i < featureInfo.length; i++) {
+                features[r][i] = rng.nextInt(10) == 0 ? rng.nextInt(featureInfo[i].categories + 1) - 1 : featureInfo[i].defaultBin;
+            }
+
+            sparseFeatures[r] = SparseFeatures.fromDense(featureInfo, features[r]);
+            gradHess[r] = new GradHess(features[r][3] > 4 || features[r][10] == 1 ? 1.0 : -1.0, 1.0);
+        }
+
+        StreamingGradientTreeOptions options = new StreamingGradientTreeOptions();
+        options.gracePeriod = 100;
+        StreamingGradientTree dense = new StreamingGradientTree(featureInfo, options);
+        StreamingGradientTree sparse = new StreamingGradientTree(featureInfo, options);
+
+        for(int e = 0; e < 5; e++) {
+            for(int r = 0; r < features.length; r++) {
+                dense.update(features[r], gradHess[r]);
+                sparse.update(sparseFeatures[r], gradHess[r]);
+            }
+        }
+
+        assertTrue(dense.getNumSplits() > 0);
+        assertEquals(dense.getNumNodes(), sparse.getNumNodes());
+
+        for(int r = 0; r < features.length; r++) {
+            assertEquals(sparseFeatures[r].get(3), features[r][3]);
+            assertEquals(dense.predict(features[r]), sparse.predict(sparseFeatures[r]), 0.0);
+        }
+    }
+
+    @Test
+    public void testSparseHistograms() {
+        Random rng = new Random(5);
+        FeatureInfo[] featureInfo = createFeatureInfo();
+
+        for(FeatureInfo info : featureInfo) {
+            if(info.type == FeatureType.ordinal) {
+                info.categories = 256;
+            }
+        }
+
+        int[][] features = createFeatures(featureInfo, 5000, rng);
+        StreamingGradientTreeOptions sparseOptions = new StreamingGradientTreeOptions();
+        sparseOptions.gracePeriod = 50;
+        sparseOptions.delta = 1E-4;
+        StreamingGradientTreeOptions denseOptions = new StreamingGradientTreeOptions();
+        denseOptions.gracePeriod = 50;
+        denseOptions.delta = 1E-4;
+        denseOptions.sparseHistograms = false;
+        StreamingGradientTree sparse = new StreamingGradientTree(featureInfo, sparseOptions);
+        StreamingGradientTree dense = new StreamingGradientTree(featureInfo, denseOptions);
+
+        for(int i = 0; i < features.length; i++) {
+            double target = (features[i][1] > 128 ? 1.0 : -1.0) + (features[i][0] == 2 ? 0.5 : 0.0);
+            sparse.update(features[i], new GradHess(sparse.predict(features[i]) - target, 1.0));
+            dense.update(features[i], new GradHess(dense.predict(features[i]) - target, 1.0));
+        }
+
+        assertTrue(sparse.getNumSplits() > 0);
+        assertEquals(dense.getNumNodes(), sparse.getNumNodes());
+        assertTrue(sparse.getMemoryUsage().leafStatisticsBytes < dense.getMemoryUsage().leafStatisticsBytes);
+
+        for(int i = 0; i < features.length; i++) {
+            assertEquals(dense.predict(features[i]), sparse.predict(features[i]), 0.0);
+        }
+    }
+
+    @Test
+    public void testAdaptiveGracePeriod() {
+        Random rng = new Random(6);
+        FeatureInfo[] featureInfo = createFeatureInfo();
+        StreamingGradientTreeOptions options = new StreamingGradientTreeOptions();
+        options.gracePeriod = 1;
+        options.delta = 1E-4;
+        options.adaptiveGracePeriod = true;
+        int[] checks = new int[1];
+
+        StreamingGradientTree tree = new StreamingGradientTree(featureInfo, options) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void attemptSplit(Node leaf) {
+                checks[0]++;
+                super.attemptSplit(leaf);
+            }
+        };
+
+        StreamingGradientTree batched = new StreamingGradientTree(featureInfo, options);
+        int numInstances = 0;
+
+        for(int b = 0; b < 40; b++) {
+            int[][] features = createFeatures(featureInfo, 500, rng);
+            GradHess[] gradHess = new GradHess[features.length];
+
+            for(int i = 0; i < features.length; i++) {
+                double target = (features[i][1] > 16 ? 1.0 : -1.0) + (features[i][0] == 2 ? 0.5 : 0.0);
+                gradHess[i] = new GradHess(batched.predict(features[i]) - target, 1.0);
+                tree.update(features[i], gradHess[i]);
+            }
+
+            batched.update(features, gradHess);
+            numInstances += features.length;
+        }
+
+        // Leaves are checked far less often than every instance, but still split
+        assertTrue(tree.getNumSplits() > 0);
+        assertTrue(checks[0] < numInstances / 10);
+        assertEquals(tree.getNumSplits(), batched.getNumSplits());
+        assertEquals(tree.getNumNodeUpdates(), batched.getNumNodeUpdates());
+    }
+
+    @Test
+    public void testCachedSplitCandidates() {
+        Random rng = new Random(7);
+        FeatureInfo[] featureInfo = createFeatureInfo();
+        int[][] features = createFeatures(featureInfo, 20000, rng);
+
+        // Most features are missing most of the time, so their candidates can often be reused
+        for(int i = 0; i < features.length; i++) {
+            for(int j = 2; j < featureInfo.length; j++) {
+                if(rng.nextDouble() < 0.95) {
+                    features[i][j] = -1;
+                }
+            }
+        }
+
+        StreamingGradientTreeOptions options = new StreamingGradientTreeOptions();
+        options.gracePeriod = 5;
+        options.delta = 1E-4;
+        StreamingGradientTreeOptions cachedOptions = new StreamingGradientTreeOptions();
+        cachedOptions.gracePeriod = 5;
+        cachedOptions.delta = 1E-4;
+        cachedOptions.cacheSplitCandidates = true;
+        StreamingGradientTree tree = new StreamingGradientTree(featureInfo, options);
+        StreamingGradientTree cached = new StreamingGradientTree(featureInfo, cachedOptions);
+
+        for(int i = 0; i < features.length; i++) {
+            double target = (features[i][1] > 16 ? 1.0 : -1.0) + (features[i][3] > 8 ? 0.5 : 0.0) + (features[i][4] == 2 ? 0.5 : 0.0);
+            tree.update(features[i], new GradHess(tree.predict(features[i]) - target, 1.0));
+            cached.update(features[i], new GradHess(cached.predict(features[i]) - target, 1.0));
+        }
+
+        assertTrue(cached.getNumSplits() > 0);
+        assertEquals(tree.getNumSplits(), cached.getNumSplits());
+        assertEquals(tree.getNumNodeUpdates(), cached.getNumNodeUpdates());
+
+        for(int i = 0; i < features.length; i++) {
+            assertEquals(tree.predict(features[i]), cached.predict(features[i]), 0.0);
+        }
+
+        // The mostly missing features were reused from the cache, while the first two change at every search, so they
+        // should be neither stored nor counted before they are evaluated
+        assertTrue(cached.mSplitSearch.cachedEvaluations > 0);
+
+        for(StreamingGradientTree.Node leaf : cached.mLeaves) {
+            if(leaf != null && leaf.mEvaluatedCounts != null && leaf.mEvaluatedCounts[0] > 1) {
+                assertFalse(leaf.mCached[0]);
+                assertFalse(leaf.mCached[1]);
+                assertFalse(leaf.mRarelyObserved[0]);
+                assertFalse(leaf.mRarelyObserved[1]);
+            }
+        }
+    }
+}
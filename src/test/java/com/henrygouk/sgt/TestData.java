@@ -0,0 +1,107 @@
+package com.henrygouk.sgt;
+
+import java.util.Random;
+
+/**
+ * Features and trees shared by the tests. Even features are nominal with three categories, and odd features are
+ * ordinal.
+ */
+final class TestData {
+
+    private TestData() {
+    }
+
+    static FeatureInfo[] createFeatureInfo(int ordinalCategories) {
+        FeatureInfo[] featureInfo = new FeatureInfo[4];
+
+        for(int i = 0; i < featureInfo.length; i++) {
+            featureInfo[i] = new FeatureInfo();
+            featureInfo[i].type = i % 2 == 0 ? FeatureType.nominal : FeatureType.ordinal;
+            featureInfo[i].categories = i % 2 == 0 ? 3 : ordinalCategories;
+        }
+
+        return featureInfo;
+    }
+
+    static FeatureInfo[] createFeatureInfo() {
+        return createFeatureInfo(16);
+    }
+
+    static int[] createFeatures(FeatureInfo[] featureInfo, Random rng) {
+        int[] features = new int[featureInfo.length];
+
+        for(int j = 0; j < features.length; j++) {
+            features[j] = rng.nextInt(featureInfo[j].categories);
+        }
+
+        return features;
+    }
+
+    static int[][] createFeatures(FeatureInfo[] featureInfo, int rows, Random rng) {
+        int[][] features = new int[rows][];
+
+        for(int i = 0; i < rows; i++) {
+            features[i] = createFeatures(featureInfo, rng);
+        }
+
+        return features;
+    }
+
+    // About one value in ten is missing
+    static int[] createFeaturesWithMissing(FeatureInfo[] featureInfo, Random rng) {
+        int[] features = new int[featureInfo.length];
+
+        for(int j = 0; j < features.length; j++) {
+            features[j] = rng.nextInt(10) == 0 ? -1 : rng.nextInt(featureInfo[j].categories);
+        }
+
+        return features;
+    }
+
+    /**
+     * Grows a complete subtree below node that splits ordinal feature 1 until every bin in [low, high] has a leaf of
+     * its own, with random leaf values.
+     */
+    static void splitOrdinal(FlatTree tree, int node, int low, int high, Random rng) {
+        if(low == high) {
+            return;
+        }
+
+        int middle = (low + high) / 2;
+        int first = tree.split(node, 1, middle, new double[] {rng.nextGaussian(), rng.nextGaussian()});
+        splitOrdinal(tree, first, low, middle, rng);
+        splitOrdinal(tree, first + 1, middle + 1, high, rng);
+    }
+
+    /**
+     * Creates a tree that splits nominal feature 0 at the root, then nominal feature 2 below the first child and
+     * ordinal feature 1 at bin 3 below the second. Every leaf has a different value.
+     */
+    static FlatTree createNominalTree(FeatureInfo[] featureInfo) {
+        FlatTree tree = new FlatTree(featureInfo, 0.0);
+        int first = tree.split(0, 0, -1, new double[] {1.0, 2.0, 3.0});
+        tree.split(first, 2, -1, new double[] {4.0, 5.0, 6.0});
+        tree.split(first + 1, 1, 3, new double[] {7.0, 8.0});
+
+        return tree;
+    }
+
+    /**
+     * Returns every combination of values of features 0, 1 and 2, including missing values, with feature 3 missing.
+     */
+    static int[][] createNominalTreeFeatures() {
+        int[] values = {-1, 0, 1, 2, 3, 4};
+        int[][] result = new int[4 * 6 * 4][];
+        int n = 0;
+
+        for(int a = -1; a < 3; a++) {
+            for(int b : values) {
+                for(int c = -1; c < 3; c++) {
+                    result[n++] = new int[] {a, b, c, -1};
+                }
+            }
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,123 @@
+package com.henrygouk.sgt;
+
+import static com.henrygouk.sgt.TestData.createFeatureInfo;
+import static com.henrygouk.sgt.TestData.createFeaturesWithMissing;
+import static com.henrygouk.sgt.TestData.createNominalTree;
+import static com.henrygouk.sgt.TestData.createNominalTreeFeatures;
+import static com.henrygouk.sgt.TestData.splitOrdinal;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.*;
+
+public class TreeCompilerTest {
+
+    @Test
+    public void testCommittee() {
+        FeatureInfo[] featureInfo = createFeatureInfo(200);
+        StreamingGradientTreeOptions options = new StreamingGradientTreeOptions();
+        options.gracePeriod = 50;
+        options.delta = 1E-3;
+        StreamingGradientTreeCommittee committee = new StreamingGradientTreeCommittee(featureInfo, options, 2);
+        Objective objective = new SoftmaxCrossEntropy();
+        Random rng = new Random(1);
+
+        for(int i = 0; i < 5000; i++) {
+            int[] features = createFeaturesWithMissing(featureInfo, rng);
+            double[] target = new double[3];
+            target[Math.max(features[0], 0)] = 1.0;
+            committee.predictAndUpdate(features, p -> objective.computeDerivatives(target, p));
+        }
+
+        CompiledModel compiled = TreeCompiler.compile(committee);
+        assertEquals(2, compiled.getNumCompiledTrees());
+
+        for(int i = 0; i < 1000; i++) {
+            int[] features = createFeaturesWithMissing(featureInfo, rng);
+            assertArrayEquals(committee.predict(features), compiled.predict(features), 0.0);
+        }
+    }
+
+    @Test
+    public void testLargeTree() {
+        // A complete tree on the ordinal feature is far too large for a single method
+        FeatureInfo[] featureInfo = createFeatureInfo(3000);
+        FlatTree tree = new FlatTree(featureInfo, 0.0);
+        Random rng = new Random(1);
+        splitOrdinal(tree, 0, 0, 2999, rng);
+
+        CompiledModel compiled = TreeCompiler.compile(new FlatTree[] {tree});
+        assertEquals(1, compiled.getNumCompiledTrees());
+
+        for(int i = 0; i < 1000; i++) {
+            int[] features = createFeaturesWithMissing(featureInfo, rng);
+            assertEquals(tree.predict(features), compiled.predict(features)[0], 0.0);
+        }
+    }
+
+    @Test
+    public void testMissingNominalValue() {
+        FeatureInfo[] featureInfo = createFeatureInfo();
+        FlatTree tree = createNominalTree(featureInfo);
+        CompiledModel compiled = TreeCompiler.compile(new FlatTree[] {tree});
+
+        // Missing values follow the first child of a nominal split
+        assertEquals(4.0, compiled.predict(new int[] {-1, 0, -1, 0})[0], 0.0);
+
+        for(int[] features : createNominalTreeFeatures()) {
+            assertEquals(tree.predict(features), compiled.predict(features)[0], 0.0);
+        }
+    }
+
+    @Test
+    public void testTreeTooLargeToCompile() {
+        // Too many nodes for the constant pool of a class, so the middle tree has to be interpreted
+        FeatureInfo[] featureInfo = createFeatureInfo(5000);
+        FlatTree large = new FlatTree(featureInfo, 0.0);
+        Random rng = new Random(1);
+        splitOrdinal(large, 0, 0, 4999, rng);
+        FlatTree small = createNominalTree(featureInfo);
+
+        CompiledModel compiled = TreeCompiler.compile(new FlatTree[] {small, large, small.snapshot()});
+        assertEquals(2, compiled.getNumCompiledTrees());
+
+        for(int i = 0; i < 1000; i++) {
+            int[] features = createFeaturesWithMissing(featureInfo, rng);
+            double[] prediction = compiled.predict(features);
+            assertEquals(small.predict(features), prediction[0], 0.0);
+            assertEquals(large.predict(features), prediction[1], 0.0);
+            assertEquals(small.predict(features), prediction[2], 0.0);
+        }
+    }
+
+    @Test
+    public void testWideNominalSplit() {
+        // Even with every child in a method of its own, the switch on feature 0 is too long for one method
+        FeatureInfo[] featureInfo = createFeatureInfo();
+        featureInfo[0].categories = 7000;
+        FlatTree wide = new FlatTree(featureInfo, 0.0);
+        double[] childValues = new double[7000];
+
+        for(int c = 0; c < childValues.length; c++) {
+            childValues[c] = c;
+        }
+
+        wide.split(0, 0, -1, childValues);
+        FlatTree small = new FlatTree(featureInfo, 0.0);
+        small.split(0, 1, 3, new double[] {1.0, 2.0});
+
+        CompiledModel compiled = TreeCompiler.compile(new FlatTree[] {wide, small});
+        assertEquals(1, compiled.getNumCompiledTrees());
+
+        Random rng = new Random(1);
+
+        for(int i = 0; i < 1000; i++) {
+            int[] features = createFeaturesWithMissing(featureInfo, rng);
+            double[] prediction = compiled.predict(features);
+            assertEquals(wide.predict(features), prediction[0], 0.0);
+            assertEquals(small.predict(features), prediction[1], 0.0);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.henrygouk.sgt;
+
+import static com.henrygouk.sgt.TestData.createFeatureInfo;
+import static com.henrygouk.sgt.TestData.createFeatures;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+
+public class TreeWorkerPoolTest {
+
+    private StreamingGradientTree[] createTrees(FeatureInfo[] featureInfo, int numTrees) {
+        StreamingGradientTree[] trees = new StreamingGradientTree[numTrees];
+
+        for(int i = 0; i < numTrees; i++) {
+            trees[i] = new StreamingGradientTree(featureInfo, new StreamingGradientTreeOptions());
+        }
+
+        return trees;
+    }
+
+    private void assertFailed(Runnable call) {
+        try {
+            call.run();
+            fail("Expected the pool to have failed");
+        }
+        catch(IllegalStateException e) {
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testFailureIsPermanent() {
+        FeatureInfo[] featureInfo = createFeatureInfo();
+        StreamingGradientTree[] trees = createTrees(featureInfo, 4);
+        TreeWorkerPool pool = new TreeWorkerPool(trees, 2, null);
+        int[] features = createFeatures(featureInfo, new Random(1));
+        GradHess[] gradHesses = new GradHess[trees.length];
+        AtomicInteger updates = new AtomicInteger();
+
+        for(int i = 0; i < gradHesses.length; i++) {
+            gradHesses[i] = new GradHess(1.0, 1.0);
+        }
+
+        pool.update(gradHesses, (gradHess, i) -> {
+            throw new ArithmeticException();
+        });
+
+        // Either rejected straight away or queued behind the failure, but never applied to the trees
+        try {
+            pool.update(gradHesses, (gradHess, i) -> updates.incrementAndGet());
+        }
+        catch(IllegalStateException e) {
+        }
+
+        double[] out = new double[trees.length];
+        assertFailed(() -> pool.predict(features, out));
+        assertFailed(() -> pool.predict(features, out));
+        assertFailed(pool::sync);
+        assertFailed(() -> pool.update(features, gradHesses));
+        assertEquals(0, updates.get());
+    }
+
+    @Test(timeout = 60000)
+    public void testRejectedWorker() {
+        FeatureInfo[] featureInfo = createFeatureInfo();
+        StreamingGradientTree[] trees = createTrees(featureInfo, 4);
+        TreeWorkerPool pool = new TreeWorkerPool(trees, 2, command -> {
+            throw new RejectedExecutionException();
+        });
+        int[] features = createFeatures(featureInfo, new Random(1));
+        double[] out = new double[trees.length];
+
+        assertFailed(() -> pool.predict(features, out));
+        assertFailed(pool::sync);
+    }
+}